@@ -0,0 +1,69 @@
+package de.intranda.goobi.plugins;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Optional;
+
+import lombok.NonNull;
+
+class AttributeNamePart extends NamePart {
+    private static final String FILE_ATTRIBUTE_SIZE = "size";
+    private static final String FILE_ATTRIBUTE_MODIFIED = "modified";
+    private static final String FILE_ATTRIBUTE_CREATED = "created";
+    private static final String FILE_ATTRIBUTE_ORDER = "order";
+
+    private String attribute;
+    private Optional<String> format;
+    private DateTimeFormatter dateFormatter;
+
+    /**
+     * @param format a {@link DateTimeFormatter} pattern for the dates, a format string for all other attributes
+     */
+    public AttributeNamePart(@NonNull List<NamePartReplacement> replacements, @NonNull List<NamePartCondition> conditions, String attribute,
+            String format) {
+        super(replacements, conditions);
+        this.attribute = attribute;
+        this.format = Optional.ofNullable(format);
+        switch (attribute) {
+            case FILE_ATTRIBUTE_MODIFIED, FILE_ATTRIBUTE_CREATED:
+                this.dateFormatter = DateTimeFormatter.ofPattern(format != null ? format : "yyyyMMddHHmmss").withZone(ZoneId.systemDefault());
+                break;
+            case FILE_ATTRIBUTE_SIZE, FILE_ATTRIBUTE_ORDER:
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown file attribute \"" + attribute + "\"!");
+        }
+    }
+
+    @Override
+    protected String generate(RenamingRun renamingRun, Path oldName) throws PluginException {
+        RenamingRun.FileAttributes attributes = renamingRun.getFileAttributes(oldName);
+        String result;
+        switch (attribute) {
+            case FILE_ATTRIBUTE_MODIFIED:
+                result = dateFormatter.format(Instant.ofEpochMilli(attributes.getModified()));
+                break;
+            case FILE_ATTRIBUTE_CREATED:
+                result = dateFormatter.format(Instant.ofEpochMilli(attributes.getCreated()));
+                break;
+            case FILE_ATTRIBUTE_SIZE:
+                result = Long.toString(attributes.getSize());
+                break;
+            default:
+                Integer order = renamingRun.getCaptureOrder(oldName);
+                if (order == null) {
+                    throw new PluginException("No capture order known for file \"" + oldName + "\"");
+                }
+                result = order.toString();
+                break;
+        }
+        // The format of dates is the pattern of the date formatter
+        if (format.isPresent() && dateFormatter == null) {
+            result = formatString(format.get(), result);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,57 @@
+package de.intranda.goobi.plugins;
+
+/**
+ * Trips when the failure rate among the most recent operations exceeds a threshold. Once tripped, the breaker stays open, all further
+ * operations are expected to be skipped. All methods can be called concurrently.
+ */
+public class CircuitBreaker {
+    private final double failureRateThreshold;
+    private final boolean[] window;
+    private int position = 0;
+    private int recorded = 0;
+    private int failures = 0;
+    private volatile boolean open = false;
+
+    /**
+     * @param failureRateThreshold the failure rate between 0 and 1, at which the breaker trips
+     * @param windowSize the number of the most recent operations considered; the breaker does not trip before this number of operations was
+     *            recorded
+     */
+    public CircuitBreaker(double failureRateThreshold, int windowSize) {
+        if (failureRateThreshold <= 0 || failureRateThreshold > 1 || windowSize < 1) {
+            throw new IllegalArgumentException("Invalid circuit breaker: failureRate=" + failureRateThreshold + ", window=" + windowSize);
+        }
+        this.failureRateThreshold = failureRateThreshold;
+        this.window = new boolean[windowSize];
+    }
+
+    public void recordSuccess() {
+        record(false);
+    }
+
+    public void recordFailure() {
+        record(true);
+    }
+
+    private synchronized void record(boolean failure) {
+        if (recorded == window.length) {
+            if (window[position]) {
+                failures--;
+            }
+        } else {
+            recorded++;
+        }
+        window[position] = failure;
+        if (failure) {
+            failures++;
+        }
+        position = (position + 1) % window.length;
+        if (recorded == window.length && failures >= failureRateThreshold * window.length) {
+            open = true;
+        }
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+}
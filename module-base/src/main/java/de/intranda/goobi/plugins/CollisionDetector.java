@@ -0,0 +1,71 @@
+package de.intranda.goobi.plugins;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Detects files of a folder that would end up with the same name while the new names are generated. Every file of a folder must be registered
+ * with its final name, including files that keep their name, so that renamings onto untouched files are detected as well.
+ */
+public class CollisionDetector {
+    private final int maxCollisions;
+    private final List<Collision> collisions = new ArrayList<>();
+
+    private Path currentFolder;
+    private Map<String, String> sourcesByFinalName = new HashMap<>();
+
+    public CollisionDetector(int maxCollisions) {
+        this.maxCollisions = Math.max(1, maxCollisions);
+    }
+
+    public void startFolder(Path folder, int numberOfFiles) {
+        this.currentFolder = folder;
+        this.sourcesByFinalName = new HashMap<>(numberOfFiles * 2);
+    }
+
+    /**
+     * Registers the final name of a file of the current folder.
+     *
+     * @return false if the configured maximum number of collisions is reached and the generation should stop
+     */
+    public boolean register(String source, String finalName) {
+        String otherSource = sourcesByFinalName.putIfAbsent(finalName, source);
+        if (otherSource != null) {
+            collisions.add(new Collision(currentFolder, otherSource, source, finalName));
+        }
+        return !isLimitReached();
+    }
+
+    public boolean hasCollisions() {
+        return !collisions.isEmpty();
+    }
+
+    public boolean isLimitReached() {
+        return collisions.size() >= maxCollisions;
+    }
+
+    public List<Collision> getCollisions() {
+        return Collections.unmodifiableList(collisions);
+    }
+
+    @Getter
+    @RequiredArgsConstructor
+    public static class Collision {
+        private final Path folder;
+        private final String firstSource;
+        private final String secondSource;
+        private final String target;
+
+        @Override
+        public String toString() {
+            return folder + ": \"" + firstSource + "\" and \"" + secondSource + "\" are both renamed to \"" + target + "\"";
+        }
+    }
+}
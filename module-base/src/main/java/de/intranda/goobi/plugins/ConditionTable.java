@@ -0,0 +1,77 @@
+package de.intranda.goobi.plugins;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Distinct condition values and value/regex pairs of all configured name parts. Conditions of different name parts that check the same
+ * value, like <code>{originalfilename}</code> in the barcode configuration, resolve it only once per file and identical value/regex
+ * pairs are only evaluated once per file.
+ */
+class ConditionTable {
+    private final Map<String, Integer> valueIndices = new HashMap<>();
+    private final Map<List<String>, Integer> conditionIndices = new HashMap<>();
+    private final List<String> values = new ArrayList<>();
+    private final List<Pattern> patterns = new ArrayList<>();
+    private final List<Integer> conditionValueIndices = new ArrayList<>();
+
+    public NamePartCondition compile(String value, String regex) {
+        int index = conditionIndices.computeIfAbsent(List.of(value, regex), k -> {
+            int valueIndex = valueIndices.computeIfAbsent(value, v -> {
+                values.add(v);
+                return values.size() - 1;
+            });
+            patterns.add(Pattern.compile(regex));
+            conditionValueIndices.add(valueIndex);
+            return patterns.size() - 1;
+        });
+        return new NamePartCondition(index);
+    }
+
+    /**
+     * @return the distinct values checked by the conditions
+     */
+    public List<String> getValues() {
+        return Collections.unmodifiableList(values);
+    }
+
+    public FileConditions forFile(RenamingRun renamingRun, Path file) {
+        return new FileConditions(renamingRun, file);
+    }
+
+    /**
+     * Condition results of a single file, values and results are computed on first use. Instances are not shared between threads.
+     */
+    class FileConditions {
+        private final RenamingRun renamingRun;
+        private final Path file;
+        private final String[] resolvedValues;
+        private final Boolean[] results;
+
+        private FileConditions(RenamingRun renamingRun, Path file) {
+            this.renamingRun = renamingRun;
+            this.file = file;
+            this.resolvedValues = new String[values.size()];
+            this.results = new Boolean[patterns.size()];
+        }
+
+        public boolean matches(int conditionIndex) {
+            renamingRun.metrics.increment(RenameFilesPlugin.METRIC_CONDITION_CHECKS);
+            if (results[conditionIndex] == null) {
+                int valueIndex = conditionValueIndices.get(conditionIndex);
+                if (resolvedValues[valueIndex] == null) {
+                    resolvedValues[valueIndex] = renamingRun.getReplacer().replace(file, values.get(valueIndex));
+                    renamingRun.metrics.increment(RenameFilesPlugin.METRIC_CONDITION_VALUE_RESOLUTIONS);
+                }
+                results[conditionIndex] = patterns.get(conditionIndex).matcher(resolvedValues[valueIndex]).matches();
+                renamingRun.metrics.increment(RenameFilesPlugin.METRIC_CONDITION_REGEX_EVALUATIONS);
+            }
+            return results[conditionIndex];
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package de.intranda.goobi.plugins;
+
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import de.sub.goobi.helper.StorageProviderInterface;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Verifies that the file references of a METS file and the files in the folders of a process match. Every folder is listed once, the
+ * references are then checked against these listings in parallel. Like the METS update, references are matched by their last two path
+ * elements, the folder name and the file name. Files are only reported as unreferenced, if their folder is referenced at all, because usually
+ * not all folders of a process are part of the METS file.
+ */
+public class ConsistencyVerifier {
+    private final StorageProviderInterface storageProvider;
+
+    public ConsistencyVerifier(StorageProviderInterface storageProvider) {
+        this.storageProvider = storageProvider;
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class Result {
+        private final int checkedReferences;
+        private final int checkedFiles;
+        /** References pointing to a missing file in one of the verified folders */
+        private final List<String> danglingReferences;
+        /** Files in referenced folders that are not referenced */
+        private final List<Path> unreferencedFiles;
+
+        public boolean isConsistent() {
+            return danglingReferences.isEmpty() && unreferencedFiles.isEmpty();
+        }
+    }
+
+    /**
+     * @param fileLocations the locations of all content files of the METS file
+     * @param folders the folders to verify, references to other folders are ignored
+     */
+    public Result verify(Collection<String> fileLocations, List<Path> folders) {
+        Map<String, Set<String>> filesByFolderName = new ConcurrentHashMap<>();
+        Map<String, Path> folderByName = new ConcurrentHashMap<>();
+        folders.parallelStream().forEach(folder -> {
+            Set<String> fileNames = new HashSet<>();
+            for (Path file : storageProvider.listFiles(folder.toString())) {
+                fileNames.add(file.getFileName().toString());
+            }
+            String folderName = folder.getFileName().toString();
+            filesByFolderName.put(folderName, fileNames);
+            folderByName.put(folderName, folder);
+        });
+
+        Set<String> referencedFiles = ConcurrentHashMap.newKeySet();
+        List<String> danglingReferences = fileLocations.parallelStream()
+                .filter(location -> {
+                    String[] pathElements = location.split("/");
+                    if (pathElements.length < 2) {
+                        return false;
+                    }
+                    String folderName = pathElements[pathElements.length - 2];
+                    String fileName = pathElements[pathElements.length - 1];
+                    Set<String> fileNames = filesByFolderName.get(folderName);
+                    if (fileNames == null) {
+                        return false;
+                    }
+                    referencedFiles.add(folderName + "/" + fileName);
+                    return !fileNames.contains(fileName);
+                })
+                .sorted()
+                .collect(Collectors.toList());
+
+        Set<String> referencedFolders = referencedFiles.stream()
+                .map(key -> key.substring(0, key.indexOf('/')))
+                .collect(Collectors.toSet());
+        List<Path> unreferencedFiles = filesByFolderName.entrySet()
+                .parallelStream()
+                .filter(e -> referencedFolders.contains(e.getKey()))
+                .flatMap(e -> e.getValue()
+                        .stream()
+                        .filter(fileName -> !referencedFiles.contains(e.getKey() + "/" + fileName))
+                        .map(fileName -> folderByName.get(e.getKey()).resolve(fileName)))
+                .sorted()
+                .collect(Collectors.toList());
+
+        int checkedFiles = filesByFolderName.values().stream().mapToInt(Set::size).sum();
+        return new Result(fileLocations.size(), checkedFiles, danglingReferences, unreferencedFiles);
+    }
+}
@@ -0,0 +1,150 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+
+import de.sub.goobi.helper.StorageProvider;
+import de.sub.goobi.helper.StorageProviderInterface;
+import lombok.Data;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Content digests of files, cached by path and algorithm in a JSON file in the process directory. A cached digest is only used while size
+ * and modification time of the file are unchanged. All files, including the cache file, are read and written through the storage provider,
+ * so the cache works for processes on S3 as well. Files are hashed while they are streamed, so even very large files are hashed with a
+ * small buffer. Digests can be requested concurrently.
+ */
+@Log4j2
+public class ContentHashCache {
+    public static final String DEFAULT_FILE_NAME = "rename_files_hashes.json";
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final Gson gson = new Gson();
+    private static final Type ENTRIES_TYPE = new TypeToken<Map<String, Map<String, Entry>>>() {
+    }.getType();
+
+    private final Path file;
+    private final StorageProviderInterface storageProvider;
+    // Entries by path and algorithm
+    private final Map<String, Map<String, Entry>> entries = new ConcurrentHashMap<>();
+    private volatile boolean modified = false;
+
+    @Data
+    static class Entry {
+        private long size;
+        private long modified;
+        private String digest;
+    }
+
+    /**
+     * Loads the cache file, if it exists. An unreadable cache file is ignored and replaced on the next {@link #save()}.
+     */
+    public ContentHashCache(Path file) throws IOException {
+        this(file, StorageProvider.getInstance());
+    }
+
+    ContentHashCache(Path file, StorageProviderInterface storageProvider) throws IOException {
+        this.file = file;
+        this.storageProvider = storageProvider;
+        if (storageProvider.isFileExists(file)) {
+            try (InputStream in = storageProvider.newInputStream(file)) {
+                Map<String, Map<String, Entry>> loaded = gson.fromJson(new String(in.readAllBytes(), StandardCharsets.UTF_8), ENTRIES_TYPE);
+                if (loaded != null) {
+                    loaded.forEach((path, digests) -> entries.put(path, new ConcurrentHashMap<>(digests)));
+                }
+            } catch (JsonParseException e) {
+                log.warn("Ignoring unreadable hash cache " + file, e);
+            }
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the algorithm is not supported
+     */
+    public static void checkAlgorithm(String algorithm) {
+        createMessageDigest(algorithm);
+    }
+
+    /**
+     * @return the hex encoded digest of the file, from the cache if the file did not change since it was hashed
+     */
+    public String digest(Path file, String algorithm) throws IOException {
+        long size = storageProvider.getFileSize(file);
+        long lastModified = storageProvider.getLastModifiedDate(file);
+        Map<String, Entry> digests = entries.computeIfAbsent(file.toString(), path -> new ConcurrentHashMap<>());
+        Entry entry = digests.get(algorithm);
+        if (entry != null && entry.getSize() == size && entry.getModified() == lastModified) {
+            return entry.getDigest();
+        }
+        entry = new Entry();
+        entry.setSize(size);
+        entry.setModified(lastModified);
+        entry.setDigest(computeDigest(file, algorithm));
+        digests.put(algorithm, entry);
+        modified = true;
+        return entry.getDigest();
+    }
+
+    String computeDigest(Path file, String algorithm) throws IOException {
+        MessageDigest messageDigest = createMessageDigest(algorithm);
+        try (InputStream in = storageProvider.newInputStream(file)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                messageDigest.update(buffer, 0, read);
+            }
+        }
+        return HexFormat.of().formatHex(messageDigest.digest());
+    }
+
+    private static MessageDigest createMessageDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Unknown hash algorithm \"" + algorithm + "\"!", e);
+        }
+    }
+
+    /**
+     * Moves the cache entries of a renamed file, renamings need to be applied in the order of their execution.
+     */
+    public void rename(Path from, Path to) {
+        Map<String, Entry> digests = entries.remove(from.toString());
+        if (digests != null) {
+            entries.put(to.toString(), digests);
+            modified = true;
+        }
+    }
+
+    /**
+     * Writes the cache file, if the cache was changed since it was loaded or saved. The entries of files that do not exist anymore are
+     * dropped, so the cache does not grow with every renaming outside of this plugin.
+     */
+    public void save() throws IOException {
+        if (entries.keySet().removeIf(path -> !storageProvider.isFileExists(Paths.get(path)))) {
+            modified = true;
+        }
+        if (!modified) {
+            return;
+        }
+        Path temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (OutputStream out = storageProvider.newOutputStream(temporaryFile)) {
+            out.write(gson.toJson(entries, ENTRIES_TYPE).getBytes(StandardCharsets.UTF_8));
+        }
+        storageProvider.move(temporaryFile, file);
+        modified = false;
+    }
+}
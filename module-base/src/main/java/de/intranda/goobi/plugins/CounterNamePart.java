@@ -0,0 +1,57 @@
+package de.intranda.goobi.plugins;
+
+import java.nio.file.Path;
+import java.text.DecimalFormat;
+import java.util.List;
+import java.util.Optional;
+
+import lombok.NonNull;
+import lombok.extern.log4j.Log4j2;
+import ugh.dl.DocStruct;
+
+@Log4j2
+class CounterNamePart extends NamePart {
+    // DecimalFormat is not thread safe, it is only used as template and cloned for every value
+    private final DecimalFormat format;
+    private Optional<String> level;
+
+    public CounterNamePart(@NonNull List<NamePartReplacement> replacements, @NonNull List<NamePartCondition> conditions, String format,
+            String level) {
+        super(replacements, conditions);
+        // Fails early on invalid patterns
+        this.format = new DecimalFormat(format);
+        this.level = Optional.ofNullable(level);
+    }
+
+    /**
+     * @return true if the counter is local to the structure elements of a level
+     */
+    public boolean hasLevel() {
+        return level.isPresent();
+    }
+
+    @Override
+    protected String generate(RenamingRun renamingRun, Path oldName) {
+        return nextValue(renamingRun, findCounterDocStruct(renamingRun, oldName));
+    }
+
+    /**
+     * @return the structure element the counter of this file is local to, or null if the global counter is used
+     */
+    DocStruct findCounterDocStruct(RenamingRun renamingRun, Path oldName) {
+        if (level.isEmpty()) {
+            return null;
+        }
+        List<DocStruct> docStructs = renamingRun.findDocStructsForFile(oldName, level.get());
+        if (docStructs.isEmpty()) {
+            log.warn("No DocStruct found for file " + oldName + " with level " + level.get());
+            return null;
+        }
+        return docStructs.getFirst();
+    }
+
+    String nextValue(RenamingRun renamingRun, DocStruct ds) {
+        int value = ds != null ? renamingRun.nextCounterValue(ds) : renamingRun.nextCounterValue(this);
+        return ((DecimalFormat) format.clone()).format(value);
+    }
+}
@@ -0,0 +1,104 @@
+package de.intranda.goobi.plugins;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * The variants chosen for the phases of one renaming run, either as configured or adapted to the number of renamings and folders. The
+ * choice only depends on the plan and the size of the METS file, so it is the same for every run with the same plan. The latency of the
+ * storage is not probed, since a probe would have to rename files outside of the plan and a single sample says little about a shared
+ * storage. Instead, an object storage is recognized from the configuration of Goobi workflow, see {@link #adaptToObjectStorage(int)}. The
+ * reasons of adapted choices are collected for logging, a later choice for the same phase replaces the earlier reason.
+ */
+@Getter
+@Setter
+public class ExecutionStrategy {
+    // Thresholds of the adaptive strategy
+    static final int ADAPTIVE_CONCURRENT_MIN_MOVES = 256;
+    static final int ADAPTIVE_MOVE_THREADS = 8;
+    static final int ADAPTIVE_PIPELINE_MIN_FILES = 1000;
+    static final int ADAPTIVE_STREAMING_METS_MIN_PAGES = 2000;
+    static final long ADAPTIVE_STREAMING_METS_MIN_BYTES = 32L * 1024 * 1024;
+
+    private boolean parallelGeneration;
+    private int moveThreads;
+    private boolean streamingMetsUpdate;
+    private boolean pipelinedExecution;
+    private final Map<String, String> reasons = new LinkedHashMap<>();
+
+    public ExecutionStrategy(boolean parallelGeneration, int moveThreads, boolean streamingMetsUpdate, boolean pipelinedExecution) {
+        this.parallelGeneration = parallelGeneration;
+        this.moveThreads = moveThreads;
+        this.streamingMetsUpdate = streamingMetsUpdate;
+        this.pipelinedExecution = pipelinedExecution;
+    }
+
+    public void addReason(String phase, String reason) {
+        reasons.put(phase, reason);
+    }
+
+    /**
+     * Chooses all variants that depend on the plan.
+     *
+     * @param renamings the number of renamings of the plan
+     * @param folders the number of folders of the plan
+     * @param metsFileSize the size of the METS file in bytes, 0 if unknown
+     * @param updateMetsFile true if the METS file is updated after the renaming
+     * @param structureNeeded true if the name generation looks up the structure elements of the METS file
+     * @param configuredMoveThreads the configured number of move threads, used for large plans if it is greater than one
+     */
+    public void adaptToPlan(int renamings, int folders, long metsFileSize, boolean updateMetsFile, boolean structureNeeded,
+            int configuredMoveThreads) {
+        adaptMoveThreads(renamings, configuredMoveThreads);
+        adaptMetsUpdate(renamings, folders, metsFileSize, updateMetsFile, structureNeeded);
+    }
+
+    /**
+     * Moves files concurrently only if there are enough renamings to keep several threads busy, otherwise the threads cost more than they
+     * save.
+     */
+    public void adaptMoveThreads(int renamings, int configuredMoveThreads) {
+        if (renamings >= ADAPTIVE_CONCURRENT_MIN_MOVES) {
+            moveThreads = configuredMoveThreads > 1 ? configuredMoveThreads : ADAPTIVE_MOVE_THREADS;
+        } else {
+            moveThreads = 1;
+        }
+        addReason("moves", moveThreads + " move threads for " + renamings + " renamings");
+    }
+
+    /**
+     * On an object storage every move is a server-side copy followed by a delete, so its duration is dominated by the round trips and not
+     * by the storage itself. At least the given number of moves are executed concurrently there, dependent renamings still in order.
+     */
+    public void adaptToObjectStorage(int objectStorageMoveThreads) {
+        if (objectStorageMoveThreads > moveThreads) {
+            moveThreads = objectStorageMoveThreads;
+            addReason("moves", moveThreads + " move threads for the server-side copies on the object storage");
+        }
+    }
+
+    /**
+     * Every folder holds one file per page, so the number of pages of the METS file is estimated from the renamings per folder. The METS
+     * file is updated by streaming for many pages or a large METS file, for example due to extensive metadata, and prepared concurrently to
+     * the moves for many renamings. If the name generation does
+     * not need the structure elements, the whole METS file is never parsed into a document, so only its file section is rewritten by
+     * streaming regardless of the number of pages.
+     */
+    public void adaptMetsUpdate(int renamings, int folders, long metsFileSize, boolean updateMetsFile, boolean structureNeeded) {
+        int pages = renamings / Math.max(1, folders);
+        streamingMetsUpdate = !structureNeeded || pages >= ADAPTIVE_STREAMING_METS_MIN_PAGES || metsFileSize >= ADAPTIVE_STREAMING_METS_MIN_BYTES;
+        addReason("METS update", (streamingMetsUpdate ? "streaming" : "regular") + " METS update for about " + pages + " pages and "
+                + metsFileSize / 1024 + " KB" + (structureNeeded ? "" : " without structure lookups"));
+        pipelinedExecution = updateMetsFile && renamings >= ADAPTIVE_PIPELINE_MIN_FILES;
+        addReason("execution", (pipelinedExecution ? "pipelined" : "sequential") + " execution for " + renamings + " renamings");
+    }
+
+    @Override
+    public String toString() {
+        return "parallelGeneration=" + parallelGeneration + ", moveThreads=" + moveThreads + ", streamingMetsUpdate=" + streamingMetsUpdate
+                + ", pipelinedExecution=" + pipelinedExecution + (reasons.isEmpty() ? "" : " (" + String.join("; ", reasons.values()) + ")");
+    }
+}
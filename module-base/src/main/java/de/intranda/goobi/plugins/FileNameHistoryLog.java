@@ -0,0 +1,203 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import com.google.gson.Gson;
+
+import lombok.Data;
+import lombok.Getter;
+
+/**
+ * Append-only log of the file renamings of a process, stored next to the process data. Every line is either a renaming
+ * <code>M folder from to</code> or, after a compaction, the current state of a file <code>S folder current original</code>. The fields are
+ * separated by tabs. Appending and reading use memory-mapped I/O, so a renaming run only writes its own entries instead of the whole history.
+ */
+public class FileNameHistoryLog {
+    public static final String DEFAULT_FILE_NAME = "rename_files_history.log";
+
+    private static final String MOVE = "M";
+    private static final String STATE = "S";
+    private static final char SEPARATOR = '\t';
+    private static final char LINE_END = '\n';
+
+    @Getter
+    private final Path file;
+
+    public FileNameHistoryLog(Path file) {
+        this.file = file;
+    }
+
+    public interface Visitor {
+        void move(String folder, String from, String to);
+
+        void state(String folder, String current, String original);
+    }
+
+    /**
+     * Entries that are written to the log together.
+     */
+    public static class Batch {
+        private final StringBuilder content = new StringBuilder();
+        @Getter
+        private long size = 0;
+
+        public void move(String folder, String from, String to) {
+            add(MOVE, folder, from, to);
+        }
+
+        public void state(String folder, String current, String original) {
+            add(STATE, folder, current, original);
+        }
+
+        private void add(String type, String folder, String first, String second) {
+            content.append(type)
+                    .append(SEPARATOR)
+                    .append(escape(folder))
+                    .append(SEPARATOR)
+                    .append(escape(first))
+                    .append(SEPARATOR)
+                    .append(escape(second))
+                    .append(LINE_END);
+            size++;
+        }
+
+        private byte[] toBytes() {
+            return content.toString().getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Reference to the log that is stored in the process property instead of the history itself.
+     */
+    @Data
+    public static class Pointer {
+        private String historyFile;
+        private String checksum;
+        private long entries;
+
+        /**
+         * @return the pointer or null, if the property value does not contain a pointer to a history log
+         */
+        public static Pointer parse(Gson gson, String propertyValue) {
+            if (propertyValue == null || propertyValue.isBlank()) {
+                return null;
+            }
+            Pointer pointer = gson.fromJson(propertyValue, Pointer.class);
+            return pointer != null && pointer.getHistoryFile() != null ? pointer : null;
+        }
+    }
+
+    public boolean exists() {
+        return Files.isRegularFile(file);
+    }
+
+    /**
+     * Passes all entries of the log in the order they were written to the visitor. The lines are decoded one by one from the mapped file, so
+     * only a single entry is held in the heap at a time.
+     *
+     * @return the number of entries read
+     */
+    public long replay(Visitor visitor) throws IOException {
+        if (!exists()) {
+            return 0;
+        }
+        long entries = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+            int lineStart = 0;
+            // A line end byte never occurs inside a multi-byte UTF-8 sequence. Bytes after the last line end are the incomplete last line of an
+            // interrupted append and are ignored.
+            for (int position = 0; position < buffer.limit(); position++) {
+                if (buffer.get(position) != LINE_END) {
+                    continue;
+                }
+                String line = StandardCharsets.UTF_8.decode(buffer.slice(lineStart, position - lineStart)).toString();
+                lineStart = position + 1;
+                replayLine(line, visitor);
+                entries++;
+            }
+        }
+        return entries;
+    }
+
+    private void replayLine(String line, Visitor visitor) throws IOException {
+        String[] fields = line.split(String.valueOf(SEPARATOR), -1);
+        if (fields.length != 4) {
+            throw new IOException("Malformed entry in history log " + file + ": " + String.join(" ", fields));
+        }
+        if (MOVE.equals(fields[0])) {
+            visitor.move(unescape(fields[1]), unescape(fields[2]), unescape(fields[3]));
+        } else if (STATE.equals(fields[0])) {
+            visitor.state(unescape(fields[1]), unescape(fields[2]), unescape(fields[3]));
+        } else {
+            throw new IOException("Unknown entry type in history log " + file + ": " + fields[0]);
+        }
+    }
+
+    public void append(Batch batch) throws IOException {
+        byte[] bytes = batch.toBytes();
+        if (bytes.length == 0) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(MapMode.READ_WRITE, channel.size(), bytes.length);
+            buffer.put(bytes);
+            buffer.force();
+        }
+    }
+
+    /**
+     * Replaces the whole log by the given entries, used for compaction.
+     */
+    public void rewrite(Batch batch) throws IOException {
+        Path temporaryFile = file.resolveSibling(file.getFileName().toString() + ".compacting");
+        Files.write(temporaryFile, batch.toBytes());
+        Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public String checksum() throws IOException {
+        CRC32 crc = new CRC32();
+        if (exists()) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                ByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+                crc.update(buffer);
+            }
+        }
+        return Long.toHexString(crc.getValue());
+    }
+
+    public long size() throws IOException {
+        return exists() ? Files.size(file) : 0;
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+
+    private static String unescape(String value) {
+        if (value.indexOf('\\') < 0) {
+            return value;
+        }
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                sb.append(next == 't' ? '\t' : next == 'n' ? '\n' : next);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,30 @@
+package de.intranda.goobi.plugins;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import lombok.Getter;
+import lombok.NonNull;
+
+class HashNamePart extends NamePart {
+    @Getter
+    private String algorithm;
+    private int length;
+
+    /**
+     * @param length the number of hex digits of the digest to use, the whole digest is used if it is empty
+     */
+    public HashNamePart(@NonNull List<NamePartReplacement> replacements, @NonNull List<NamePartCondition> conditions, String length,
+            String algorithm) {
+        super(replacements, conditions);
+        ContentHashCache.checkAlgorithm(algorithm);
+        this.algorithm = algorithm;
+        this.length = length == null || length.isBlank() ? 0 : Integer.parseInt(length.trim());
+    }
+
+    @Override
+    protected String generate(RenamingRun renamingRun, Path oldName) throws PluginException {
+        String digest = renamingRun.getContentHash(oldName, algorithm);
+        return length > 0 && length < digest.length() ? digest.substring(0, length) : digest;
+    }
+}
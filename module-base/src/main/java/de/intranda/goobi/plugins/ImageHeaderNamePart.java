@@ -0,0 +1,33 @@
+package de.intranda.goobi.plugins;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+
+import lombok.NonNull;
+
+class ImageHeaderNamePart extends NamePart {
+    private int tag;
+    private Optional<String> fallback;
+    private Optional<String> format;
+
+    public ImageHeaderNamePart(@NonNull List<NamePartReplacement> replacements, @NonNull List<NamePartCondition> conditions, String tag,
+            String fallback, String format) {
+        super(replacements, conditions);
+        this.tag = ImageHeaderReader.resolveTag(tag);
+        this.fallback = Optional.ofNullable(fallback);
+        this.format = Optional.ofNullable(format);
+    }
+
+    @Override
+    protected String generate(RenamingRun renamingRun, Path oldName) throws PluginException {
+        String value = renamingRun.getImageHeader(oldName).get(tag);
+        if (value == null || value.isEmpty()) {
+            value = fallback.orElseThrow(() -> new PluginException("No image header tag " + tag + " found in file \"" + oldName + "\""));
+        }
+        if (format.isPresent()) {
+            value = formatString(format.get(), value);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,181 @@
+package de.intranda.goobi.plugins;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads the tags of the first image file directory and of the EXIF directory of TIFF files and of the EXIF segment of JPEG files. Only the
+ * few header bytes are read with positional reads, the image data is never read or decoded. Text tags and the first value of integer tags are
+ * returned, all other tag types are ignored.
+ */
+public class ImageHeaderReader {
+    private static final Map<String, Integer> TAG_NAMES = Map.ofEntries(
+            Map.entry("DocumentName", 269),
+            Map.entry("ImageDescription", 270),
+            Map.entry("Make", 271),
+            Map.entry("Model", 272),
+            Map.entry("PageName", 285),
+            Map.entry("PageNumber", 297),
+            Map.entry("DateTime", 306),
+            Map.entry("Artist", 315),
+            Map.entry("Copyright", 33432),
+            Map.entry("DateTimeOriginal", 36867),
+            Map.entry("DateTimeDigitized", 36868));
+
+    private static final int TAG_EXIF_IFD = 34665;
+    private static final int TYPE_ASCII = 2;
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+    private static final int MAX_IFD_ENTRIES = 1000;
+    private static final int MAX_TEXT_LENGTH = 64 * 1024;
+    private static final int JPEG_APP1 = 0xFFE1;
+    private static final int JPEG_START_OF_SCAN = 0xFFDA;
+
+    /**
+     * @param tag the name of a supported tag, e.g. <code>DocumentName</code>, or the numeric id of any tag
+     * @return the numeric id of the tag
+     */
+    public static int resolveTag(String tag) {
+        Integer id = TAG_NAMES.get(tag);
+        if (id != null) {
+            return id;
+        }
+        try {
+            return Integer.parseInt(tag);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Unknown image header tag \"" + tag + "\"!");
+        }
+    }
+
+    /**
+     * @return the values of the tags by their numeric id, empty if the file is neither a TIFF nor a JPEG file with EXIF data
+     */
+    public Map<Integer, String> read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < 8) {
+                return Map.of();
+            }
+            ByteBuffer start = read(channel, 0, 4);
+            if (isTiffHeader(start, 0)) {
+                return readTiff(channel, 0);
+            }
+            if ((start.getShort(0) & 0xFFFF) == 0xFFD8) {
+                long exifStart = findJpegExif(channel);
+                if (exifStart >= 0) {
+                    return readTiff(channel, exifStart);
+                }
+            }
+            return Map.of();
+        }
+    }
+
+    private boolean isTiffHeader(ByteBuffer buffer, int offset) {
+        return buffer.get(offset) == 'I' && buffer.get(offset + 1) == 'I' && buffer.get(offset + 2) == 42 && buffer.get(offset + 3) == 0
+                || buffer.get(offset) == 'M' && buffer.get(offset + 1) == 'M' && buffer.get(offset + 2) == 0 && buffer.get(offset + 3) == 42;
+    }
+
+    /**
+     * @return the position of the TIFF structure within the EXIF segment or -1, if there is no EXIF segment before the image data
+     */
+    private long findJpegExif(FileChannel channel) throws IOException {
+        long position = 2;
+        while (position + 4 <= channel.size()) {
+            ByteBuffer segment = read(channel, position, 4);
+            int marker = segment.getShort(0) & 0xFFFF;
+            int length = segment.getShort(2) & 0xFFFF;
+            if (marker == JPEG_START_OF_SCAN || (marker & 0xFF00) != 0xFF00) {
+                return -1;
+            }
+            if (marker == JPEG_APP1 && length >= 14) {
+                ByteBuffer identifier = read(channel, position + 4, 10);
+                if (identifier.get(0) == 'E' && identifier.get(1) == 'x' && identifier.get(2) == 'i' && identifier.get(3) == 'f'
+                        && isTiffHeader(identifier, 6)) {
+                    return position + 10;
+                }
+            }
+            position += 2 + length;
+        }
+        return -1;
+    }
+
+    private Map<Integer, String> readTiff(FileChannel channel, long base) throws IOException {
+        ByteBuffer header = read(channel, base, 8);
+        header.order(header.get(0) == 'I' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        Map<Integer, String> result = new HashMap<>();
+        long exifOffset = readDirectory(channel, base, header.order(), Integer.toUnsignedLong(header.getInt(4)), result);
+        if (exifOffset > 0) {
+            readDirectory(channel, base, header.order(), exifOffset, result);
+        }
+        return result;
+    }
+
+    /**
+     * @return the offset of the EXIF directory or 0, if the directory does not reference one
+     */
+    private long readDirectory(FileChannel channel, long base, ByteOrder order, long offset, Map<Integer, String> result) throws IOException {
+        int count = read(channel, base + offset, 2).order(order).getShort(0) & 0xFFFF;
+        if (count > MAX_IFD_ENTRIES) {
+            throw new IOException("Image file directory with " + count + " entries is not supported");
+        }
+        ByteBuffer entries = read(channel, base + offset + 2, count * 12).order(order);
+        long exifOffset = 0;
+        for (int i = 0; i < count; i++) {
+            int entry = i * 12;
+            int tag = entries.getShort(entry) & 0xFFFF;
+            int type = entries.getShort(entry + 2) & 0xFFFF;
+            long valueCount = Integer.toUnsignedLong(entries.getInt(entry + 4));
+            if (valueCount == 0) {
+                continue;
+            }
+            String value = null;
+            if (type == TYPE_ASCII && valueCount <= MAX_TEXT_LENGTH) {
+                value = readText(channel, base, entries, entry + 8, (int) valueCount);
+            } else if (type == TYPE_SHORT) {
+                value = Integer.toString(entries.getShort(entry + 8) & 0xFFFF);
+            } else if (type == TYPE_LONG) {
+                long longValue = Integer.toUnsignedLong(entries.getInt(entry + 8));
+                if (tag == TAG_EXIF_IFD) {
+                    exifOffset = longValue;
+                }
+                value = Long.toString(longValue);
+            }
+            if (value != null) {
+                // Values of the first directory take precedence
+                result.putIfAbsent(tag, value);
+            }
+        }
+        return exifOffset;
+    }
+
+    private String readText(FileChannel channel, long base, ByteBuffer entries, int valuePosition, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        if (length <= 4) {
+            entries.get(valuePosition, bytes);
+        } else {
+            read(channel, base + Integer.toUnsignedLong(entries.getInt(valuePosition)), length).get(0, bytes);
+        }
+        int end = 0;
+        while (end < length && bytes[end] != 0) {
+            end++;
+        }
+        return new String(bytes, 0, end, StandardCharsets.ISO_8859_1).trim();
+    }
+
+    private ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Image header ends unexpectedly at position " + (position + buffer.position()));
+            }
+        }
+        return buffer;
+    }
+}
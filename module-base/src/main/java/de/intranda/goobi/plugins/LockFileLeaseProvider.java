@@ -0,0 +1,205 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.goobi.beans.Process;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import de.sub.goobi.helper.exceptions.SwapException;
+import lombok.Data;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Leases based on a lock file in the process directory, which works for all workers sharing the same storage. The lock file contains the
+ * owner and the expiry time of the lease, the owner renews it periodically. A lease that was not renewed in time is considered stale and is
+ * taken over by the next worker. The takeover relies on atomic renames, only one of several competing workers can move the stale lock file
+ * away. A worker that finds the lease renewed after moving the lock file away puts it back, so the owner treats a missing lock file as
+ * temporary and only loses the lease if another owner is recorded or the lease expired.
+ */
+@Log4j2
+public class LockFileLeaseProvider implements ProcessLeaseProvider {
+    public static final String DEFAULT_FILE_NAME = "rename_files.lease";
+
+    private static final Gson gson = new Gson();
+
+    private final Duration timeout;
+    private final String workerName;
+
+    public LockFileLeaseProvider(Duration timeout) {
+        this.timeout = timeout;
+        this.workerName = determineHostName() + "/" + ProcessHandle.current().pid();
+    }
+
+    @Data
+    static class LeaseRecord {
+        private String owner;
+        private long expiresAt;
+    }
+
+    @Override
+    public ProcessLease acquire(Process process) throws IOException {
+        try {
+            return acquire(Paths.get(process.getProcessDataDirectory(), DEFAULT_FILE_NAME));
+        } catch (SwapException e) {
+            throw new IOException("Unable to determine the directory of process " + process.getId(), e);
+        }
+    }
+
+    ProcessLease acquire(Path leaseFile) throws IOException {
+        String owner = workerName + "/" + UUID.randomUUID();
+        if (tryCreate(leaseFile, owner)) {
+            return new LockFileLease(leaseFile, owner);
+        }
+
+        LeaseRecord current = read(leaseFile);
+        long expiresAt = current != null ? current.getExpiresAt() : lastModified(leaseFile) + timeout.toMillis();
+        if (expiresAt > System.currentTimeMillis()) {
+            log.info("Lease " + leaseFile + " is held by " + (current != null ? current.getOwner() : "an unknown worker"));
+            return null;
+        }
+
+        // Move the stale lock file away, only one competing worker succeeds
+        Path staleFile = leaseFile.resolveSibling(leaseFile.getFileName() + "." + UUID.randomUUID() + ".stale");
+        try {
+            Files.move(leaseFile, staleFile, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            // Released or taken over in the meantime, try to create a new lease below
+            staleFile = null;
+        }
+        if (staleFile != null) {
+            LeaseRecord moved = read(staleFile);
+            if (current != null && !current.equals(moved)) {
+                // Another worker took over or renewed the lease after it was read, give it back
+                try {
+                    Files.move(staleFile, leaseFile, StandardCopyOption.ATOMIC_MOVE);
+                } catch (FileAlreadyExistsException e) {
+                    Files.deleteIfExists(staleFile);
+                }
+                return null;
+            }
+            Files.deleteIfExists(staleFile);
+            log.warn("Took over stale lease " + leaseFile + (current != null ? " of " + current.getOwner() : ""));
+        }
+        return tryCreate(leaseFile, owner) ? new LockFileLease(leaseFile, owner) : null;
+    }
+
+    private boolean tryCreate(Path leaseFile, String owner) throws IOException {
+        try {
+            Files.write(leaseFile, createRecord(owner), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        }
+    }
+
+    private byte[] createRecord(String owner) {
+        LeaseRecord record = new LeaseRecord();
+        record.setOwner(owner);
+        record.setExpiresAt(System.currentTimeMillis() + timeout.toMillis());
+        return gson.toJson(record).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the record or null, if the file does not exist or could not be parsed, e.g. because it is still being written
+     */
+    private LeaseRecord read(Path leaseFile) throws IOException {
+        try {
+            return gson.fromJson(Files.readString(leaseFile, StandardCharsets.UTF_8), LeaseRecord.class);
+        } catch (NoSuchFileException | JsonParseException e) {
+            return null;
+        }
+    }
+
+    private long lastModified(Path leaseFile) throws IOException {
+        try {
+            return Files.getLastModifiedTime(leaseFile).toMillis();
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+    }
+
+    private static String determineHostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "unknown";
+        }
+    }
+
+    private class LockFileLease implements ProcessLease {
+        private final Path leaseFile;
+        private final String owner;
+        private final ScheduledExecutorService heartbeat;
+        private volatile boolean valid = true;
+        private volatile long expiresAt;
+
+        LockFileLease(Path leaseFile, String owner) {
+            this.leaseFile = leaseFile;
+            this.owner = owner;
+            this.expiresAt = System.currentTimeMillis() + timeout.toMillis();
+            this.heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "rename-files-lease-heartbeat");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long interval = Math.max(1, timeout.toMillis() / 3);
+            heartbeat.scheduleAtFixedRate(this::renew, interval, interval, TimeUnit.MILLISECONDS);
+        }
+
+        private void renew() {
+            try {
+                LeaseRecord current = read(leaseFile);
+                if (current == null) {
+                    // Moved away by another worker checking for a stale lease or still being written, the next heartbeat checks again
+                    log.debug("Lease " + leaseFile + " is temporarily unavailable, checking again on the next renewal");
+                    return;
+                }
+                if (!owner.equals(current.getOwner())) {
+                    log.error("Lease " + leaseFile + " was taken over by " + current.getOwner());
+                    valid = false;
+                    heartbeat.shutdown();
+                    return;
+                }
+                Path temporaryFile = leaseFile.resolveSibling(leaseFile.getFileName() + "." + UUID.randomUUID() + ".renewing");
+                long renewedExpiresAt = System.currentTimeMillis() + timeout.toMillis();
+                Files.write(temporaryFile, createRecord(owner));
+                Files.move(temporaryFile, leaseFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                expiresAt = renewedExpiresAt;
+            } catch (IOException e) {
+                // The lease stays valid until it expires, the next heartbeat tries again
+                log.warn("Unable to renew lease " + leaseFile, e);
+            }
+        }
+
+        @Override
+        public boolean isValid() {
+            return valid && expiresAt > System.currentTimeMillis();
+        }
+
+        @Override
+        public void close() throws IOException {
+            heartbeat.shutdownNow();
+            LeaseRecord current = read(leaseFile);
+            if (current != null && owner.equals(current.getOwner())) {
+                Files.deleteIfExists(leaseFile);
+            }
+        }
+    }
+}
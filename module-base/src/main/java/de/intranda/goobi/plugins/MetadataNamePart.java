@@ -0,0 +1,45 @@
+package de.intranda.goobi.plugins;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+
+import lombok.NonNull;
+import ugh.dl.DocStruct;
+import ugh.dl.Metadata;
+
+class MetadataNamePart extends NamePart {
+    private String metadataName;
+    private String docStructLevel;
+    private Optional<String> fallback;
+    private Optional<String> format;
+
+    public MetadataNamePart(@NonNull List<NamePartReplacement> replacements, @NonNull List<NamePartCondition> conditions, String metadataName,
+            String docStructLevel, String fallback, String format) {
+        super(replacements, conditions);
+        this.metadataName = metadataName;
+        this.docStructLevel = docStructLevel;
+        this.fallback = Optional.ofNullable(fallback);
+        this.format = Optional.ofNullable(format);
+    }
+
+    @Override
+    protected String generate(RenamingRun renamingRun, Path oldName) throws PluginException {
+        List<DocStruct> docStructs = renamingRun.findDocStructsForFile(oldName, docStructLevel);
+
+        List<Metadata> matchingMetadata = docStructs.stream()
+                .flatMap(ds -> ds.getAllMetadata().stream())
+                .filter(md -> md.getType().getName().equals(this.metadataName))
+                .toList();
+
+        var result = matchingMetadata.stream()
+                .findFirst()
+                .map(Metadata::getValue)
+                .orElseThrow(() -> new PluginException("No metadata found for page \"" + oldName + "\" and metadata \"" + metadataName
+                        + "\" on level \"" + docStructLevel + "\""));
+        if (format.isPresent()) {
+            result = formatString(format.get(), result);
+        }
+        return result;
+    }
+}
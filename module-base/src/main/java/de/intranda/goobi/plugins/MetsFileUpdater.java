@@ -1,14 +1,37 @@
 package de.intranda.goobi.plugins;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
 
 import org.goobi.beans.Process;
 
+import de.sub.goobi.config.ConfigurationHelper;
+import de.sub.goobi.helper.StorageProvider;
+import de.sub.goobi.helper.StorageProviderInterface;
 import de.sub.goobi.helper.exceptions.SwapException;
 import lombok.extern.log4j.Log4j2;
 import ugh.dl.ContentFile;
@@ -21,16 +44,94 @@ import ugh.exceptions.WriteException;
 
 @Log4j2
 public class MetsFileUpdater {
-    private static MetsFileUpdater instance;
+    private static final String METS_NAMESPACE = "http://www.loc.gov/METS/";
+    private static final String XLINK_NAMESPACE = "http://www.w3.org/1999/xlink";
+    private static final QName METS_ROOT = new QName(METS_NAMESPACE, "mets");
+    private static final QName METS_FLOCAT = new QName(METS_NAMESPACE, "FLocat");
+    private static final QName XLINK_HREF = new QName(XLINK_NAMESPACE, "href");
 
-    public static synchronized MetsFileUpdater getInstance() {
-        if (instance == null) {
-            instance = new MetsFileUpdater();
-        }
-        return instance;
+    private final XMLInputFactory inputFactory;
+    private final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+    private final XMLEventFactory eventFactory = XMLEventFactory.newInstance();
+    private final Supplier<StorageProviderInterface> storageProvider;
+    private final IntSupplier numberOfBackups;
+
+    public MetsFileUpdater() {
+        this(StorageProvider::getInstance, () -> ConfigurationHelper.getInstance().getNumberOfMetaBackups());
+    }
+
+    /**
+     * @param storageProvider the storage to replace the METS file with
+     * @param numberOfBackups the number of backups of the METS file to keep, like for {@link Process#writeMetadataFile(Fileformat)}
+     */
+    MetsFileUpdater(Supplier<StorageProviderInterface> storageProvider, IntSupplier numberOfBackups) {
+        this.storageProvider = storageProvider;
+        this.numberOfBackups = numberOfBackups;
+        inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    /**
+     * The updater is stateless, the factories are only used to create readers and writers. The shared instance can be used by concurrent
+     * renamings without locking.
+     */
+    public static MetsFileUpdater getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    private static class InstanceHolder {
+        private static final MetsFileUpdater INSTANCE = new MetsFileUpdater();
     }
 
     public void updateMetsFile(Process process, Map<Path, Path> renamingMapping) throws IOException {
+        updateMetsFile(process, RenamingPlan.fromMapping(renamingMapping));
+    }
+
+    public void updateMetsFile(Process process, RenamingPlan renamingPlan) throws IOException {
+        prepareMetsFileUpdate(process, renamingPlan, false).commit();
+    }
+
+    /**
+     * Updates the file references of the METS file by copying it event by event and only rewriting the <code>xlink:href</code> attributes of
+     * <code>mets:FLocat</code> elements. The memory consumption is independent of the METS file size. If the metadata file is not a plain METS
+     * file, the update falls back to {@link #updateMetsFile(Process, RenamingPlan)}.
+     */
+    public void updateMetsFileStreaming(Process process, Map<Path, Path> renamingMapping) throws IOException {
+        updateMetsFileStreaming(process, RenamingPlan.fromMapping(renamingMapping));
+    }
+
+    public void updateMetsFileStreaming(Process process, RenamingPlan renamingPlan) throws IOException {
+        prepareMetsFileUpdate(process, renamingPlan, true).commit();
+    }
+
+    /**
+     * Prepares the update of the file references without touching the METS file, so that it can be done while the files are still being renamed.
+     * The streaming variant writes the updated METS file into a temporary file next to the original, the regular variant keeps the updated
+     * Fileformat in memory. The METS file is only replaced by {@link PreparedMetsUpdate#commit()}.
+     */
+    public PreparedMetsUpdate prepareMetsFileUpdate(Process process, RenamingPlan renamingPlan, boolean streaming) throws IOException {
+        Map<String, String> renamingIndex = createRenamingIndex(renamingPlan);
+        Path metsFile = streaming ? determineMetsFile(process) : null;
+        if (streaming && (metsFile == null || !isPlainMetsFile(metsFile))) {
+            log.debug("Metadata file of process {} is not a plain METS file, using the regular METS update", process.getTitel());
+            metsFile = null;
+        }
+        if (metsFile == null) {
+            return prepareFileformatUpdate(process, renamingIndex);
+        }
+
+        Path temporaryFile = metsFile.resolveSibling(metsFile.getFileName().toString() + ".renaming");
+        try (InputStream in = Files.newInputStream(metsFile); OutputStream out = Files.newOutputStream(temporaryFile)) {
+            rewriteFileLocations(in, out, renamingIndex);
+        } catch (XMLStreamException | IOException e) {
+            Files.deleteIfExists(temporaryFile);
+            throw new IOException("Error writing updated filenames to meta.xml of process " + process.getTitel() + ": " + e.toString(), e);
+        }
+        return new PreparedStreamingUpdate(storageProvider.get(), numberOfBackups.getAsInt(), metsFile, temporaryFile);
+    }
+
+    private PreparedMetsUpdate prepareFileformatUpdate(Process process, Map<String, String> renamingIndex) throws IOException {
         try {
             Fileformat fileformat = process.readMetadataFile();
             DigitalDocument dd = fileformat.getDigitalDocument();
@@ -39,58 +140,224 @@ public class MetsFileUpdater {
             for (ContentFile file : filesList) {
                 String oldLocation = file.getLocation();
                 try {
-                    String newLocation = lookUpNewLocation(renamingMapping, oldLocation);
+                    String newLocation = lookUpNewLocation(renamingIndex, oldLocation);
                     file.setLocation(newLocation);
                 } catch (IllegalArgumentException e) {
                     log.debug("Cannot update file reference {}: {}", oldLocation, e.toString());
                 }
             }
+            return new PreparedFileformatUpdate(process, fileformat);
 
-            process.writeMetadataFile(fileformat);
-
-        } catch (ReadException | IOException | SwapException | PreferencesException | WriteException e) {
+        } catch (ReadException | IOException | SwapException | PreferencesException e) {
             throw new IOException("Error writing updated filenames to meta.xml of process " + process.getTitel() + ": " + e.toString(), e);
         }
     }
 
-    private String lookUpNewLocation(Map<Path, Path> namesMap, String oldLocation) {
-        Set<String> newLocations = namesMap.entrySet()
-                .stream()
-                .filter(e -> renamingDoesMatchToOldLocation(e, oldLocation))
-                .map(e -> applyRenamingToOldLocation(e, oldLocation))
-                .collect(Collectors.toSet());
-        if (newLocations.size() != 1) {
-            throw new IllegalArgumentException("Number of results for the change of file location \"" + oldLocation
-                    + "\" is not unique! Number of found results: " + newLocations.size());
+    private Path determineMetsFile(Process process) {
+        try {
+            String metadataFilePath = process.getMetadataFilePath();
+            if (metadataFilePath == null || metadataFilePath.isBlank()) {
+                return null;
+            }
+            Path metsFile = Paths.get(metadataFilePath);
+            return Files.isRegularFile(metsFile) ? metsFile : null;
+        } catch (IOException | SwapException e) {
+            log.debug("Cannot determine metadata file of process {}: {}", process.getTitel(), e.toString());
+            return null;
         }
-        return newLocations.iterator().next();
     }
 
-    private boolean renamingDoesMatchToOldLocation(Map.Entry<Path, Path> renamingEntry, String oldLocation) {
-        String[] from = renamingEntry.getKey().toString().split("/");
-        String[] old = oldLocation.split("/");
+    private boolean isPlainMetsFile(Path metsFile) {
+        try (InputStream in = Files.newInputStream(metsFile)) {
+            XMLStreamReader reader = inputFactory.createXMLStreamReader(in);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                        return METS_ROOT.equals(reader.getName());
+                    }
+                }
+                return false;
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException | IOException e) {
+            log.debug("Cannot inspect metadata file {}: {}", metsFile, e.toString());
+            return false;
+        }
+    }
 
-        int maxComparisons = 2;
-        int fromIndex = from.length - 1;
-        int oldIndex = old.length - 1;
-        int comparisons = 0;
+    private void rewriteFileLocations(InputStream in, OutputStream out, Map<String, String> renamingIndex) throws XMLStreamException {
+        XMLEventReader reader = inputFactory.createXMLEventReader(in);
+        XMLEventWriter writer = outputFactory.createXMLEventWriter(out, "UTF-8");
+        try {
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+                if (event.isStartElement() && METS_FLOCAT.equals(event.asStartElement().getName())) {
+                    event = rewriteFileLocation(event.asStartElement(), renamingIndex);
+                }
+                writer.add(event);
+            }
+            writer.flush();
+        } finally {
+            writer.close();
+            reader.close();
+        }
+    }
 
-        while (fromIndex >= 0 && oldIndex >= 0 && comparisons < maxComparisons) {
-            if (!from[fromIndex].equals(old[oldIndex])) {
-                return false;
+    private StartElement rewriteFileLocation(StartElement fileLocation, Map<String, String> renamingIndex) {
+        Attribute href = fileLocation.getAttributeByName(XLINK_HREF);
+        if (href == null) {
+            return fileLocation;
+        }
+        String newLocation;
+        try {
+            newLocation = lookUpNewLocation(renamingIndex, href.getValue());
+        } catch (IllegalArgumentException e) {
+            log.debug("Cannot update file reference {}: {}", href.getValue(), e.toString());
+            return fileLocation;
+        }
+
+        List<Attribute> attributes = new ArrayList<>();
+        Iterator<Attribute> iterator = fileLocation.getAttributes();
+        while (iterator.hasNext()) {
+            Attribute attribute = iterator.next();
+            if (XLINK_HREF.equals(attribute.getName())) {
+                attributes.add(eventFactory.createAttribute(attribute.getName(), newLocation));
+            } else {
+                attributes.add(attribute);
             }
-            fromIndex--;
-            oldIndex--;
-            comparisons++;
         }
+        return eventFactory.createStartElement(fileLocation.getName(), attributes.iterator(), fileLocation.getNamespaces());
+    }
 
-        return true;
+    /**
+     * Indexes the renaming by the last two path elements (folder and file name) of the source, which is what file locations are matched by.
+     * Locations without a folder are matched by the file name alone. Keys that are shared by renamings with different targets are mapped to
+     * <code>null</code>.
+     */
+    private Map<String, String> createRenamingIndex(RenamingPlan renamingPlan) {
+        Map<String, String> renamingIndex = new HashMap<>(renamingPlan.size() * 4);
+        for (int f = 0; f < renamingPlan.getFolderCount(); f++) {
+            String folderName = renamingPlan.getFolder(f).getFileName().toString();
+            for (int i = 0; i < renamingPlan.getRenamingCount(f); i++) {
+                String source = renamingPlan.getSource(f, i);
+                String newFileName = renamingPlan.getTarget(f, i);
+                addToRenamingIndex(renamingIndex, folderName + "/" + source, newFileName);
+                addToRenamingIndex(renamingIndex, source, newFileName);
+            }
+        }
+        return renamingIndex;
+    }
+
+    private void addToRenamingIndex(Map<String, String> renamingIndex, String key, String newFileName) {
+        if (renamingIndex.containsKey(key) && !newFileName.equals(renamingIndex.get(key))) {
+            renamingIndex.put(key, null);
+        } else {
+            renamingIndex.put(key, newFileName);
+        }
+    }
+
+    private String createIndexKey(String[] pathElements) {
+        if (pathElements.length < 2 || pathElements[pathElements.length - 2].isEmpty()) {
+            return pathElements[pathElements.length - 1];
+        }
+        return pathElements[pathElements.length - 2] + "/" + pathElements[pathElements.length - 1];
     }
 
-    private String applyRenamingToOldLocation(Map.Entry<Path, Path> renamingEntry, String oldLocation) {
-        String[] to = renamingEntry.getValue().toString().split("/");
+    private String lookUpNewLocation(Map<String, String> renamingIndex, String oldLocation) {
         String[] old = oldLocation.split("/");
-        old[old.length - 1] = to[to.length - 1];
+        String key = createIndexKey(old);
+        if (!renamingIndex.containsKey(key)) {
+            throw new IllegalArgumentException("No renaming found for the file location \"" + oldLocation + "\"!");
+        }
+        String newFileName = renamingIndex.get(key);
+        if (newFileName == null) {
+            throw new IllegalArgumentException("The change of file location \"" + oldLocation + "\" is not unique!");
+        }
+        old[old.length - 1] = newFileName;
         return String.join("/", old);
     }
+
+    /**
+     * An update of the METS file that has been computed but not yet written.
+     */
+    public interface PreparedMetsUpdate {
+        void commit() throws IOException;
+
+        void discard();
+    }
+
+    private static class PreparedFileformatUpdate implements PreparedMetsUpdate {
+        private final Process process;
+        private final Fileformat fileformat;
+
+        PreparedFileformatUpdate(Process process, Fileformat fileformat) {
+            this.process = process;
+            this.fileformat = fileformat;
+        }
+
+        @Override
+        public void commit() throws IOException {
+            try {
+                process.writeMetadataFile(fileformat);
+            } catch (IOException | SwapException | PreferencesException | WriteException e) {
+                throw new IOException("Error writing updated filenames to meta.xml of process " + process.getTitel() + ": " + e.toString(), e);
+            }
+        }
+
+        @Override
+        public void discard() {
+            // Nothing was written yet
+        }
+    }
+
+    /**
+     * Replaces the METS file through the storage provider. The previous METS file is kept as the newest of the rotating backups
+     * <code>meta.xml.1</code> to <code>meta.xml.n</code>, the same way {@link Process#writeMetadataFile(Fileformat)} keeps them.
+     */
+    private static class PreparedStreamingUpdate implements PreparedMetsUpdate {
+        private final StorageProviderInterface storageProvider;
+        private final int numberOfBackups;
+        private final Path metsFile;
+        private final Path temporaryFile;
+
+        PreparedStreamingUpdate(StorageProviderInterface storageProvider, int numberOfBackups, Path metsFile, Path temporaryFile) {
+            this.storageProvider = storageProvider;
+            this.numberOfBackups = numberOfBackups;
+            this.metsFile = metsFile;
+            this.temporaryFile = temporaryFile;
+        }
+
+        @Override
+        public void commit() throws IOException {
+            rotateBackups();
+            storageProvider.move(temporaryFile, metsFile);
+        }
+
+        private void rotateBackups() throws IOException {
+            if (numberOfBackups < 1 || !storageProvider.isFileExists(metsFile)) {
+                return;
+            }
+            for (int count = numberOfBackups; count > 1; count--) {
+                Path olderBackup = getBackupFile(count - 1);
+                if (storageProvider.isFileExists(olderBackup)) {
+                    storageProvider.move(olderBackup, getBackupFile(count));
+                }
+            }
+            storageProvider.copyFile(metsFile, getBackupFile(1));
+        }
+
+        private Path getBackupFile(int count) {
+            return metsFile.resolveSibling(metsFile.getFileName().toString() + "." + count);
+        }
+
+        @Override
+        public void discard() {
+            try {
+                Files.deleteIfExists(temporaryFile);
+            } catch (IOException e) {
+                log.warn("Unable to delete temporary METS file {}: {}", temporaryFile, e.toString());
+            }
+        }
+    }
 }
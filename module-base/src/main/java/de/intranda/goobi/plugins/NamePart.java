@@ -0,0 +1,56 @@
+package de.intranda.goobi.plugins;
+
+import java.nio.file.Path;
+import java.util.IllegalFormatException;
+import java.util.List;
+
+import lombok.Data;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Configured part of the new file names. Name parts are not modified while names are generated, all state of a renaming is kept in the
+ * {@link RenamingRun}, so they can be shared by concurrent runs.
+ */
+@Data
+@RequiredArgsConstructor
+abstract class NamePart {
+    public boolean allConditionsMatch(ConditionTable.FileConditions fileConditions) {
+        return this.conditions.stream().allMatch(c -> c.matches(fileConditions));
+    }
+
+    @NonNull
+    private List<NamePartReplacement> replacements;
+    @NonNull
+    private List<NamePartCondition> conditions;
+
+    public String generateNamePart(RenamingRun renamingRun, Path oldName, ConditionTable.FileConditions fileConditions)
+            throws PluginException {
+        if (!allConditionsMatch(fileConditions)) {
+            return "";
+        }
+        return applyReplacements(generate(renamingRun, oldName));
+    }
+
+    public String applyReplacements(String value) {
+        String result = value;
+        for (NamePartReplacement r : replacements) {
+            result = r.replace(result);
+        }
+        return result;
+    }
+
+    protected abstract String generate(RenamingRun renamingRun, Path oldName) throws PluginException;
+
+    protected static String formatString(String format, String value) throws PluginException {
+        try {
+            return String.format(format, value);
+        } catch (IllegalFormatException e) {
+            try {
+                return String.format(format, Integer.parseInt(value));
+            } catch (NumberFormatException e1) {
+                throw new PluginException("Illegal format string: " + format + " for value: " + value);
+            }
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package de.intranda.goobi.plugins;
+
+import lombok.RequiredArgsConstructor;
+
+@RequiredArgsConstructor
+class NamePartCondition {
+    public boolean matches(ConditionTable.FileConditions fileConditions) {
+        return fileConditions.matches(index);
+    }
+
+    // Index of the distinct value and regex pair in the condition table
+    private final int index;
+}
@@ -0,0 +1,16 @@
+package de.intranda.goobi.plugins;
+
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+
+@RequiredArgsConstructor
+class NamePartReplacement {
+    public String replace(String value) {
+        return value.replaceAll(regex, replacement);
+    }
+
+    @NonNull
+    private String regex;
+    @NonNull
+    private String replacement;
+}
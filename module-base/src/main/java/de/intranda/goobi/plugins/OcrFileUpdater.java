@@ -0,0 +1,262 @@
+package de.intranda.goobi.plugins;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Updates the image references inside OCR files after the images were renamed: <code>sourceImageInformation/fileName</code> of ALTO files and
+ * the <code>imageFilename</code> attribute of the <code>Page</code> element of PAGE files. Elements are matched by their local name, so all
+ * versions of both formats are supported. Every file is copied event by event into a temporary file, which only replaces the file if a
+ * reference was changed. Files are processed in parallel, the memory consumption per file is independent of its size. XML files of other
+ * formats are left untouched.
+ */
+@Log4j2
+public class OcrFileUpdater {
+    private static final String ALTO_ROOT = "alto";
+    private static final String ALTO_SOURCE_IMAGE_INFORMATION = "sourceImageInformation";
+    private static final String ALTO_FILE_NAME = "fileName";
+    private static final String PAGE_ROOT = "PcGts";
+    private static final String PAGE_PAGE = "Page";
+    private static final String PAGE_IMAGE_FILENAME = "imageFilename";
+
+    private final XMLInputFactory inputFactory;
+    private final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+    private final XMLEventFactory eventFactory = XMLEventFactory.newInstance();
+    private final int threads;
+
+    public OcrFileUpdater(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is required!");
+        }
+        this.threads = threads;
+        inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        // The file name is read as a single text event
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    /**
+     * Index of the renamed files by their former file name and by their former name without extension. Names that were renamed to
+     * different targets, e.g. in different folders, are not indexed.
+     */
+    static class ImageReferenceIndex {
+        private final Map<String, String> fileNames = new HashMap<>();
+        private final Map<String, String> baseNames = new HashMap<>();
+
+        ImageReferenceIndex(RenamingPlan renamingPlan) {
+            Set<String> ambiguousFileNames = new HashSet<>();
+            Set<String> ambiguousBaseNames = new HashSet<>();
+            for (int f = 0; f < renamingPlan.getFolderCount(); f++) {
+                for (int i = 0; i < renamingPlan.getRenamingCount(f); i++) {
+                    String source = renamingPlan.getSource(f, i);
+                    String target = renamingPlan.getTarget(f, i);
+                    putUnique(fileNames, ambiguousFileNames, source, target);
+                    putUnique(baseNames, ambiguousBaseNames, removeExtension(source), removeExtension(target));
+                }
+            }
+        }
+
+        private static void putUnique(Map<String, String> index, Set<String> ambiguous, String key, String value) {
+            if (ambiguous.contains(key)) {
+                return;
+            }
+            String previous = index.putIfAbsent(key, value);
+            if (previous != null && !previous.equals(value)) {
+                index.remove(key);
+                ambiguous.add(key);
+            }
+        }
+
+        private static String removeExtension(String fileName) {
+            int extensionIndex = fileName.lastIndexOf('.');
+            return extensionIndex > 0 ? fileName.substring(0, extensionIndex) : fileName;
+        }
+
+        /**
+         * @param reference a file name or path, the directories of paths are kept
+         * @return the updated reference or null, if the referenced file was not renamed
+         */
+        String lookUp(String reference) {
+            int separatorIndex = Math.max(reference.lastIndexOf('/'), reference.lastIndexOf('\\'));
+            String fileName = reference.substring(separatorIndex + 1);
+            String newFileName = fileNames.get(fileName);
+            if (newFileName == null) {
+                // The reference may use a different extension than the renamed image, e.g. in derivative folders
+                String baseName = removeExtension(fileName);
+                String newBaseName = baseNames.get(baseName);
+                if (newBaseName != null) {
+                    newFileName = newBaseName + fileName.substring(baseName.length());
+                }
+            }
+            if (newFileName == null || newFileName.equals(fileName)) {
+                return null;
+            }
+            return reference.substring(0, separatorIndex + 1) + newFileName;
+        }
+    }
+
+    /**
+     * Updates the image references of all files. Files that cannot be updated do not stop the update of the other files.
+     *
+     * @return the number of changed files
+     * @throws IOException if at least one file could not be updated
+     */
+    public int updateImageReferences(List<Path> files, RenamingPlan renamingPlan) throws IOException {
+        if (files.isEmpty()) {
+            return 0;
+        }
+        ImageReferenceIndex index = new ImageReferenceIndex(renamingPlan);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, files.size()));
+        try {
+            List<Future<Boolean>> tasks = new ArrayList<>(files.size());
+            for (Path file : files) {
+                tasks.add(executor.submit(() -> updateImageReferences(file, index)));
+            }
+            int changedFiles = 0;
+            List<String> failedFiles = new ArrayList<>();
+            for (int i = 0; i < tasks.size(); i++) {
+                try {
+                    if (Boolean.TRUE.equals(tasks.get(i).get())) {
+                        changedFiles++;
+                    }
+                } catch (ExecutionException e) {
+                    log.error("Cannot update the image references of " + files.get(i), e.getCause());
+                    failedFiles.add(files.get(i).toString());
+                }
+            }
+            if (!failedFiles.isEmpty()) {
+                throw new IOException("Cannot update the image references of " + failedFiles.size() + " OCR files: " + failedFiles);
+            }
+            return changedFiles;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while updating the image references of the OCR files", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return true if at least one reference of the file was changed
+     */
+    boolean updateImageReferences(Path file, ImageReferenceIndex index) throws IOException {
+        Path temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+        boolean changed = false;
+        try {
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(file));
+                    OutputStream out = new BufferedOutputStream(Files.newOutputStream(temporaryFile))) {
+                changed = rewriteImageReferences(in, out, index);
+            } catch (XMLStreamException e) {
+                throw new IOException("Cannot parse OCR file " + file + ": " + e.getMessage(), e);
+            }
+            if (changed) {
+                Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        } finally {
+            if (!changed) {
+                Files.deleteIfExists(temporaryFile);
+            }
+        }
+        return changed;
+    }
+
+    private boolean rewriteImageReferences(InputStream in, OutputStream out, ImageReferenceIndex index) throws XMLStreamException {
+        XMLEventReader reader = inputFactory.createXMLEventReader(in);
+        XMLEventWriter writer = outputFactory.createXMLEventWriter(out, "UTF-8");
+        try {
+            boolean changed = false;
+            boolean rootChecked = false;
+            boolean pageFile = false;
+            boolean inSourceImageInformation = false;
+            boolean inFileName = false;
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+                if (event.isStartElement()) {
+                    String name = event.asStartElement().getName().getLocalPart();
+                    if (!rootChecked) {
+                        rootChecked = true;
+                        if (!ALTO_ROOT.equals(name) && !PAGE_ROOT.equals(name)) {
+                            return false;
+                        }
+                        pageFile = PAGE_ROOT.equals(name);
+                    }
+                    if (ALTO_SOURCE_IMAGE_INFORMATION.equals(name)) {
+                        inSourceImageInformation = true;
+                    } else if (inSourceImageInformation && ALTO_FILE_NAME.equals(name)) {
+                        inFileName = true;
+                    } else if (pageFile && PAGE_PAGE.equals(name)) {
+                        StartElement page = rewriteImageFilename(event.asStartElement(), index);
+                        changed |= page != event;
+                        event = page;
+                    }
+                } else if (inFileName && event.isCharacters()) {
+                    String newReference = index.lookUp(event.asCharacters().getData().trim());
+                    if (newReference != null) {
+                        event = eventFactory.createCharacters(newReference);
+                        changed = true;
+                    }
+                } else if (event.isEndElement()) {
+                    String name = event.asEndElement().getName().getLocalPart();
+                    if (ALTO_FILE_NAME.equals(name)) {
+                        inFileName = false;
+                    } else if (ALTO_SOURCE_IMAGE_INFORMATION.equals(name)) {
+                        inSourceImageInformation = false;
+                    }
+                }
+                writer.add(event);
+            }
+            writer.flush();
+            return changed;
+        } finally {
+            writer.close();
+            reader.close();
+        }
+    }
+
+    private StartElement rewriteImageFilename(StartElement page, ImageReferenceIndex index) {
+        boolean changed = false;
+        List<Attribute> attributes = new ArrayList<>();
+        Iterator<Attribute> iterator = page.getAttributes();
+        while (iterator.hasNext()) {
+            Attribute attribute = iterator.next();
+            String newReference = PAGE_IMAGE_FILENAME.equals(attribute.getName().getLocalPart()) ? index.lookUp(attribute.getValue()) : null;
+            if (newReference != null) {
+                attributes.add(eventFactory.createAttribute(attribute.getName(), newReference));
+                changed = true;
+            } else {
+                attributes.add(attribute);
+            }
+        }
+        return changed ? eventFactory.createStartElement(page.getName(), attributes.iterator(), page.getNamespaces()) : page;
+    }
+}
@@ -0,0 +1,51 @@
+package de.intranda.goobi.plugins;
+
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+
+import lombok.Getter;
+
+/**
+ * Daily time window in local time, given as <code>HH:mm-HH:mm</code>. A window whose end is before its start spans midnight, e.g.
+ * <code>22:00-06:00</code>.
+ */
+@Getter
+public class OffPeakWindow {
+    private final LocalTime start;
+    private final LocalTime end;
+
+    public OffPeakWindow(LocalTime start, LocalTime end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the window is not given as <code>HH:mm-HH:mm</code>
+     */
+    public static OffPeakWindow parse(String window) {
+        String[] times = window.trim().split("\\s*-\\s*");
+        if (times.length != 2) {
+            throw new IllegalArgumentException("Invalid time window \"" + window + "\", expected HH:mm-HH:mm!");
+        }
+        try {
+            return new OffPeakWindow(LocalTime.parse(times[0]), LocalTime.parse(times[1]));
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid time window \"" + window + "\", expected HH:mm-HH:mm!", e);
+        }
+    }
+
+    /**
+     * @return true if the time is within the window, the start is included and the end is excluded
+     */
+    public boolean contains(LocalTime time) {
+        if (start.isAfter(end)) {
+            return !time.isBefore(start) || time.isBefore(end);
+        }
+        return !time.isBefore(start) && time.isBefore(end);
+    }
+
+    @Override
+    public String toString() {
+        return start + "-" + end;
+    }
+}
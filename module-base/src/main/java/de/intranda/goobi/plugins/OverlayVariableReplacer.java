@@ -0,0 +1,68 @@
+package de.intranda.goobi.plugins;
+
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import de.intranda.goobi.plugins.RenameFilesPlugin.OriginalFileNameHistory;
+import de.sub.goobi.helper.VariableReplacer;
+
+/**
+ * Resolves the variables of the name parts, <code>{originalfilename}</code> is resolved from the file name history, all other variables by
+ * the {@link VariableReplacer} of the process.
+ */
+class OverlayVariableReplacer {
+    static final String CUSTOM_VARIABLE_ORIGINAL_FILE_NAME = "{originalfilename}";
+
+    // The VariableReplacer is only created once a value is not resolved by the internal replacer
+    private final Supplier<VariableReplacer> variableReplacer;
+    private final OriginalFileNameHistory originalFileNameHistory;
+    // Values that do not depend on the file, resolved before names are generated in parallel
+    private volatile Map<String, String> resolvedValues = Map.of();
+
+    public OverlayVariableReplacer(Supplier<VariableReplacer> variableReplacer, OriginalFileNameHistory originalFileNameHistory) {
+        this.variableReplacer = variableReplacer;
+        this.originalFileNameHistory = originalFileNameHistory;
+    }
+
+    public String replace(Path fileName, String replacement) {
+        String resolvedValue = resolvedValues.get(replacement);
+        if (resolvedValue != null) {
+            return resolvedValue;
+        }
+        replacement = internalReplacer(fileName, replacement);
+        // The VariableReplacer is not thread safe
+        synchronized (this) {
+            return variableReplacer.get().replace(replacement);
+        }
+    }
+
+    /**
+     * Resolves the values that are the same for all files once, so that they are not passed to the VariableReplacer again. Only
+     * <code>{originalfilename}</code> depends on the file.
+     */
+    public synchronized void resolveInAdvance(Collection<String> values) {
+        Map<String, String> resolved = new HashMap<>(resolvedValues);
+        for (String value : values) {
+            if (!CUSTOM_VARIABLE_ORIGINAL_FILE_NAME.equals(value) && !resolved.containsKey(value)) {
+                resolved.put(value, variableReplacer.get().replace(value));
+            }
+        }
+        resolvedValues = Map.copyOf(resolved);
+    }
+
+    private String internalReplacer(Path fileName, String replacement) {
+        if (CUSTOM_VARIABLE_ORIGINAL_FILE_NAME.equals(replacement)) {
+            String originalFileName = originalFileNameHistory.getOriginalFileNameOf(fileName);
+            // Remove file extension
+            if (originalFileName.contains(".")) {
+                int fileExtensionIndex = originalFileName.lastIndexOf('.');
+                originalFileName = originalFileName.substring(0, fileExtensionIndex);
+            }
+            return originalFileName;
+        }
+        return replacement;
+    }
+}
@@ -0,0 +1,14 @@
+package de.intranda.goobi.plugins;
+
+import java.io.Closeable;
+
+/**
+ * Exclusive right of one worker to rename the files of a process. Closing the lease releases it.
+ */
+public interface ProcessLease extends Closeable {
+
+    /**
+     * @return false if the lease expired or was taken over by another worker
+     */
+    boolean isValid();
+}
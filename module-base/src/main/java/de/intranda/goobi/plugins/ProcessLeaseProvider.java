@@ -0,0 +1,18 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+
+import org.goobi.beans.Process;
+
+/**
+ * Backend that grants exclusive leases on processes to the workers renaming their files.
+ */
+public interface ProcessLeaseProvider {
+
+    /**
+     * Acquires the lease of the process. The lease is renewed in the background until it is closed.
+     *
+     * @return the lease or null, if another worker holds a valid lease of the process
+     */
+    ProcessLease acquire(Process process) throws IOException;
+}
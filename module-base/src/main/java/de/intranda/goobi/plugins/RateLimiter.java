@@ -0,0 +1,77 @@
+package de.intranda.goobi.plugins;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket that limits the rate of operations or bytes. The bucket holds the permits of at most one second, so short bursts are allowed.
+ * Requests larger than the bucket are granted as well, the following requests wait until the deficit is refilled. Limiters obtained by
+ * {@link #getShared(String, double)} are shared by all plugin instances in the JVM that configure the same name and rate, so concurrently
+ * running renamings share the same rate.
+ */
+public class RateLimiter {
+    private static final Map<String, RateLimiter> sharedLimiters = new ConcurrentHashMap<>();
+
+    private final double permitsPerSecond;
+    private double availablePermits;
+    private long lastRefillNanos;
+
+    public RateLimiter(double permitsPerSecond) {
+        this(permitsPerSecond, System.nanoTime());
+    }
+
+    RateLimiter(double permitsPerSecond, long nowNanos) {
+        checkRate(permitsPerSecond);
+        this.permitsPerSecond = permitsPerSecond;
+        this.availablePermits = permitsPerSecond;
+        this.lastRefillNanos = nowNanos;
+    }
+
+    /**
+     * @return the limiter of the given name and rate, a different rate for the same name results in a separate limiter, so the rate of
+     *         renamings already running is never changed
+     */
+    public static RateLimiter getShared(String name, double permitsPerSecond) {
+        checkRate(permitsPerSecond);
+        return sharedLimiters.computeIfAbsent(name + "@" + permitsPerSecond, n -> new RateLimiter(permitsPerSecond));
+    }
+
+    private static void checkRate(double permitsPerSecond) {
+        if (!(permitsPerSecond > 0)) {
+            throw new IllegalArgumentException("The rate limit needs to be positive!");
+        }
+    }
+
+    /**
+     * Waits until the permits are available.
+     *
+     * @return the waiting time in nanoseconds
+     */
+    public long acquire(long permits) throws InterruptedException {
+        long waitNanos = reserve(permits, System.nanoTime());
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+        return waitNanos;
+    }
+
+    /**
+     * Takes the permits from the bucket, possibly leaving a deficit.
+     *
+     * @return the time in nanoseconds until the deficit is refilled
+     */
+    synchronized long reserve(long permits, long nowNanos) {
+        refill(nowNanos);
+        availablePermits -= permits;
+        return availablePermits >= 0 ? 0 : (long) Math.ceil(-availablePermits / permitsPerSecond * TimeUnit.SECONDS.toNanos(1));
+    }
+
+    private void refill(long nowNanos) {
+        if (nowNanos > lastRefillNanos) {
+            double refilled = (nowNanos - lastRefillNanos) * permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+            availablePermits = Math.min(permitsPerSecond, availablePermits + refilled);
+            lastRefillNanos = nowNanos;
+        }
+    }
+}
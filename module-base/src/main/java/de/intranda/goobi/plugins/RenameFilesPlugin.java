@@ -1,49 +1,37 @@
 package de.intranda.goobi.plugins;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.text.DecimalFormat;
-import java.text.NumberFormat;
-import java.util.*;
-import java.util.Map.Entry;
-import java.util.stream.Collectors;
-
-import de.sub.goobi.helper.Helper;
-import de.sub.goobi.persistence.managers.JournalManager;
-import org.apache.commons.configuration.HierarchicalConfiguration;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
 import org.apache.commons.configuration.SubnodeConfiguration;
-import org.goobi.beans.GoobiProperty;
-import org.goobi.beans.GoobiProperty.PropertyOwnerType;
 import org.goobi.beans.JournalEntry;
-import org.goobi.beans.Process;
 import org.goobi.beans.Step;
-import org.goobi.production.enums.*;
+import org.goobi.production.enums.LogType;
+import org.goobi.production.enums.PluginGuiType;
+import org.goobi.production.enums.PluginReturnValue;
+import org.goobi.production.enums.PluginType;
+import org.goobi.production.enums.StepReturnValue;
+import org.goobi.production.enums.StepStatus;
 import org.goobi.production.plugin.interfaces.IStepPluginVersion2;
 
-import com.google.gson.Gson;
 import com.google.gson.annotations.SerializedName;
 
 import de.sub.goobi.config.ConfigPlugins;
 import de.sub.goobi.config.ConfigurationHelper;
-import de.sub.goobi.helper.StorageProvider;
-import de.sub.goobi.helper.VariableReplacer;
+import de.sub.goobi.helper.CloseStepHelper;
 import de.sub.goobi.helper.exceptions.DAOException;
-import de.sub.goobi.helper.exceptions.SwapException;
-import de.sub.goobi.persistence.managers.PropertyManager;
-import lombok.Data;
+import de.sub.goobi.persistence.managers.JournalManager;
+import de.sub.goobi.persistence.managers.StepManager;
 import lombok.Getter;
-import lombok.NonNull;
-import lombok.RequiredArgsConstructor;
 import lombok.extern.log4j.Log4j2;
 import net.xeoh.plugins.base.annotations.PluginImplementation;
-import ugh.dl.DigitalDocument;
-import ugh.dl.DocStruct;
-import ugh.dl.Fileformat;
-import ugh.dl.Metadata;
-import ugh.dl.Reference;
-import ugh.exceptions.PreferencesException;
-import ugh.exceptions.ReadException;
 
 @Log4j2
 @PluginImplementation
@@ -51,14 +39,15 @@ public class RenameFilesPlugin implements IStepPluginVersion2 {
     private static final long serialVersionUID = -5097830334502599546L;
 
     public static final String PROPERTY_TITLE = "plugin_intranda_step_rename_files";
-    private static final String NAME_PART_TYPE_STATIC = "static";
-    private static final String NAME_PART_TYPE_COUNTER = "counter";
-    private static final String NAME_PART_TYPE_VARIABLE = "variable";
-    private static final String NAME_PART_TYPE_METADATA = "metadata";
-    private static final String NAME_PART_TYPE_ORIGINAL_FILE_NAME = "originalfilename";
-    private static final String CUSTOM_VARIABLE_ORIGINAL_FILE_NAME = "{" + NAME_PART_TYPE_ORIGINAL_FILE_NAME + "}";
-
-    private Gson gson = new Gson();
+    static final String METRIC_CONDITION_CHECKS = "conditionChecks";
+    static final String METRIC_CONDITION_VALUE_RESOLUTIONS = "conditionValueResolutions";
+    static final String METRIC_CONDITION_REGEX_EVALUATIONS = "conditionRegexEvaluations";
+    static final String METRIC_MOVES = "moves";
+    static final String METRIC_MOVE_NANOS = "moveNanos";
+    static final String METRIC_MOVE_FAILURES = "moveFailures";
+    static final String METRIC_MOVE_RETRIES = "moveRetries";
+    static final String METRIC_THROTTLE_NANOS = "throttleNanos";
+
     private ConfigurationHelper configurationHelper = ConfigurationHelper.getInstance();
     private MetsFileUpdater metsFileUpdater = MetsFileUpdater.getInstance();
 
@@ -69,20 +58,11 @@ public class RenameFilesPlugin implements IStepPluginVersion2 {
     @Getter
     private PluginGuiType pluginGuiType = PluginGuiType.NONE;
 
-    private Process process;
-    private GoobiProperty property;
+    // The plugin instance only holds the configuration, all state of a renaming is kept in a RenamingRun
     @Getter
     private Step step;
     private String returnPath;
-
-    private VariableReplacer variableReplacer;
-    private DigitalDocument digitalDocument;
-    private List<String> configuredFoldersToRename;
-    private RenamingFormatter renamingFormatter;
-
-    private boolean updateMetsFile;
-    // Must be visible in test to compare correct update
-    OriginalFileNameHistory originalFileNameHistory;
+    private RenamingConfiguration configuration;
 
     // ###################################################################################
     // # Required plugin methods
@@ -105,6 +85,7 @@ public class RenameFilesPlugin implements IStepPluginVersion2 {
 
     @Override
     public boolean execute() {
+        // A renaming that was queued for asynchronous execution is not completed yet, the step is closed by the worker
         return PluginReturnValue.FINISH.equals(run());
     }
 
@@ -122,7 +103,7 @@ public class RenameFilesPlugin implements IStepPluginVersion2 {
     // # Original File Name History class
     // ###################################################################################
 
-    class OriginalFileNameHistory {
+    static class OriginalFileNameHistory {
         @SerializedName("originalFileNameMapping")
         private Map<String, Map<String, String>> perFolderCurrentToOriginalFileNameMapping = new HashMap<>();
 
@@ -135,15 +116,8 @@ public class RenameFilesPlugin implements IStepPluginVersion2 {
             return folderMapping.get(currentFileName);
         }
 
-        public void updateFileName(Path from, Path to) {
-            String fromFolder = extractFolderIdentifier(from);
-            String toFolder = extractFolderIdentifier(to);
-            if (!fromFolder.equals(toFolder)) {
-                throw new IllegalArgumentException("Moving files between folders (" + fromFolder + " -> " + toFolder + ") not permitted!");
-            }
-            Map<String, String> folderMapping = getOriginalFileNameMappingOfFolder(fromFolder);
-            String fromFile = extractFileName(from);
-            String toFile = extractFileName(to);
+        public void updateFileName(String folderIdentifier, String fromFile, String toFile) {
+            Map<String, String> folderMapping = getModifiableOriginalFileNameMappingOfFolder(folderIdentifier);
             String originalFileName = fromFile;
             if (folderMapping.containsKey(fromFile)) {
                 originalFileName = folderMapping.get(fromFile);
@@ -152,458 +126,138 @@ public class RenameFilesPlugin implements IStepPluginVersion2 {
             folderMapping.put(toFile, originalFileName);
         }
 
-        private String extractFolderIdentifier(Path path) {
-            // If path is pointing to a file, use the parent directory for folder identifier calculation
-            if (path.getFileName().toString().contains(".")) {
-                path = path.getParent();
-            }
-            return path.getParent().getFileName().toString() + "_"
-                    + path.getFileName().toString().substring(path.getFileName().toString().lastIndexOf("_") + 1);
+        public void putOriginalFileName(String folderIdentifier, String currentFile, String originalFile) {
+            getModifiableOriginalFileNameMappingOfFolder(folderIdentifier).put(currentFile, originalFile);
         }
 
-        private String extractFileName(Path path) {
-            return path.getFileName().toString();
-        }
-
-        private Map<String, String> getOriginalFileNameMappingOfFolder(String folderIdentifier) {
-            if (!perFolderCurrentToOriginalFileNameMapping.containsKey(folderIdentifier)) {
-                perFolderCurrentToOriginalFileNameMapping.put(folderIdentifier, new HashMap<>());
-            }
-            return perFolderCurrentToOriginalFileNameMapping.get(folderIdentifier);
+        public long getEntryCount() {
+            return perFolderCurrentToOriginalFileNameMapping.values().stream().mapToLong(Map::size).sum();
         }
 
-        @Override
-        public boolean equals(Object o) {
-            if (o == null || !(o instanceof OriginalFileNameHistory)) {
-                return false;
-            }
-            OriginalFileNameHistory other = (OriginalFileNameHistory) o;
-            return other.perFolderCurrentToOriginalFileNameMapping.equals(perFolderCurrentToOriginalFileNameMapping);
+        public Set<String> getFolderIdentifiers() {
+            return perFolderCurrentToOriginalFileNameMapping.keySet();
         }
 
-        @Override
-        public String toString() {
-            return perFolderCurrentToOriginalFileNameMapping.toString();
-        }
-    }
-
-    // ###################################################################################
-    // # Name formatter classes
-    // ###################################################################################
-
-    class OverlayVariableReplacer {
-        private final VariableReplacer variableReplacer;
-
-        public OverlayVariableReplacer(VariableReplacer variableReplacer) {
-            this.variableReplacer = variableReplacer;
-        }
-
-        public String replace(Path fileName, String replacement) {
-            replacement = internalReplacer(fileName, replacement);
-            return variableReplacer.replace(replacement);
-        }
-
-        private String internalReplacer(Path fileName, String replacement) {
-            if (CUSTOM_VARIABLE_ORIGINAL_FILE_NAME.equals(replacement)) {
-                String originalFileName = originalFileNameHistory.getOriginalFileNameOf(fileName);
-                // Remove file extension
-                if (originalFileName.contains(".")) {
-                    int fileExtensionIndex = originalFileName.lastIndexOf('.');
-                    originalFileName = originalFileName.substring(0, fileExtensionIndex);
+        /**
+         * Removes the entries of files that do not exist anymore and all entries of removed folders.
+         *
+         * @param currentFileNames the current file names by folder identifier, the entries of other folders are kept
+         * @param removedFolders the identifiers of folders that do not exist anymore
+         * @return the approximate number of bytes the serialized history shrinks by
+         */
+        public long prune(Map<String, Set<String>> currentFileNames, Set<String> removedFolders) {
+            long reclaimedBytes = 0;
+            Iterator<Map.Entry<String, Map<String, String>>> folders = perFolderCurrentToOriginalFileNameMapping.entrySet().iterator();
+            while (folders.hasNext()) {
+                Map.Entry<String, Map<String, String>> folder = folders.next();
+                Set<String> fileNames = currentFileNames.get(folder.getKey());
+                boolean removedFolder = removedFolders.contains(folder.getKey());
+                if (!removedFolder && fileNames == null) {
+                    continue;
+                }
+                Iterator<Map.Entry<String, String>> entries = folder.getValue().entrySet().iterator();
+                while (entries.hasNext()) {
+                    Map.Entry<String, String> entry = entries.next();
+                    if (removedFolder || !fileNames.contains(entry.getKey())) {
+                        // Both names are quoted and separated by a colon, entries are separated by commas
+                        reclaimedBytes += utf8Length(entry.getKey()) + utf8Length(entry.getValue()) + 6;
+                        entries.remove();
+                    }
+                }
+                if (folder.getValue().isEmpty()) {
+                    reclaimedBytes += utf8Length(folder.getKey()) + 6;
+                    folders.remove();
                 }
-                return originalFileName;
             }
-            return replacement;
+            return reclaimedBytes;
         }
-    }
 
-    class RenamingFormatter {
-        @NonNull
-        private final List<NamePart> nameParts;
-        @NonNull
-        @Getter
-        private final OverlayVariableReplacer replacer;
-        @Getter
-        private final int startValue;
-
-        public RenamingFormatter(OverlayVariableReplacer replacer, List<NamePart> nameParts, int startValue) {
-            this.replacer = replacer;
-            this.nameParts = nameParts;
-            this.startValue = startValue;
-            reset();
+        private long utf8Length(String value) {
+            return value.getBytes(StandardCharsets.UTF_8).length;
         }
 
-        public void reset() {
-            nameParts.stream().forEach(np -> np.reset(this));
+        public void writeState(FileNameHistoryLog.Batch batch) {
+            perFolderCurrentToOriginalFileNameMapping.forEach((folder, mapping) -> mapping.forEach((current, original) -> batch.state(folder,
+                    current, original)));
         }
 
-        public String generateNewName(Path oldName) throws PluginException {
-            StringBuilder sb = new StringBuilder();
-            for (NamePart namePart : nameParts) {
-                sb.append(namePart.generateNamePart(oldName));
+        public void applyRenamingPlan(RenamingPlan renamingPlan) {
+            for (int f = 0; f < renamingPlan.getFolderCount(); f++) {
+                String folderIdentifier = extractFolderIdentifierOfFolder(renamingPlan.getFolder(f));
+                for (int i = 0; i < renamingPlan.getRenamingCount(f); i++) {
+                    updateFileName(folderIdentifier, renamingPlan.getSource(f, i), renamingPlan.getTarget(f, i));
+                }
             }
-            return sb.toString();
-        }
-    }
-
-    @Data
-    @RequiredArgsConstructor
-    abstract class NamePart {
-        private OverlayVariableReplacer replacer;
-
-        public boolean allConditionsMatch(Path oldName) {
-            return this.conditions.stream().allMatch(c -> c.matches(replacer, oldName));
         }
 
-        @NonNull
-        private List<NamePartReplacement> replacements;
-        @NonNull
-        private List<NamePartCondition> conditions;
-
-        public String generateNamePart(Path oldName) throws PluginException {
-            if (!allConditionsMatch(oldName)) {
-                return "";
-            }
-            String result = generate(oldName);
-            for (NamePartReplacement r : replacements) {
-                result = r.replace(result);
+        private String extractFolderIdentifier(Path path) {
+            // If path is pointing to a file, use the parent directory for folder identifier calculation
+            if (path.getFileName().toString().contains(".")) {
+                path = path.getParent();
             }
-            return result;
+            return extractFolderIdentifierOfFolder(path);
         }
 
-        protected abstract String generate(Path oldName) throws PluginException;
-
-        protected void reset(RenamingFormatter parent) {
-            this.replacer = parent.getReplacer();
-        }
-    }
-
-    @RequiredArgsConstructor
-    class NamePartCondition {
-        public boolean matches(OverlayVariableReplacer replacer, Path oldName) {
-            String replacedValue = replacer.replace(oldName, value);
-            return replacedValue.matches(matches);
-        }
-
-        @NonNull
-        private String value;
-        @NonNull
-        private String matches;
-    }
-
-    @RequiredArgsConstructor
-    class NamePartReplacement {
-        public String replace(String value) {
-            return value.replaceAll(regex, replacement);
+        String extractFolderIdentifierOfFolder(Path folder) {
+            return folder.getParent().getFileName().toString() + "_"
+                    + folder.getFileName().toString().substring(folder.getFileName().toString().lastIndexOf("_") + 1);
         }
 
-        @NonNull
-        private String regex;
-        @NonNull
-        private String replacement;
-    }
-
-    class StaticNamePart extends NamePart {
-        private String staticPart;
-
-        public StaticNamePart(@NonNull List<NamePartReplacement> replacements, @NonNull List<NamePartCondition> conditions, String staticPart) {
-            super(replacements, conditions);
-            this.staticPart = staticPart;
-        }
-
-        @Override
-        protected String generate(Path oldName) {
-            return this.staticPart;
-        }
-    }
-
-    private Map<DocStruct, Integer> perStructureElementCounters;
-
-    class CounterNamePart extends NamePart {
-        private NumberFormat format;
-        private int startValue;
-        private int counter = 1;
-        private Optional<String> level;
-
-        public CounterNamePart(@NonNull List<NamePartReplacement> replacements, @NonNull List<NamePartCondition> conditions, String format,
-                String level) {
-            super(replacements, conditions);
-            this.format = new DecimalFormat(format);
-            this.level = Optional.ofNullable(level);
-        }
-
-        @Override
-        protected String generate(Path oldName) {
-            if (level.isPresent()) {
-                List<DocStruct> docStructs = findDocStructsForFile(oldName, level.get());
-                if (!docStructs.isEmpty()) {
-                    DocStruct ds = docStructs.getFirst();
-                    int lastValue;
-                    if (perStructureElementCounters.containsKey(ds)) {
-                        lastValue = perStructureElementCounters.get(ds);
-                    } else {
-                        lastValue = startValue - 1;
-                    }
-                    perStructureElementCounters.put(ds, lastValue + 1);
-                    return format.format(lastValue + 1);
-                } else {
-                    log.warn("No DocStruct found for file " + oldName + " with level " + level.get());
-                }
-            }
-            return format.format(counter++);
+        private String extractFileName(Path path) {
+            return path.getFileName().toString();
         }
 
-        @Override
-        protected void reset(RenamingFormatter parent) {
-            super.reset(parent);
-            this.startValue = parent.getStartValue();
-            this.counter = startValue;
+        /**
+         * Lookups do not modify the history, so they can be done concurrently while names are generated in parallel.
+         */
+        private Map<String, String> getOriginalFileNameMappingOfFolder(String folderIdentifier) {
+            return perFolderCurrentToOriginalFileNameMapping.getOrDefault(folderIdentifier, Collections.emptyMap());
         }
-    }
-
-    class VariableNamePart extends NamePart {
-        private String rawString;
-        private Optional<String> format;
 
-        public VariableNamePart(@NonNull List<NamePartReplacement> replacements, @NonNull List<NamePartCondition> conditions, String rawString,
-                String format) {
-            super(replacements, conditions);
-            this.rawString = rawString;
-            this.format = Optional.ofNullable(format);
+        private Map<String, String> getModifiableOriginalFileNameMappingOfFolder(String folderIdentifier) {
+            return perFolderCurrentToOriginalFileNameMapping.computeIfAbsent(folderIdentifier, k -> new HashMap<>());
         }
 
         @Override
-        protected String generate(Path oldName) throws PluginException {
-            var result = getReplacer().replace(oldName, rawString);
-            if (format.isPresent()) {
-                result = formatString(format.get(), result);
+        public boolean equals(Object o) {
+            if (o == null || !(o instanceof OriginalFileNameHistory)) {
+                return false;
             }
-            return result;
-        }
-    }
-
-    class MetadataNamePart extends NamePart {
-        private String metadataName;
-        private String docStructLevel;
-        private Optional<String> fallback;
-        private Optional<String> format;
-
-        public MetadataNamePart(@NonNull List<NamePartReplacement> replacements, @NonNull List<NamePartCondition> conditions, String metadataName,
-                String docStructLevel, String fallback, String format) {
-            super(replacements, conditions);
-            this.metadataName = metadataName;
-            this.docStructLevel = docStructLevel;
-            this.fallback = Optional.ofNullable(fallback);
-            this.format = Optional.ofNullable(format);
+            OriginalFileNameHistory other = (OriginalFileNameHistory) o;
+            return other.perFolderCurrentToOriginalFileNameMapping.equals(perFolderCurrentToOriginalFileNameMapping);
         }
 
         @Override
-        protected String generate(Path oldName) throws PluginException {
-            List<DocStruct> docStructs = findDocStructsForFile(oldName, docStructLevel);
-
-            List<Metadata> matchingMetadata = docStructs.stream()
-                    .flatMap(ds -> ds.getAllMetadata().stream())
-                    .filter(md -> md.getType().getName().equals(this.metadataName))
-                    .toList();
-
-            var result = matchingMetadata.stream()
-                    .findFirst()
-                    .map(Metadata::getValue)
-                    .orElseThrow(() -> new PluginException("No metadata found for page \"" + oldName + "\" and metadata \"" + metadataName
-                            + "\" on level \"" + docStructLevel + "\""));
-            if (format.isPresent()) {
-                result = formatString(format.get(), result);
-            }
-            return result;
-        }
-    }
-
-    private String formatString(String format, String value) throws PluginException {
-        try {
-            return String.format(format, value);
-        } catch (IllegalFormatException e) {
-            try {
-                return String.format(format, Integer.parseInt(value));
-            } catch (NumberFormatException e1) {
-                throw new PluginException("Illegal format string: " + format + " for value: " + value);
-            }
-        }
-    }
-
-    private List<DocStruct> findDocStructsForFile(Path fileName, String level) {
-        try {
-            // find physical page for file
-            DocStruct page = digitalDocument.getPhysicalDocStruct()
-                    .getAllChildren()
-                    .stream()
-                    .filter(c -> this.fileMatchesDocStruct(c.getImageName(), fileName.toFile().getName()))
-                    .findFirst()
-                    .orElseThrow();
-
-            List<DocStruct> result = new LinkedList<>();
-            // add anchor if available
-            if (digitalDocument.getLogicalDocStruct().getType().isAnchor()) {
-                result.add(digitalDocument.getLogicalDocStruct());
-            }
-
-            // find all references to the page
-            result.addAll(page.getAllFromReferences()
-                    .stream()
-                    .map(Reference::getSource)
-                    .toList());
-
-            if (level != null) {
-                result.removeIf(ds -> !ds.getType().getName().equals(level));
-            }
-
-            return result;
-        } catch (NullPointerException | NoSuchElementException e) {
-            return Collections.emptyList();
+        public String toString() {
+            return perFolderCurrentToOriginalFileNameMapping.toString();
         }
     }
 
-    private boolean fileMatchesDocStruct(String imageName, String fileName) {
-        return imageName.substring(0, imageName.lastIndexOf('.'))
-                .equals(fileName.substring(0, fileName.lastIndexOf('.')));
-    }
-
     // ###################################################################################
-    // # Plugin initialization and formatter setup
+    // # Plugin initialization
     // ###################################################################################
 
     @Override
     public void initialize(Step step, String returnPath) {
         log.debug("================= Starting RenameFilesPlugin =================");
         this.step = step;
-        this.process = step.getProzess();
         this.returnPath = returnPath;
         // TODO: Plugin initialization should also throw exceptions!
         try {
-            this.digitalDocument = getDigitalDocument();
-            this.variableReplacer = getVariableReplacer();
-            this.perStructureElementCounters = new HashMap<>();
             SubnodeConfiguration myconfig = ConfigPlugins.getProjectAndStepConfig(title, step);
-            loadPluginConfiguration(myconfig);
+            configuration = new RenamingConfiguration(myconfig);
         } catch (PluginException e) {
             log.error(e.getMessage());
             log.error(e);
+            return;
         }
-    }
-
-    private DigitalDocument getDigitalDocument() throws PluginException {
-        try {
-            return process.readMetadataFile().getDigitalDocument();
-        } catch (ReadException | IOException | SwapException | PreferencesException | NullPointerException e1) {
-            throw new PluginException("Errors happened while trying to initialize the Fileformat and VariableReplacer", e1);
-        }
-    }
-
-    private VariableReplacer getVariableReplacer() throws PluginException {
-        try {
-            Fileformat fileformat = process.readMetadataFile();
-            return new VariableReplacer(fileformat != null ? fileformat.getDigitalDocument() : null,
-                    process.getRegelsatz().getPreferences(), process, step);
-        } catch (ReadException | IOException | SwapException | PreferencesException e1) {
-            throw new PluginException("Errors happened while trying to initialize the Fileformat and VariableReplacer", e1);
-        }
-    }
-
-    private void loadPluginConfiguration(SubnodeConfiguration config) throws PluginException {
-        configuredFoldersToRename = config.getList("folder")
-                .stream()
-                .map(Object::toString)
-                .collect(Collectors.toList());
-        log.debug("configuredFoldersToRename = " + configuredFoldersToRename);
-
-        int counterStartValue = config.getInt("startValue", 1);
-
-        try {
-            List<NamePart> nameParts = config.configurationsAt("namepart")
-                    .stream()
-                    .map(this::parseNamePartConfiguration)
-                    .collect(Collectors.toList());
-            renamingFormatter = new RenamingFormatter(new OverlayVariableReplacer(getVariableReplacer()), nameParts, counterStartValue);
-        } catch (IllegalArgumentException e) {
-            throw new PluginException("Error during namepart parsing!", e);
-        }
-
-        this.updateMetsFile = config.getBoolean("updateMetsFile", true);
-    }
-
-    private NamePart parseNamePartConfiguration(HierarchicalConfiguration namePartXML) throws IllegalArgumentException {
-        String type = namePartXML.getString("@type");
-        String level = namePartXML.getString("@level", null);
-        String fallback = namePartXML.getString("@fallback", null);
-        String format = namePartXML.getString("@format", null);
-        String value = namePartXML.getString(".");
-        List<NamePartReplacement> replacements = parseReplacements(namePartXML.configurationsAt("replace"));
-        List<NamePartCondition> conditions = parseConditions(namePartXML.configurationsAt("condition"));
-
-        switch (type) {
-            case NAME_PART_TYPE_STATIC:
-                return new StaticNamePart(replacements, conditions, value);
-            case NAME_PART_TYPE_COUNTER:
-                return new CounterNamePart(replacements, conditions, value, level);
-            case NAME_PART_TYPE_VARIABLE:
-                return new VariableNamePart(replacements, conditions, value, format);
-            case NAME_PART_TYPE_METADATA:
-                return new MetadataNamePart(replacements, conditions, value, level, fallback, format);
-            case NAME_PART_TYPE_ORIGINAL_FILE_NAME:
-                return new VariableNamePart(replacements, conditions, CUSTOM_VARIABLE_ORIGINAL_FILE_NAME, format);
-            default:
-                throw new IllegalArgumentException("Unable to parse namepart configuration of type \"" + type + "\"!");
-        }
-    }
-
-    private @NonNull List<NamePartReplacement> parseReplacements(
-            List<HierarchicalConfiguration> replacementConfigs) {
-        return replacementConfigs.stream()
-                .map(config -> new NamePartReplacement(config.getString("@regex", ""),
-                        config.getString("@replacement", "")))
-                .collect(Collectors.toList());
-    }
-
-    private @NonNull List<NamePartCondition> parseConditions(List<HierarchicalConfiguration> configs) {
-        return configs.stream()
-                .map(
-                        config -> new NamePartCondition(config.getString("@value", ""), config.getString("@matches", "")))
-                .collect(Collectors.toList());
-    }
-
-    private GoobiProperty initializeProcessProperty(Process process) {
-        List<GoobiProperty> props = process.getProperties();
-        for (GoobiProperty p : props) {
-            if (PROPERTY_TITLE.equals(p.getPropertyName())) {
-                return p;
+        if (configuration.isAsynchronousExecution()) {
+            try {
+                RenamingRun.resumeQueuedRenamings(configuration, configurationHelper);
+            } catch (IOException e) {
+                log.error("Unable to resume the queued renamings", e);
             }
         }
-
-        property = new GoobiProperty(PropertyOwnerType.PROCESS);
-        property.setOwner(process);
-        property.setPropertyName(PROPERTY_TITLE);
-
-        return property;
-    }
-
-    private void updateProcessPropertyWithNewFileNameHistory() {
-        property.setPropertyValue(serializeOriginalFileNameHistoryIntoJson(originalFileNameHistory));
-    }
-
-    private void saveProcessProperty() {
-        PropertyManager.saveProperty(property);
-    }
-
-    private OriginalFileNameHistory deserializeOriginalFileNameHistoryFromJson(String json) {
-        OriginalFileNameHistory originalFileNameHistory = gson.fromJson(json, OriginalFileNameHistory.class);
-        // Initialize empty, if deserialization was not successful
-        if (originalFileNameHistory == null) {
-            originalFileNameHistory = new OriginalFileNameHistory();
-        }
-        return originalFileNameHistory;
-    }
-
-    private String serializeOriginalFileNameHistoryIntoJson(OriginalFileNameHistory originalFileNameHistory) {
-        return gson.toJson(originalFileNameHistory);
     }
 
     // ###################################################################################
@@ -612,176 +266,61 @@ public class RenameFilesPlugin implements IStepPluginVersion2 {
 
     @Override
     public PluginReturnValue run() {
-        try {
-            property = initializeProcessProperty(step.getProzess());
-            originalFileNameHistory = deserializeOriginalFileNameHistoryFromJson(this.property.getPropertyValue());
-            List<Path> foldersToRename = determineFoldersToRename();
-            log.trace("Performing renaming in these folders: " + foldersToRename.stream().map(Path::toString).collect(Collectors.joining(", ")));
-            Map<Path, Path> renamingMapping = determineRenamingForAllFilesInAllFolders(foldersToRename);
-            if (renamingMapping.isEmpty()) {
-                log.info("Nothing to rename.");
-                return PluginReturnValue.FINISH;
-            }
-            // Find an order of renamings that is conflict free (i. e. does not rename a file to a name that is already present due to ordering issues)
-            List<Path> orderedRenamingOrigins = findConflictFreeRenamingOrder(renamingMapping);
-            if (!canRenamingWithoutConflicts(renamingMapping, orderedRenamingOrigins)) {
-                log.error("Cannot perform renaming without conflicts. Aborting...");
-                return PluginReturnValue.ERROR;
-            }
-            performRenaming(renamingMapping, orderedRenamingOrigins);
-            if (updateMetsFile) {
-                metsFileUpdater.updateMetsFile(process, renamingMapping);
-            }
-            updateProcessPropertyWithNewFileNameHistory();
-            saveProcessProperty();
-        } catch (IOException | PluginException | SwapException | DAOException e) {
-            String message = "Error during file renaming";
-            Helper.setFehlerMeldung(message, e);
-            log.error(message, e);
-            JournalEntry le = new JournalEntry(step.getProzess().getId(), new Date(), "- automatic -", LogType.ERROR, message + ": " + e.getMessage(), JournalEntry.EntryType.PROCESS);
-            JournalManager.saveJournalEntry(le);
-            return PluginReturnValue.ERROR;
-        }
-
-        return PluginReturnValue.FINISH;
-    }
-
-    private List<Path> determineFoldersToRename() throws IOException, SwapException, DAOException {
-        List<Path> result = new LinkedList<>();
-        for (String folderSpecification : configuredFoldersToRename) {
-            result.addAll(determineRealPathsForConfiguredFolder(folderSpecification));
-        }
-        return result.stream().distinct().collect(Collectors.toList());
+        return run(step);
     }
 
-    private List<Path> determineRealPathsForConfiguredFolder(String configuredFolder) throws IOException, SwapException, DAOException {
-        if ("*".equals(configuredFolder)) {
-            return determineDefaultFoldersToRename();
-        } else {
-            return transformConfiguredFolderSpecificationToRealPath(configuredFolder);
-        }
+    /**
+     * Renames the files of the process of the given step with the configuration of this plugin instance. The configuration is not changed
+     * by a renaming, so one instance can rename the files of several processes concurrently.
+     */
+    public PluginReturnValue run(Step step) {
+        return createRenamingRun(step).execute();
     }
 
-    private List<Path> determineDefaultFoldersToRename() throws IOException, SwapException, DAOException {
-        return List.of(
-                Paths.get(process.getImagesOrigDirectory(false)),
-                Paths.get(process.getImagesTifDirectory(false)),
-                Paths.get(process.getOcrAltoDirectory()),
-                Paths.get(process.getOcrPdfDirectory()),
-                Paths.get(process.getOcrTxtDirectory()),
-                Paths.get(process.getOcrXmlDirectory()))
-                .stream()
-                .filter(this::pathIsPresent)
-                .collect(Collectors.toList());
+    /**
+     * Creates the state of a single renaming of the process of the given step. Every call creates a new run, nothing of it is kept by the
+     * plugin.
+     */
+    RenamingRun createRenamingRun(Step step) {
+        return new RenamingRun(configuration, step, metsFileUpdater, configurationHelper);
     }
 
-    private List<Path> transformConfiguredFolderSpecificationToRealPath(String folderSpecification) throws IOException, SwapException {
-        String folder = configurationHelper.getAdditionalProcessFolderName(folderSpecification);
-        folder = variableReplacer.replace(folder);
-        Path configuredFolder = Paths.get(process.getImagesDirectory(), folder);
-        return List.of(configuredFolder);
-    }
-
-    private boolean pathIsPresent(Path path) {
-        return StorageProvider.getInstance().isDirectory(path);
-    }
-
-    private Map<Path, Path> determineRenamingForAllFilesInAllFolders(List<Path> foldersToRename) throws PluginException {
-        Map<Path, Path> result = new TreeMap<>();
-        for (Path folder : foldersToRename) {
-            result.putAll(determineRenamingForAllFilesInFolder(folder));
-        }
-        return result;
-    }
-
-    private Map<Path, Path> determineRenamingForAllFilesInFolder(Path folder) throws PluginException {
-        // This checks if the file == directory exists
-        if (!StorageProvider.getInstance().isFileExists(folder)) {
-            return Collections.emptyMap();
-        }
-        if (!StorageProvider.getInstance().isDirectory(folder)) {
-            throw new PluginException(
-                    "Cannot rename all files in directory. The given path \"" + folder.toString() + "\" is a file and not a directory!");
-        }
-
-        Map<Path, Path> result = new TreeMap<>();
-
-        List<Path> filesToRename = StorageProvider.getInstance().listFiles(folder.toString());
-        Collections.sort(filesToRename);
-        perStructureElementCounters.clear();
-        renamingFormatter.reset();
-
-        for (Path file : filesToRename) {
-            String oldFullFileName = file.getFileName().toString();
-            int extensionIndex = oldFullFileName.lastIndexOf(".");
-            String fileExtension = oldFullFileName.substring(extensionIndex + 1);
-            String newFullFileName = renamingFormatter.generateNewName(file) + "." + fileExtension;
-
-            if (!oldFullFileName.equals(newFullFileName)) {
-                result.put(Paths.get(folder.toString(), oldFullFileName), Paths.get(folder.toString(), newFullFileName));
-            }
-        }
-
-        return result;
-    }
-
-    private List<Path> findConflictFreeRenamingOrder(Map<Path, Path> renamingMapping) {
-        Map<Path, Path> temporaryMapping = new HashMap<>(renamingMapping);
-        List<Path> orderedFileRenamingSources = new LinkedList<>();
-        while (!temporaryMapping.isEmpty()) {
-            Optional<Path> conflictFreeRenamingSource = findConflictFreeRenamingSource(temporaryMapping);
-            if (conflictFreeRenamingSource.isPresent()) {
-                orderedFileRenamingSources.add(conflictFreeRenamingSource.get());
-                temporaryMapping.remove(conflictFreeRenamingSource.get());
+    /**
+     * Executes a queued renaming with the configuration of its step and closes the step afterwards, or sets it to error if the renaming
+     * failed. The lease handed over by the planning run is released in any case.
+     */
+    static void executeQueuedRenaming(RenameJobQueue.Job job) {
+        try {
+            Step step = StepManager.getStepById(job.getStepId());
+            if (step == null) {
+                log.error("Discarding renaming job " + job.getId() + ", the step " + job.getStepId() + " does not exist anymore");
+                return;
             }
-        }
-        return orderedFileRenamingSources;
-    }
-
-    private Optional<Path> findConflictFreeRenamingSource(Map<Path, Path> temporaryMapping) {
-        for (Map.Entry<Path, Path> e : temporaryMapping.entrySet()) {
-            if (isConflictFree(temporaryMapping, e)) {
-                return Optional.of(e.getKey());
+            PluginReturnValue result;
+            try {
+                RenameFilesPlugin plugin = new RenameFilesPlugin();
+                plugin.initialize(step, null);
+                result = plugin.createRenamingRun(step).executePlannedRenaming(RenamingPlan.fromRecords(job.getPlan()), job.getId());
+            } catch (RuntimeException e) {
+                String message = "Error during queued file renaming";
+                log.error(message, e);
+                JournalEntry entry = new JournalEntry(job.getProcessId(), new Date(), "- automatic -", LogType.ERROR, message + ": " + e,
+                        JournalEntry.EntryType.PROCESS);
+                JournalManager.saveJournalEntry(entry);
+                result = PluginReturnValue.ERROR;
             }
-        }
-        return Optional.empty();
-    }
-
-    private boolean isConflictFree(Map<Path, Path> mapping, Entry<Path, Path> itemToCheck) {
-        for (Map.Entry<Path, Path> e : mapping.entrySet()) {
-            if (itemToCheck.getValue().equals(e.getKey())) {
-                return false;
+            if (PluginReturnValue.FINISH.equals(result)) {
+                CloseStepHelper.closeStep(step, null);
+                return;
             }
-        }
-        return true;
-    }
-
-    private boolean canRenamingWithoutConflicts(Map<Path, Path> renamingMapping, List<Path> orderedRenamingOrigins) {
-        // Only rename a file once
-        if (renamingMapping.keySet().stream().distinct().count() != renamingMapping.size()) {
-            return false;
-        }
-        // Only rename to any file once
-        if (renamingMapping.values().stream().distinct().count() != renamingMapping.size()) {
-            return false;
-        }
-        // Rename all files
-        if (renamingMapping.size() != orderedRenamingOrigins.size()) {
-            return false;
-        }
-        return true;
-    }
-
-    private void performRenaming(Map<Path, Path> renamingMap, List<Path> orderedRenamingOrigins) throws IOException {
-        try {
-            for (Path from : orderedRenamingOrigins) {
-                Path to = renamingMap.get(from);
-                StorageProvider.getInstance().move(from, to);
-                originalFileNameHistory.updateFileName(from, to);
+            step.setBearbeitungsstatusEnum(StepStatus.ERROR);
+            try {
+                StepManager.saveStep(step);
+            } catch (DAOException e) {
+                log.error("Unable to set the step " + step.getTitel() + " of process " + job.getProcessId() + " to error", e);
             }
-        } catch (IOException e) {
-            log.error("Error during renaming. The renamed files might be inconsistent");
-            throw e;
+        } finally {
+            RenamingRun.releaseLeaseOfQueuedJob(job.getId());
         }
     }
 }
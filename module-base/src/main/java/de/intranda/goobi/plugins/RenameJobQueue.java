@@ -0,0 +1,171 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import lombok.Data;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Persistent queue of planned renamings, based on one JSON file per job in a directory that can be shared by all workers. Pending jobs are
+ * claimed in the order they were enqueued by atomically moving their file into the directory of running jobs, so every job is claimed by
+ * exactly one worker. The file name of a running job contains the host and the process id of its worker, jobs of workers that ended before
+ * completing them are put back into the queue by {@link #requeueOrphanedJobs()}.
+ */
+@Log4j2
+public class RenameJobQueue {
+    private static final String PENDING_DIRECTORY = "pending";
+    private static final String RUNNING_DIRECTORY = "running";
+    private static final String JOB_FILE_SUFFIX = ".json";
+    private static final String WORKER_SEPARATOR = "#";
+    private static final Gson gson = new Gson();
+
+    private final Path pendingDirectory;
+    private final Path runningDirectory;
+    private final String workerPrefix;
+
+    @Data
+    public static class Job {
+        private String id;
+        private int processId;
+        private int stepId;
+        private long enqueuedAt;
+        private List<RenamingPlan.FolderRecord> plan;
+        // Name of the file while the job is running, not persisted
+        private transient Path runningFile;
+    }
+
+    public RenameJobQueue(Path directory) throws IOException {
+        this.pendingDirectory = directory.resolve(PENDING_DIRECTORY);
+        this.runningDirectory = directory.resolve(RUNNING_DIRECTORY);
+        this.workerPrefix = determineHostName() + WORKER_SEPARATOR + ProcessHandle.current().pid() + WORKER_SEPARATOR;
+        Files.createDirectories(pendingDirectory);
+        Files.createDirectories(runningDirectory);
+    }
+
+    public Path getDirectory() {
+        return pendingDirectory.getParent();
+    }
+
+    /**
+     * Persists the job, it is visible to the workers only after it was written completely.
+     */
+    public void enqueue(Job job) throws IOException {
+        if (job.getId() == null) {
+            job.setId(UUID.randomUUID().toString());
+        }
+        job.setEnqueuedAt(System.currentTimeMillis());
+        // The zero padded time keeps the lexical order of the file names in the order of the jobs
+        String fileName = String.format("%015d-%s%s", job.getEnqueuedAt(), job.getId(), JOB_FILE_SUFFIX);
+        Path temporaryFile = pendingDirectory.resolve(fileName + ".tmp");
+        Files.writeString(temporaryFile, gson.toJson(job), StandardCharsets.UTF_8);
+        Files.move(temporaryFile, pendingDirectory.resolve(fileName), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Claims the oldest pending job.
+     *
+     * @return the job or null, if no job is pending
+     */
+    public Job claim() throws IOException {
+        for (Path pendingFile : listJobFiles(pendingDirectory)) {
+            Path runningFile = runningDirectory.resolve(workerPrefix + pendingFile.getFileName());
+            try {
+                Files.move(pendingFile, runningFile, StandardCopyOption.ATOMIC_MOVE);
+            } catch (NoSuchFileException e) {
+                // Claimed by another worker in the meantime
+                continue;
+            }
+            try {
+                Job job = gson.fromJson(Files.readString(runningFile, StandardCharsets.UTF_8), Job.class);
+                job.setRunningFile(runningFile);
+                return job;
+            } catch (JsonParseException e) {
+                log.error("Discarding unreadable renaming job " + pendingFile.getFileName(), e);
+                Files.deleteIfExists(runningFile);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes the job from the queue, regardless of whether it succeeded.
+     */
+    public void complete(Job job) throws IOException {
+        if (job.getRunningFile() != null) {
+            Files.deleteIfExists(job.getRunningFile());
+        }
+    }
+
+    public int getPendingJobCount() throws IOException {
+        return listJobFiles(pendingDirectory).size();
+    }
+
+    /**
+     * Puts the running jobs of workers on this host back into the queue, if the worker process does not exist anymore. Jobs of workers on
+     * other hosts are left untouched, since it cannot be determined whether they are still running.
+     *
+     * @return the number of requeued jobs
+     */
+    public int requeueOrphanedJobs() throws IOException {
+        String hostPrefix = determineHostName() + WORKER_SEPARATOR;
+        int requeued = 0;
+        for (Path runningFile : listJobFiles(runningDirectory)) {
+            String fileName = runningFile.getFileName().toString();
+            if (!fileName.startsWith(hostPrefix)) {
+                continue;
+            }
+            String[] parts = fileName.substring(hostPrefix.length()).split(WORKER_SEPARATOR, 2);
+            if (parts.length < 2 || isWorkerAlive(parts[0])) {
+                continue;
+            }
+            try {
+                Files.move(runningFile, pendingDirectory.resolve(parts[1]), StandardCopyOption.ATOMIC_MOVE);
+                log.warn("Requeued renaming job " + parts[1] + " of the ended worker " + parts[0]);
+                requeued++;
+            } catch (NoSuchFileException e) {
+                // Requeued by another worker in the meantime
+            }
+        }
+        return requeued;
+    }
+
+    private boolean isWorkerAlive(String pid) {
+        try {
+            return ProcessHandle.of(Long.parseLong(pid)).map(ProcessHandle::isAlive).orElse(false);
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    private List<Path> listJobFiles(Path directory) throws IOException {
+        List<Path> result = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + JOB_FILE_SUFFIX)) {
+            stream.forEach(result::add);
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    private static String determineHostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "unknown";
+        }
+    }
+}
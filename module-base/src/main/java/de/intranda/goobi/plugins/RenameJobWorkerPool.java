@@ -0,0 +1,183 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Workers draining a {@link RenameJobQueue} in the background. There is at most one running pool per queue directory in a JVM, the number
+ * of workers of the pool started for a directory limits how many planned renamings are executed concurrently. The workers stop once the
+ * queue was empty for a while or the pool is shut down, the next queued job starts a new pool. Jobs left over from before a restart are
+ * resumed when the plugin is initialized.
+ */
+@Log4j2
+public class RenameJobWorkerPool {
+    private static final long POLL_INTERVAL_MILLIS = 1000;
+    private static final long IDLE_TIMEOUT_MILLIS = 60_000;
+    // Guarded by itself, pools are only started and stopped while holding it
+    private static final Map<Path, RenameJobWorkerPool> pools = new HashMap<>();
+
+    private final RenameJobQueue queue;
+    private final Consumer<RenameJobQueue.Job> jobHandler;
+    private final ExecutorService workers;
+    private final AtomicInteger busyWorkers = new AtomicInteger();
+    private volatile long lastActivity = System.currentTimeMillis();
+    private volatile boolean stopped = false;
+
+    private RenameJobWorkerPool(RenameJobQueue queue, int workerCount, Consumer<RenameJobQueue.Job> jobHandler) {
+        this.queue = queue;
+        this.jobHandler = jobHandler;
+        AtomicInteger workerNumber = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerCount, r -> {
+            Thread thread = new Thread(r, "rename-files-worker-" + workerNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < workerCount; i++) {
+            workers.submit(this::work);
+        }
+    }
+
+    /**
+     * Starts the workers of the queue, unless they are already running. Jobs left over by ended workers are put back into the queue first.
+     */
+    public static RenameJobWorkerPool start(RenameJobQueue queue, int workerCount, Consumer<RenameJobQueue.Job> jobHandler) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("At least one worker is required!");
+        }
+        synchronized (pools) {
+            return pools.computeIfAbsent(queue.getDirectory(), directory -> {
+                try {
+                    queue.requeueOrphanedJobs();
+                } catch (IOException e) {
+                    log.warn("Unable to requeue the orphaned renaming jobs in " + directory, e);
+                }
+                log.info("Starting " + workerCount + " renaming workers for the queue " + directory);
+                return new RenameJobWorkerPool(queue, workerCount, jobHandler);
+            });
+        }
+    }
+
+    /**
+     * Starts the workers of the queue for the jobs left over from before a restart, unless they are already running. Running jobs of ended
+     * workers are put back into the queue, the workers are only started if any job is pending afterwards.
+     *
+     * @return the running pool or null, if no job is pending
+     */
+    public static RenameJobWorkerPool resume(RenameJobQueue queue, int workerCount, Consumer<RenameJobQueue.Job> jobHandler)
+            throws IOException {
+        synchronized (pools) {
+            RenameJobWorkerPool pool = pools.get(queue.getDirectory());
+            if (pool != null) {
+                return pool;
+            }
+            queue.requeueOrphanedJobs();
+            int pendingJobs = queue.getPendingJobCount();
+            if (pendingJobs == 0) {
+                return null;
+            }
+            log.info("Resuming " + pendingJobs + " queued renaming jobs in " + queue.getDirectory());
+            return start(queue, workerCount, jobHandler);
+        }
+    }
+
+    /**
+     * Stops the workers of all queues, see {@link #shutdown(long)}.
+     */
+    public static void shutdownAll(long timeoutMillis) throws InterruptedException {
+        List<RenameJobWorkerPool> runningPools;
+        synchronized (pools) {
+            runningPools = new ArrayList<>(pools.values());
+        }
+        for (RenameJobWorkerPool pool : runningPools) {
+            pool.shutdown(timeoutMillis);
+        }
+    }
+
+    /**
+     * Stops claiming jobs and waits for the running jobs to complete. Jobs that are still pending stay in the queue.
+     *
+     * @return false if the running jobs did not complete in time
+     */
+    public boolean shutdown(long timeoutMillis) throws InterruptedException {
+        stop();
+        return workers.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    private void stop() {
+        synchronized (pools) {
+            pools.remove(queue.getDirectory(), this);
+            stopped = true;
+        }
+        workers.shutdown();
+    }
+
+    /**
+     * Stops the pool if no job was executed for a while and none is pending. The check holds the lock of the pools, so a job queued
+     * concurrently is either seen here or finds no running pool and starts a new one.
+     */
+    private boolean stopIfIdle() throws IOException {
+        synchronized (pools) {
+            if (stopped) {
+                return true;
+            }
+            if (busyWorkers.get() > 0 || System.currentTimeMillis() - lastActivity < IDLE_TIMEOUT_MILLIS || queue.getPendingJobCount() > 0) {
+                return false;
+            }
+            log.info("Stopping the idle renaming workers of the queue " + queue.getDirectory());
+            stop();
+            return true;
+        }
+    }
+
+    private void work() {
+        while (!stopped && !Thread.currentThread().isInterrupted()) {
+            RenameJobQueue.Job job = null;
+            try {
+                job = queue.claim();
+                if (job == null) {
+                    if (stopIfIdle()) {
+                        return;
+                    }
+                    Thread.sleep(POLL_INTERVAL_MILLIS);
+                    continue;
+                }
+                busyWorkers.incrementAndGet();
+                log.debug("Executing renaming job " + job.getId() + " of process " + job.getProcessId());
+                jobHandler.accept(job);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException | RuntimeException e) {
+                log.error("Renaming job " + (job != null ? job.getId() : "") + " failed", e);
+            } finally {
+                if (job != null) {
+                    complete(job);
+                    lastActivity = System.currentTimeMillis();
+                    busyWorkers.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    private void complete(RenameJobQueue.Job job) {
+        try {
+            queue.complete(job);
+        } catch (IOException e) {
+            log.error("Unable to remove the renaming job " + job.getId() + " from the queue", e);
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package de.intranda.goobi.plugins;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.apache.commons.configuration.SubnodeConfiguration;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Configuration of the plugin for a step. It is read once and not changed by the renamings, so it can be shared by concurrent runs.
+ */
+@Log4j2
+@Getter
+class RenamingConfiguration {
+    private static final String NAME_PART_TYPE_STATIC = "static";
+    private static final String NAME_PART_TYPE_COUNTER = "counter";
+    private static final String NAME_PART_TYPE_VARIABLE = "variable";
+    private static final String NAME_PART_TYPE_METADATA = "metadata";
+    private static final String NAME_PART_TYPE_ORIGINAL_FILE_NAME = "originalfilename";
+    private static final String NAME_PART_TYPE_IMAGE_HEADER = "imageheader";
+    private static final String NAME_PART_TYPE_HASH = "hash";
+    private static final String NAME_PART_TYPE_ATTRIBUTE = "attribute";
+    // Variables of the VariableReplacer that read the metadata of the METS file, like {meta.CatalogIDDigital} or $(metas.Author)
+    private static final Pattern METADATA_VARIABLE = Pattern.compile("[({]metas?\\.");
+    static final String HISTORY_STORAGE_PROPERTY = "property";
+    static final String HISTORY_STORAGE_FILE = "file";
+    static final String RENAMING_REPORT_NONE = "none";
+    static final String MODE_RENAME = "rename";
+    static final String MODE_RESTORE = "restore";
+    static final String MODE_VERIFY = "verify";
+    private static final String LEASE_NONE = "none";
+    private static final String LEASE_FILE = "file";
+    private static final String EXECUTION_SYNCHRONOUS = "synchronous";
+    private static final String EXECUTION_ASYNCHRONOUS = "asynchronous";
+    private static final String STRATEGY_FIXED = "fixed";
+    private static final String STRATEGY_ADAPTIVE = "adaptive";
+
+    private List<String> configuredFoldersToRename;
+    private RenamingFormatter renamingFormatter;
+    private ConditionTable conditionTable;
+    // Whether variables of name parts, conditions or folders reference the metadata of the METS file
+    private boolean metadataVariablesReferenced;
+    // Whether name parts look up the structure elements of the files
+    private boolean structureNeeded;
+
+    private String mode;
+    private boolean updateMetsFile;
+    private OcrFileUpdater ocrFileUpdater;
+    private boolean verifyAfterRenaming;
+    private int moveThreads;
+    private int objectStorageMoveThreads;
+    private int maxCollisions;
+    private boolean streamingMetsUpdate;
+    private boolean pipelinedExecution;
+    private boolean parallelGeneration;
+    private boolean adaptiveStrategy;
+    private boolean folderPipelining;
+    private int folderPipelineDepth;
+    private String historyStorage;
+    private int historyCompactionThreshold;
+    private boolean historyPruning;
+    private String renamingReport;
+    private int renamingReportFlushInterval;
+    private ProcessLeaseProvider leaseProvider;
+    private RetryPolicy moveRetryPolicy;
+    private double circuitBreakerFailureRate;
+    private int circuitBreakerWindow;
+    private RateLimiter operationRateLimiter;
+    private RateLimiter byteRateLimiter;
+    private OffPeakWindow offPeakWindow;
+    private boolean asynchronousExecution;
+    private int asyncWorkers;
+    private String asyncQueueDirectory;
+
+    RenamingConfiguration(SubnodeConfiguration config) throws PluginException {
+        loadPluginConfiguration(config);
+    }
+
+    private void loadPluginConfiguration(SubnodeConfiguration config) throws PluginException {
+        configuredFoldersToRename = config.getList("folder")
+                .stream()
+                .map(Object::toString)
+                .collect(Collectors.toList());
+        log.debug("configuredFoldersToRename = " + configuredFoldersToRename);
+
+        int counterStartValue = config.getInt("startValue", 1);
+
+        try {
+            conditionTable = new ConditionTable();
+            List<NamePart> nameParts = config.configurationsAt("namepart")
+                    .stream()
+                    .map(this::parseNamePartConfiguration)
+                    .collect(Collectors.toList());
+            renamingFormatter = new RenamingFormatter(nameParts, counterStartValue, conditionTable);
+            analyzeMetsFileUsage(nameParts);
+        } catch (IllegalArgumentException e) {
+            throw new PluginException("Error during namepart parsing!", e);
+        }
+
+        this.mode = config.getString("mode", MODE_RENAME);
+        if (!MODE_RENAME.equals(mode) && !MODE_RESTORE.equals(mode) && !MODE_VERIFY.equals(mode)) {
+            throw new PluginException("Unknown mode \"" + mode + "\"!");
+        }
+        this.updateMetsFile = config.getBoolean("updateMetsFile", true);
+        if (config.getBoolean("updateOcrFiles", false)) {
+            try {
+                this.ocrFileUpdater = new OcrFileUpdater(config.getInt("ocrUpdateThreads", Runtime.getRuntime().availableProcessors()));
+            } catch (IllegalArgumentException e) {
+                throw new PluginException("Invalid OCR update configuration!", e);
+            }
+        } else {
+            this.ocrFileUpdater = null;
+        }
+        this.verifyAfterRenaming = config.getBoolean("verifyAfterRenaming", false);
+        this.moveThreads = config.getInt("moveThreads", 1);
+        this.objectStorageMoveThreads = config.getInt("objectStorageMoveThreads", 16);
+        this.maxCollisions = config.getInt("maxCollisions", 10);
+        this.streamingMetsUpdate = config.getBoolean("streamingMetsUpdate", false);
+        this.pipelinedExecution = config.getBoolean("pipelinedExecution", false);
+        this.parallelGeneration = config.getBoolean("parallelGeneration", false);
+        String strategy = config.getString("strategy", STRATEGY_FIXED);
+        if (!STRATEGY_FIXED.equals(strategy) && !STRATEGY_ADAPTIVE.equals(strategy)) {
+            throw new PluginException("Unknown strategy \"" + strategy + "\"!");
+        }
+        this.adaptiveStrategy = STRATEGY_ADAPTIVE.equals(strategy);
+        this.folderPipelining = config.getBoolean("folderPipelining", false);
+        this.folderPipelineDepth = config.getInt("folderPipelineDepth", 2);
+        if (folderPipelineDepth < 1) {
+            throw new PluginException("The folder pipeline depth must be at least 1!");
+        }
+        this.historyStorage = config.getString("historyStorage", HISTORY_STORAGE_PROPERTY);
+        if (!HISTORY_STORAGE_PROPERTY.equals(historyStorage) && !HISTORY_STORAGE_FILE.equals(historyStorage)) {
+            throw new PluginException("Unknown history storage \"" + historyStorage + "\"!");
+        }
+        this.historyCompactionThreshold = config.getInt("historyCompactionThreshold", 10000);
+        this.historyPruning = config.getBoolean("historyPruning", true);
+        this.renamingReport = config.getString("renamingReport", RENAMING_REPORT_NONE);
+        this.renamingReportFlushInterval = config.getInt("renamingReportFlushInterval", 1000);
+        if (!RENAMING_REPORT_NONE.equals(renamingReport) && !RenamingReport.FORMAT_CSV.equals(renamingReport)
+                && !RenamingReport.FORMAT_JSON_LINES.equals(renamingReport)) {
+            throw new PluginException("Unknown renaming report format \"" + renamingReport + "\"!");
+        }
+        String leaseType = config.getString("lease", LEASE_NONE);
+        if (LEASE_FILE.equals(leaseType)) {
+            this.leaseProvider = new LockFileLeaseProvider(Duration.ofSeconds(config.getInt("leaseTimeout", 300)));
+        } else if (LEASE_NONE.equals(leaseType)) {
+            this.leaseProvider = null;
+        } else {
+            throw new PluginException("Unknown lease type \"" + leaseType + "\"!");
+        }
+        try {
+            this.moveRetryPolicy = new RetryPolicy(config.getInt("moveRetries", 0), config.getLong("moveRetryDelay", 500),
+                    config.getLong("moveRetryMaxDelay", 30000));
+            this.circuitBreakerFailureRate = config.getDouble("circuitBreakerFailureRate", 0.5);
+            this.circuitBreakerWindow = config.getInt("circuitBreakerWindow", 20);
+            // Validates the configuration, every run uses its own breaker
+            new CircuitBreaker(circuitBreakerFailureRate, circuitBreakerWindow);
+        } catch (IllegalArgumentException e) {
+            throw new PluginException("Invalid retry configuration!", e);
+        }
+        try {
+            String rateLimitGroup = config.getString("rateLimitGroup", "default");
+            double operationRate = config.getDouble("rateLimitOperations", 0);
+            double byteRate = config.getDouble("rateLimitBytes", 0);
+            // Limiters are shared by all instances of the same group, so concurrent renamings do not multiply the rate
+            this.operationRateLimiter = operationRate > 0 ? RateLimiter.getShared(rateLimitGroup + ".operations", operationRate) : null;
+            this.byteRateLimiter = byteRate > 0 ? RateLimiter.getShared(rateLimitGroup + ".bytes", byteRate) : null;
+            String window = config.getString("offPeakWindow", null);
+            this.offPeakWindow = window == null || window.isBlank() ? null : OffPeakWindow.parse(window);
+        } catch (IllegalArgumentException e) {
+            throw new PluginException("Invalid rate limit configuration!", e);
+        }
+        String execution = config.getString("execution", EXECUTION_SYNCHRONOUS);
+        if (!EXECUTION_SYNCHRONOUS.equals(execution) && !EXECUTION_ASYNCHRONOUS.equals(execution)) {
+            throw new PluginException("Unknown execution \"" + execution + "\"!");
+        }
+        this.asynchronousExecution = EXECUTION_ASYNCHRONOUS.equals(execution);
+        this.asyncWorkers = config.getInt("asyncWorkers", 2);
+        if (asyncWorkers < 1) {
+            throw new PluginException("At least one asynchronous worker is required!");
+        }
+        this.asyncQueueDirectory = config.getString("asyncQueueDirectory", null);
+    }
+
+    /**
+     * Determines whether a run needs the METS file for the name generation: metadata name parts and counters with a level look up the
+     * structure elements of the files, variables like <code>{meta.CatalogIDDigital}</code> in variable name parts, conditions or folders read
+     * its metadata. All other runs only read the METS file if it is updated or verified, and the adaptive strategy updates only its file
+     * section by streaming.
+     */
+    private void analyzeMetsFileUsage(List<NamePart> nameParts) {
+        this.structureNeeded = nameParts.stream()
+                .anyMatch(p -> p instanceof MetadataNamePart || p instanceof CounterNamePart c && c.hasLevel());
+        List<String> resolvedValues = new ArrayList<>(configuredFoldersToRename);
+        nameParts.stream()
+                .filter(VariableNamePart.class::isInstance)
+                .map(p -> ((VariableNamePart) p).getRawString())
+                .forEach(resolvedValues::add);
+        resolvedValues.addAll(conditionTable.getValues());
+        this.metadataVariablesReferenced = resolvedValues.stream().anyMatch(RenamingConfiguration::referencesMetadataVariables);
+        log.debug("METS file needed for the name generation: structure = " + structureNeeded + ", metadata variables = "
+                + metadataVariablesReferenced);
+    }
+
+    static boolean referencesMetadataVariables(String value) {
+        return value != null && METADATA_VARIABLE.matcher(value).find();
+    }
+
+    private NamePart parseNamePartConfiguration(HierarchicalConfiguration namePartXML) throws IllegalArgumentException {
+        String type = namePartXML.getString("@type");
+        String level = namePartXML.getString("@level", null);
+        String fallback = namePartXML.getString("@fallback", null);
+        String format = namePartXML.getString("@format", null);
+        String value = namePartXML.getString(".");
+        String algorithm = namePartXML.getString("@algorithm", "SHA-256");
+        List<NamePartReplacement> replacements = parseReplacements(namePartXML.configurationsAt("replace"));
+        List<NamePartCondition> conditions = parseConditions(namePartXML.configurationsAt("condition"));
+
+        switch (type) {
+            case NAME_PART_TYPE_STATIC:
+                return new StaticNamePart(replacements, conditions, value);
+            case NAME_PART_TYPE_COUNTER:
+                return new CounterNamePart(replacements, conditions, value, level);
+            case NAME_PART_TYPE_VARIABLE:
+                return new VariableNamePart(replacements, conditions, value, format);
+            case NAME_PART_TYPE_METADATA:
+                return new MetadataNamePart(replacements, conditions, value, level, fallback, format);
+            case NAME_PART_TYPE_ORIGINAL_FILE_NAME:
+                return new VariableNamePart(replacements, conditions, OverlayVariableReplacer.CUSTOM_VARIABLE_ORIGINAL_FILE_NAME, format);
+            case NAME_PART_TYPE_IMAGE_HEADER:
+                return new ImageHeaderNamePart(replacements, conditions, value, fallback, format);
+            case NAME_PART_TYPE_HASH:
+                return new HashNamePart(replacements, conditions, value, algorithm);
+            case NAME_PART_TYPE_ATTRIBUTE:
+                return new AttributeNamePart(replacements, conditions, value, format);
+            default:
+                throw new IllegalArgumentException("Unable to parse namepart configuration of type \"" + type + "\"!");
+        }
+    }
+
+    private @NonNull List<NamePartReplacement> parseReplacements(
+            List<HierarchicalConfiguration> replacementConfigs) {
+        return replacementConfigs.stream()
+                .map(config -> new NamePartReplacement(config.getString("@regex", ""),
+                        config.getString("@replacement", "")))
+                .collect(Collectors.toList());
+    }
+
+    private @NonNull List<NamePartCondition> parseConditions(List<HierarchicalConfiguration> configs) {
+        return configs.stream()
+                .map(config -> conditionTable.compile(config.getString("@value", ""), config.getString("@matches", "")))
+                .collect(Collectors.toList());
+    }
+}
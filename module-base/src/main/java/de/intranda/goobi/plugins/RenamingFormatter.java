@@ -0,0 +1,160 @@
+package de.intranda.goobi.plugins;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.stream.IntStream;
+
+import lombok.Getter;
+import lombok.NonNull;
+import ugh.dl.DocStruct;
+
+/**
+ * Compiled name part configuration. It is not modified while names are generated, the counters are kept in the {@link RenamingRun}.
+ */
+class RenamingFormatter {
+    @NonNull
+    private final List<NamePart> nameParts;
+    @Getter
+    private final int startValue;
+    @NonNull
+    private final ConditionTable conditionTable;
+
+    public RenamingFormatter(List<NamePart> nameParts, int startValue, ConditionTable conditionTable) {
+        this.nameParts = List.copyOf(nameParts);
+        this.startValue = startValue;
+        this.conditionTable = conditionTable;
+    }
+
+    public boolean needsFileAttributes() {
+        return nameParts.stream().anyMatch(AttributeNamePart.class::isInstance);
+    }
+
+    public boolean needsContentHashes() {
+        return nameParts.stream().anyMatch(HashNamePart.class::isInstance);
+    }
+
+    /**
+     * Reads the file attributes, image headers and content digests of all files of a folder in parallel, as far as any name part needs
+     * them. Only the values of one folder are kept.
+     */
+    public void prefetch(RenamingRun renamingRun, List<Path> files) throws PluginException {
+        renamingRun.clearFolderCaches();
+        if (needsFileAttributes()) {
+            renamingRun.readFolderAttributes(files);
+            // Only files that were not found by the folder pass are read one by one
+            runInParallelChunks(files.size(), i -> renamingRun.getFileAttributes(files.get(i)));
+            renamingRun.determineCaptureOrder(files);
+        }
+        if (nameParts.stream().anyMatch(ImageHeaderNamePart.class::isInstance)) {
+            runInParallelChunks(files.size(), i -> renamingRun.getImageHeader(files.get(i)));
+        }
+        List<String> hashAlgorithms = nameParts.stream()
+                .filter(HashNamePart.class::isInstance)
+                .map(namePart -> ((HashNamePart) namePart).getAlgorithm())
+                .distinct()
+                .toList();
+        for (String algorithm : hashAlgorithms) {
+            runInParallelChunks(files.size(), i -> renamingRun.getContentHash(files.get(i), algorithm));
+        }
+    }
+
+    public String generateNewName(RenamingRun renamingRun, Path oldName) throws PluginException {
+        ConditionTable.FileConditions fileConditions = conditionTable.forFile(renamingRun, oldName);
+        StringBuilder sb = new StringBuilder();
+        for (NamePart namePart : nameParts) {
+            sb.append(namePart.generateNamePart(renamingRun, oldName, fileConditions));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Generates the names of all files of a folder with the same result as calling generateNewName for every file in order. The variables
+     * that do not depend on the file are resolved first. The first parallel pass evaluates all conditions and looks up the structure
+     * elements of counters with a level. The counter values are then assigned sequentially, which is cheap, and the second parallel pass
+     * generates the names.
+     */
+    public List<String> generateNewNamesInParallel(RenamingRun renamingRun, List<Path> files) throws PluginException {
+        renamingRun.getReplacer().resolveInAdvance(getReplacedValues());
+        int fileCount = files.size();
+        int partCount = nameParts.size();
+        boolean[][] active = new boolean[fileCount][partCount];
+        DocStruct[][] counterDocStructs = new DocStruct[fileCount][partCount];
+        runInParallelChunks(fileCount, i -> {
+            Path file = files.get(i);
+            ConditionTable.FileConditions fileConditions = conditionTable.forFile(renamingRun, file);
+            for (int p = 0; p < partCount; p++) {
+                NamePart namePart = nameParts.get(p);
+                active[i][p] = namePart.allConditionsMatch(fileConditions);
+                if (active[i][p] && namePart instanceof CounterNamePart counterNamePart) {
+                    counterDocStructs[i][p] = counterNamePart.findCounterDocStruct(renamingRun, file);
+                }
+            }
+        });
+
+        String[][] counterValues = new String[fileCount][partCount];
+        for (int i = 0; i < fileCount; i++) {
+            for (int p = 0; p < partCount; p++) {
+                if (active[i][p] && nameParts.get(p) instanceof CounterNamePart counterNamePart) {
+                    counterValues[i][p] = counterNamePart.nextValue(renamingRun, counterDocStructs[i][p]);
+                }
+            }
+        }
+
+        String[] result = new String[fileCount];
+        runInParallelChunks(fileCount, i -> {
+            StringBuilder sb = new StringBuilder();
+            for (int p = 0; p < partCount; p++) {
+                if (active[i][p]) {
+                    NamePart namePart = nameParts.get(p);
+                    String value = counterValues[i][p] != null ? counterValues[i][p] : namePart.generate(renamingRun, files.get(i));
+                    sb.append(namePart.applyReplacements(value));
+                }
+            }
+            result[i] = sb.toString();
+        });
+        return Arrays.asList(result);
+    }
+
+    private Set<String> getReplacedValues() {
+        Set<String> replacedValues = new HashSet<>(conditionTable.getValues());
+        nameParts.stream()
+                .filter(VariableNamePart.class::isInstance)
+                .forEach(namePart -> replacedValues.add(((VariableNamePart) namePart).getRawString()));
+        return replacedValues;
+    }
+
+    private interface FileIndexTask {
+        void run(int index) throws PluginException;
+    }
+
+    private static void runInParallelChunks(int count, FileIndexTask task) throws PluginException {
+        int chunkSize = Math.max(1, count / (Runtime.getRuntime().availableProcessors() * 4));
+        int chunkCount = (count + chunkSize - 1) / chunkSize;
+        try {
+            IntStream.range(0, chunkCount).parallel().forEach(chunk -> {
+                int end = Math.min(count, (chunk + 1) * chunkSize);
+                for (int i = chunk * chunkSize; i < end; i++) {
+                    try {
+                        task.run(i);
+                    } catch (PluginException e) {
+                        throw new CompletionException(e);
+                    }
+                }
+            });
+        } catch (CompletionException e) {
+            // The exception might be wrapped again when it is rethrown in the calling thread
+            Throwable cause = e.getCause();
+            while (cause != null && !(cause instanceof PluginException)) {
+                cause = cause.getCause();
+            }
+            if (cause != null) {
+                throw (PluginException) cause;
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package de.intranda.goobi.plugins;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import lombok.Data;
+
+/**
+ * Compact representation of all renamings of a process. Every folder is stored only once, the renamings of a folder are kept as parallel arrays
+ * of interned file names. Paths are only created when a single renaming is executed.
+ */
+public class RenamingPlan {
+    private final List<Path> folders = new ArrayList<>();
+    private final List<String[]> sources = new ArrayList<>();
+    private final List<String[]> targets = new ArrayList<>();
+    // Start indices of the independent renaming chains of each folder, only known after orderForExecution
+    private final List<int[]> chainStarts = new ArrayList<>();
+    private final Map<String, String> namePool = new HashMap<>();
+    private int size = 0;
+
+    /**
+     * Serializable form of the renamings of one folder, used to persist a plan until it is executed.
+     */
+    @Data
+    public static class FolderRecord {
+        private String folder;
+        private String[] sources;
+        private String[] targets;
+        private int[] chainStarts;
+    }
+
+    /**
+     * Creates a plan from a mapping of full paths. Source and target of each renaming must be located in the same folder.
+     */
+    public static RenamingPlan fromMapping(Map<Path, Path> renamingMapping) {
+        Map<Path, List<Map.Entry<Path, Path>>> perFolderRenamings = new LinkedHashMap<>();
+        for (Map.Entry<Path, Path> e : renamingMapping.entrySet()) {
+            if (!e.getKey().getParent().equals(e.getValue().getParent())) {
+                throw new IllegalArgumentException("Moving files between folders (" + e.getKey() + " -> " + e.getValue() + ") not permitted!");
+            }
+            perFolderRenamings.computeIfAbsent(e.getKey().getParent(), k -> new ArrayList<>()).add(e);
+        }
+        RenamingPlan plan = new RenamingPlan();
+        for (Map.Entry<Path, List<Map.Entry<Path, Path>>> folder : perFolderRenamings.entrySet()) {
+            List<String> folderSources = new ArrayList<>();
+            List<String> folderTargets = new ArrayList<>();
+            for (Map.Entry<Path, Path> e : folder.getValue()) {
+                folderSources.add(e.getKey().getFileName().toString());
+                folderTargets.add(e.getValue().getFileName().toString());
+            }
+            plan.addFolder(folder.getKey(), folderSources, folderTargets);
+        }
+        return plan;
+    }
+
+    /**
+     * Adds the renamings of one folder. Both lists contain plain file names, the renaming at index i renames folderSources[i] to folderTargets[i].
+     */
+    public void addFolder(Path folder, List<String> folderSources, List<String> folderTargets) {
+        if (folderSources.size() != folderTargets.size()) {
+            throw new IllegalArgumentException("Sources and targets of folder " + folder + " need to be the same size!");
+        }
+        if (folderSources.isEmpty()) {
+            return;
+        }
+        folders.add(folder);
+        sources.add(intern(folderSources));
+        targets.add(intern(folderTargets));
+        chainStarts.add(null);
+        size += folderSources.size();
+    }
+
+    private String[] intern(List<String> names) {
+        String[] result = new String[names.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = namePool.computeIfAbsent(names.get(i), n -> n);
+        }
+        return result;
+    }
+
+    public int getFolderCount() {
+        return folders.size();
+    }
+
+    public Path getFolder(int folderIndex) {
+        return folders.get(folderIndex);
+    }
+
+    public int getRenamingCount(int folderIndex) {
+        return sources.get(folderIndex).length;
+    }
+
+    public String getSource(int folderIndex, int renamingIndex) {
+        return sources.get(folderIndex)[renamingIndex];
+    }
+
+    public String getTarget(int folderIndex, int renamingIndex) {
+        return targets.get(folderIndex)[renamingIndex];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int getChainCount(int folderIndex) {
+        return getChainStarts(folderIndex).length;
+    }
+
+    public int getChainStart(int folderIndex, int chainIndex) {
+        return getChainStarts(folderIndex)[chainIndex];
+    }
+
+    /**
+     * @return the index after the last renaming of the chain
+     */
+    public int getChainEnd(int folderIndex, int chainIndex) {
+        int[] starts = getChainStarts(folderIndex);
+        return chainIndex + 1 < starts.length ? starts[chainIndex + 1] : getRenamingCount(folderIndex);
+    }
+
+    private int[] getChainStarts(int folderIndex) {
+        int[] starts = chainStarts.get(folderIndex);
+        if (starts == null) {
+            throw new IllegalStateException("Renamings of folder " + folders.get(folderIndex) + " are not ordered for execution yet!");
+        }
+        return starts;
+    }
+
+    /**
+     * Reorders the renamings of every folder, such that no file is renamed to a name that is still in use by a file renamed later on. The
+     * renamings of a folder form disjoint chains (a -> b, b -> c, ...) that are executed back to front. Different chains do not depend on
+     * each other and can be executed concurrently. Requires unique targets, see {@link CollisionDetector}.
+     *
+     * @return false if the renamings contain a cycle and cannot be ordered, the plan is left unchanged in that case
+     */
+    public boolean orderForExecution() {
+        List<int[]> orders = new ArrayList<>(folders.size());
+        List<int[]> starts = new ArrayList<>(folders.size());
+        for (int f = 0; f < folders.size(); f++) {
+            List<Integer> folderChainStarts = new ArrayList<>();
+            int[] order = findConflictFreeOrder(sources.get(f), targets.get(f), folderChainStarts);
+            if (order == null) {
+                return false;
+            }
+            orders.add(order);
+            starts.add(folderChainStarts.stream().mapToInt(Integer::intValue).toArray());
+        }
+        for (int f = 0; f < folders.size(); f++) {
+            sources.set(f, permute(sources.get(f), orders.get(f)));
+            targets.set(f, permute(targets.get(f), orders.get(f)));
+            chainStarts.set(f, starts.get(f));
+        }
+        return true;
+    }
+
+    private int[] findConflictFreeOrder(String[] folderSources, String[] folderTargets, List<Integer> folderChainStarts) {
+        int n = folderSources.length;
+        Map<String, Integer> indexBySource = new HashMap<>(n * 2);
+        Set<String> targetNames = new HashSet<>(n * 2);
+        for (int i = 0; i < n; i++) {
+            indexBySource.put(folderSources[i], i);
+            targetNames.add(folderTargets[i]);
+        }
+
+        int[] order = new int[n];
+        boolean[] ordered = new boolean[n];
+        int position = 0;
+        for (int i = 0; i < n; i++) {
+            // Only start chains at renamings whose source is not the target of another renaming
+            if (targetNames.contains(folderSources[i])) {
+                continue;
+            }
+            int chainStart = position;
+            folderChainStarts.add(chainStart);
+            int current = i;
+            while (current >= 0 && !ordered[current]) {
+                order[position++] = current;
+                ordered[current] = true;
+                Integer next = indexBySource.get(folderTargets[current]);
+                current = next == null ? -1 : next;
+            }
+            // The end of the chain needs to be renamed first
+            for (int left = chainStart, right = position - 1; left < right; left++, right--) {
+                int swap = order[left];
+                order[left] = order[right];
+                order[right] = swap;
+            }
+        }
+        // Renamings that are not part of any chain form a cycle
+        return position == n ? order : null;
+    }
+
+    private String[] permute(String[] names, int[] order) {
+        String[] result = new String[names.length];
+        for (int i = 0; i < order.length; i++) {
+            result[i] = names[order[i]];
+        }
+        return result;
+    }
+
+    public List<FolderRecord> toRecords() {
+        List<FolderRecord> result = new ArrayList<>(folders.size());
+        for (int f = 0; f < folders.size(); f++) {
+            FolderRecord folderRecord = new FolderRecord();
+            folderRecord.setFolder(folders.get(f).toString());
+            folderRecord.setSources(sources.get(f));
+            folderRecord.setTargets(targets.get(f));
+            folderRecord.setChainStarts(chainStarts.get(f));
+            result.add(folderRecord);
+        }
+        return result;
+    }
+
+    /**
+     * Restores a plan from its records, including the order for execution, if the plan was ordered when the records were created.
+     */
+    public static RenamingPlan fromRecords(List<FolderRecord> records) {
+        RenamingPlan plan = new RenamingPlan();
+        for (FolderRecord folderRecord : records) {
+            plan.addFolder(Paths.get(folderRecord.getFolder()), List.of(folderRecord.getSources()), List.of(folderRecord.getTargets()));
+            if (folderRecord.getSources().length > 0) {
+                plan.chainStarts.set(plan.chainStarts.size() - 1, folderRecord.getChainStarts());
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * @return a plan that renames all files of this plan back to their former names, ordered for execution
+     */
+    public RenamingPlan inverse() {
+        RenamingPlan result = new RenamingPlan();
+        for (int f = 0; f < folders.size(); f++) {
+            result.addFolder(folders.get(f), List.of(targets.get(f)), List.of(sources.get(f)));
+        }
+        // The inverse of a cycle free plan is cycle free
+        result.orderForExecution();
+        return result;
+    }
+
+    /**
+     * @param selected the selected renamings by folder index and renaming index
+     * @return a plan with only the selected renamings, for example the renamings executed before a failure
+     */
+    public RenamingPlan subset(boolean[][] selected) {
+        RenamingPlan result = new RenamingPlan();
+        for (int f = 0; f < folders.size(); f++) {
+            List<String> folderSources = new ArrayList<>();
+            List<String> folderTargets = new ArrayList<>();
+            for (int i = 0; i < sources.get(f).length; i++) {
+                if (selected[f][i]) {
+                    folderSources.add(sources.get(f)[i]);
+                    folderTargets.add(targets.get(f)[i]);
+                }
+            }
+            if (!folderSources.isEmpty()) {
+                result.addFolder(folders.get(f), folderSources, folderTargets);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Combines the plans of different folders into one plan, keeping their order for execution.
+     */
+    public static RenamingPlan concat(List<RenamingPlan> plans) {
+        List<FolderRecord> records = new ArrayList<>();
+        for (RenamingPlan plan : plans) {
+            records.addAll(plan.toRecords());
+        }
+        return fromRecords(records);
+    }
+
+    /**
+     * Materializes the plan as a mapping of full paths. Only intended for logging and tests.
+     */
+    public Map<Path, Path> toMapping() {
+        Map<Path, Path> result = new HashMap<>();
+        for (int f = 0; f < folders.size(); f++) {
+            Path folder = folders.get(f);
+            for (int i = 0; i < getRenamingCount(f); i++) {
+                result.put(folder.resolve(getSource(f, i)), folder.resolve(getTarget(f, i)));
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,93 @@
+package de.intranda.goobi.plugins;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+
+import com.google.gson.JsonObject;
+
+import lombok.Getter;
+
+/**
+ * Audit report of a renaming run that is written while the files are moved. Every move is written as one line, either as CSV or as JSON
+ * object (JSON lines). The lines are buffered and flushed in batches, so the report does not slow down the renaming noticeably. Moves can be
+ * recorded concurrently.
+ */
+public class RenamingReport implements Closeable {
+    public static final String FORMAT_CSV = "csv";
+    public static final String FORMAT_JSON_LINES = "jsonl";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String CSV_HEADER = "timestamp,folder,source,target,durationMicros";
+
+    @Getter
+    private final Path file;
+    private final boolean csv;
+    private final int flushInterval;
+    private final BufferedWriter writer;
+    private int unflushedLines = 0;
+
+    /**
+     * Creates a new report file. An existing file with the same name is replaced.
+     *
+     * @param format either {@link #FORMAT_CSV} or {@link #FORMAT_JSON_LINES}
+     * @param flushInterval number of lines after which the buffered lines are written to the file
+     */
+    public RenamingReport(Path file, String format, int flushInterval) throws IOException {
+        if (!FORMAT_CSV.equals(format) && !FORMAT_JSON_LINES.equals(format)) {
+            throw new IllegalArgumentException("Unknown renaming report format \"" + format + "\"!");
+        }
+        this.file = file;
+        this.csv = FORMAT_CSV.equals(format);
+        this.flushInterval = Math.max(1, flushInterval);
+        this.writer = new BufferedWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8), BUFFER_SIZE);
+        if (csv) {
+            writer.write(CSV_HEADER);
+            writer.newLine();
+        }
+    }
+
+    public synchronized void record(Path folder, String source, String target, Instant timestamp, long durationNanos) throws IOException {
+        long durationMicros = durationNanos / 1000;
+        if (csv) {
+            writer.write(timestamp.toString());
+            writer.write(',');
+            writer.write(escapeCsv(folder.toString()));
+            writer.write(',');
+            writer.write(escapeCsv(source));
+            writer.write(',');
+            writer.write(escapeCsv(target));
+            writer.write(',');
+            writer.write(Long.toString(durationMicros));
+        } else {
+            JsonObject entry = new JsonObject();
+            entry.addProperty("timestamp", timestamp.toString());
+            entry.addProperty("folder", folder.toString());
+            entry.addProperty("source", source);
+            entry.addProperty("target", target);
+            entry.addProperty("durationMicros", durationMicros);
+            writer.write(entry.toString());
+        }
+        writer.newLine();
+        if (++unflushedLines >= flushInterval) {
+            writer.flush();
+            unflushedLines = 0;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    private static String escapeCsv(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+}
@@ -0,0 +1,1633 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.goobi.beans.GoobiProperty;
+import org.goobi.beans.GoobiProperty.PropertyOwnerType;
+import org.goobi.beans.JournalEntry;
+import org.goobi.beans.Process;
+import org.goobi.beans.Step;
+import org.goobi.production.enums.LogType;
+import org.goobi.production.enums.PluginReturnValue;
+
+import com.google.gson.Gson;
+
+import de.intranda.goobi.plugins.RenameFilesPlugin.OriginalFileNameHistory;
+import de.sub.goobi.config.ConfigurationHelper;
+import de.sub.goobi.helper.Helper;
+import de.sub.goobi.helper.StorageProvider;
+import de.sub.goobi.helper.StorageProviderInterface;
+import de.sub.goobi.helper.VariableReplacer;
+import de.sub.goobi.helper.exceptions.DAOException;
+import de.sub.goobi.helper.exceptions.SwapException;
+import de.sub.goobi.persistence.managers.JournalManager;
+import de.sub.goobi.persistence.managers.PropertyManager;
+import lombok.Data;
+import lombok.extern.log4j.Log4j2;
+import ugh.dl.ContentFile;
+import ugh.dl.DigitalDocument;
+import ugh.dl.DocStruct;
+import ugh.dl.Reference;
+import ugh.exceptions.PreferencesException;
+import ugh.exceptions.ReadException;
+
+/**
+ * State of the renaming of a single process. A run is created for every renaming by the plugin and only shares the configuration with other
+ * runs.
+ */
+@Log4j2
+class RenamingRun {
+    private static final String FOLDER_ALL = "*";
+    private static final String FOLDER_PATTERN_REGEX_PREFIX = "regex:";
+    // Minimum number of moves executed by one task of the concurrent renaming
+    private static final int CONCURRENT_MOVE_BATCH_SIZE = 256;
+    // Below this number of files per folder the parallel name generation is not worth the overhead
+    private static final int PARALLEL_GENERATION_MIN_FILES = 256;
+    private static final String RENAME_JOB_QUEUE_DIRECTORY = "rename_files_queue";
+
+    private final RenamingConfiguration configuration;
+    private final MetsFileUpdater metsFileUpdater;
+    private final ConfigurationHelper configurationHelper;
+    private final Gson gson = new Gson();
+    private final ImageHeaderReader imageHeaderReader = new ImageHeaderReader();
+    private final Step step;
+    private final Process process;
+    private GoobiProperty property;
+    // The METS file is read on first use, runs that do not need it never read it
+    private volatile VariableReplacer variableReplacer;
+    private volatile boolean variableReplacerWithDocument;
+    private OverlayVariableReplacer replacer;
+    private DigitalDocument digitalDocument;
+    private volatile boolean digitalDocumentRead;
+    private volatile boolean metadataVariablesUsed;
+    private final Map<DocStruct, Integer> perStructureElementCounters = new HashMap<>();
+    private final Map<CounterNamePart, Integer> counters = new IdentityHashMap<>();
+    private ProcessLease lease;
+    // Leases handed over by the planning runs to their queued jobs by job id, they are kept until the job is completed
+    private static final Map<String, ProcessLease> leasesOfQueuedJobs = new ConcurrentHashMap<>();
+    // Folders are resolved once per run, the subfolders of the images directory are only listed once
+    private List<Path> foldersToRename;
+    private Path imagesDirectory;
+    private Set<String> imagesSubfolderNames;
+    private final Set<Path> existingFolders = new HashSet<>();
+    // The listings of the folders taken before the renaming and the folders found missing, used to prune the file name history
+    private final Map<Path, List<Path>> folderListings = new HashMap<>();
+    private final Set<Path> missingFolders = new HashSet<>();
+    private int prunedHistoryEntries = 0;
+    // Number of entries of the history log the history was read from, -1 if it was not read from a log
+    private long historyLogEntries = -1;
+    // Must be visible in test to compare correct update
+    OriginalFileNameHistory originalFileNameHistory;
+    // Must be visible in test to check the collected statistics
+    final RenamingMetrics metrics = new RenamingMetrics();
+    // Image headers of the files of the current folder, read in parallel before the names are generated
+    private final Map<Path, Map<Integer, String>> imageHeaders = new ConcurrentHashMap<>();
+    // Content digests of the files of the current folder by algorithm and path, computed in parallel before the names are generated
+    private final Map<String, String> contentHashes = new ConcurrentHashMap<>();
+    private ContentHashCache contentHashCache;
+    // File attributes of the current folder, read in parallel before the names are generated
+    private final Map<Path, FileAttributes> fileAttributes = new ConcurrentHashMap<>();
+    private final Map<Path, Integer> captureOrder = new HashMap<>();
+    private final CircuitBreaker circuitBreaker;
+    // Set while executed renamings are renamed back after a failure
+    private volatile boolean rollingBack;
+    private final ExecutionStrategy strategy;
+
+    RenamingRun(RenamingConfiguration configuration, Step step, MetsFileUpdater metsFileUpdater, ConfigurationHelper configurationHelper) {
+        this.configuration = configuration;
+        this.metsFileUpdater = metsFileUpdater;
+        this.configurationHelper = configurationHelper;
+        this.step = step;
+        this.process = step.getProzess();
+        this.metadataVariablesUsed = configuration.isMetadataVariablesReferenced();
+        this.circuitBreaker = new CircuitBreaker(configuration.getCircuitBreakerFailureRate(), configuration.getCircuitBreakerWindow());
+        this.strategy = new ExecutionStrategy(configuration.isParallelGeneration(), configuration.getMoveThreads(),
+                configuration.isStreamingMetsUpdate(), configuration.isPipelinedExecution());
+        if (configuration.isAdaptiveStrategy()) {
+            // Small folders are still generated sequentially
+            strategy.setParallelGeneration(true);
+            strategy.addReason("generation", "names of folders with at least " + PARALLEL_GENERATION_MIN_FILES + " files are generated in parallel");
+        }
+        adaptMoveThreadsToStorage();
+    }
+
+    /**
+     * Moves files concurrently if the process data is stored on S3, where the storage provider renames every file by a copy and a delete.
+     */
+    private void adaptMoveThreadsToStorage() {
+        if (configurationHelper.useS3()) {
+            strategy.adaptToObjectStorage(configuration.getObjectStorageMoveThreads());
+        }
+    }
+
+    OverlayVariableReplacer getReplacer() {
+        return replacer;
+    }
+
+    /**
+     * The attributes of a file, dates in milliseconds since the epoch.
+     */
+    @Data
+    static class FileAttributes {
+        private final long size;
+        private final long modified;
+        private final long created;
+    }
+
+    /**
+     * Drops the image headers, content digests and file attributes of the previous folder.
+     */
+    void clearFolderCaches() {
+        imageHeaders.clear();
+        contentHashes.clear();
+        fileAttributes.clear();
+        captureOrder.clear();
+    }
+
+    Map<Integer, String> getImageHeader(Path file) throws PluginException {
+        Map<Integer, String> header = imageHeaders.get(file);
+        if (header == null) {
+            try {
+                header = imageHeaderReader.read(file);
+            } catch (IOException e) {
+                throw new PluginException("Cannot read the image header of file \"" + file + "\"", e);
+            }
+            imageHeaders.put(file, header);
+        }
+        return header;
+    }
+
+    /**
+     * Reads the attributes of all files of a folder in one pass over the folder, which provides the attributes together with the listing,
+     * so no request per file is needed. Files that are not found on the local file system, for example on an S3 storage, are left to
+     * {@link #getFileAttributes(Path)}.
+     */
+    void readFolderAttributes(List<Path> files) throws PluginException {
+        if (files.isEmpty() || !Files.isDirectory(files.get(0).getParent())) {
+            return;
+        }
+        Path folder = files.get(0).getParent();
+        Set<Path> wantedFiles = new HashSet<>(files);
+        try {
+            Files.walkFileTree(folder, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    if (wantedFiles.contains(file)) {
+                        fileAttributes.put(file, new FileAttributes(attributes.size(), attributes.lastModifiedTime().toMillis(),
+                                attributes.creationTime().toMillis()));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            throw new PluginException("Cannot read the attributes of the files in folder \"" + folder + "\"", e);
+        }
+    }
+
+    /**
+     * @return the attributes read by {@link #readFolderAttributes(List)} or otherwise read through the storage provider
+     */
+    FileAttributes getFileAttributes(Path file) throws PluginException {
+        FileAttributes attributes = fileAttributes.get(file);
+        if (attributes == null) {
+            StorageProviderInterface storageProvider = StorageProvider.getInstance();
+            try {
+                attributes = new FileAttributes(storageProvider.getFileSize(file), storageProvider.getLastModifiedDate(file),
+                        storageProvider.getCreationDate(file));
+            } catch (IOException e) {
+                throw new PluginException("Cannot read the attributes of file \"" + file + "\"", e);
+            }
+            fileAttributes.put(file, attributes);
+        }
+        return attributes;
+    }
+
+    /**
+     * Determines the capture order of the files of the current folder, which is the order of modification. Files modified at the same time
+     * are ordered by name. Requires the attributes of all files to be read.
+     */
+    void determineCaptureOrder(List<Path> files) throws PluginException {
+        List<Path> filesByModification = new ArrayList<>(files);
+        Map<Path, Long> modified = new HashMap<>();
+        for (Path file : files) {
+            modified.put(file, getFileAttributes(file).getModified());
+        }
+        filesByModification.sort(Comparator.comparing((Path file) -> modified.get(file)).thenComparing(Comparator.naturalOrder()));
+        for (int i = 0; i < filesByModification.size(); i++) {
+            captureOrder.put(filesByModification.get(i), i + 1);
+        }
+    }
+
+    Integer getCaptureOrder(Path file) {
+        return captureOrder.get(file);
+    }
+
+    String getContentHash(Path file, String algorithm) throws PluginException {
+        String key = algorithm + ":" + file;
+        String digest = contentHashes.get(key);
+        if (digest == null) {
+            try {
+                digest = getContentHashCache().digest(file, algorithm);
+            } catch (IOException | SwapException e) {
+                throw new PluginException("Cannot compute the " + algorithm + " digest of file \"" + file + "\"", e);
+            }
+            contentHashes.put(key, digest);
+        }
+        return digest;
+    }
+
+    private synchronized ContentHashCache getContentHashCache() throws IOException, SwapException {
+        if (contentHashCache == null) {
+            contentHashCache = new ContentHashCache(Paths.get(process.getProcessDataDirectory(), ContentHashCache.DEFAULT_FILE_NAME));
+        }
+        return contentHashCache;
+    }
+
+    /**
+     * Writes the content digests computed in this run, after moving the digests of renamed files to their new names.
+     *
+     * @param renamingPlan the executed renamings or null, if no files were renamed
+     */
+    private void saveContentHashCache(RenamingPlan renamingPlan) throws IOException, SwapException {
+        if (contentHashCache == null && (renamingPlan == null || !configuration.getRenamingFormatter().needsContentHashes())) {
+            return;
+        }
+        if (renamingPlan != null) {
+            // A queued renaming did not compute any digests, but the digests cached by the planning still need to be moved
+            getContentHashCache();
+            for (int f = 0; f < renamingPlan.getFolderCount(); f++) {
+                Path folder = renamingPlan.getFolder(f);
+                for (int i = 0; i < renamingPlan.getRenamingCount(f); i++) {
+                    contentHashCache.rename(folder.resolve(renamingPlan.getSource(f, i)), folder.resolve(renamingPlan.getTarget(f, i)));
+                }
+            }
+        }
+        contentHashCache.save();
+    }
+
+    private DigitalDocument getDigitalDocument() throws PluginException {
+        try {
+            return process.readMetadataFile().getDigitalDocument();
+        } catch (ReadException | IOException | SwapException | PreferencesException | NullPointerException e1) {
+            throw new PluginException("Errors happened while trying to read the METS file", e1);
+        }
+    }
+
+    /**
+     * @return the document of the METS file, read on first use, or null if it cannot be read
+     */
+    private DigitalDocument getLoadedDigitalDocument() {
+        if (!digitalDocumentRead) {
+            synchronized (this) {
+                if (!digitalDocumentRead) {
+                    try {
+                        digitalDocument = getDigitalDocument();
+                    } catch (PluginException e) {
+                        log.error(e.getMessage());
+                        log.error(e);
+                    }
+                    digitalDocumentRead = true;
+                }
+            }
+        }
+        return digitalDocument;
+    }
+
+    /**
+     * @return the VariableReplacer, created on first use. Its document is only read if metadata variables are used.
+     */
+    private VariableReplacer getVariableReplacer() {
+        VariableReplacer current = variableReplacer;
+        if (current != null && (variableReplacerWithDocument || !metadataVariablesUsed)) {
+            return current;
+        }
+        synchronized (this) {
+            if (variableReplacer == null || metadataVariablesUsed && !variableReplacerWithDocument) {
+                boolean withDocument = metadataVariablesUsed;
+                if (!withDocument) {
+                    log.debug("No metadata variables are used, the VariableReplacer of process " + process.getTitel()
+                            + " is created without reading the METS file");
+                }
+                variableReplacer = new VariableReplacer(withDocument ? getLoadedDigitalDocument() : null,
+                        process.getRegelsatz().getPreferences(), process, step);
+                variableReplacerWithDocument = withDocument;
+            }
+            return variableReplacer;
+        }
+    }
+
+    private String replaceVariables(String value) {
+        if (RenamingConfiguration.referencesMetadataVariables(value)) {
+            // Values of the Goobi configuration, like additional folder names, are not known in advance
+            metadataVariablesUsed = true;
+        }
+        return getVariableReplacer().replace(value);
+    }
+
+    private void resetCounters() {
+        perStructureElementCounters.clear();
+        counters.clear();
+    }
+
+    int nextCounterValue(CounterNamePart counterNamePart) {
+        int value = counters.getOrDefault(counterNamePart, configuration.getRenamingFormatter().getStartValue());
+        counters.put(counterNamePart, value + 1);
+        return value;
+    }
+
+    /**
+     * @return the next value of the counter local to the structure element
+     */
+    int nextCounterValue(DocStruct docStruct) {
+        int value = perStructureElementCounters.getOrDefault(docStruct, configuration.getRenamingFormatter().getStartValue());
+        perStructureElementCounters.put(docStruct, value + 1);
+        return value;
+    }
+
+    List<DocStruct> findDocStructsForFile(Path fileName, String level) {
+        DigitalDocument document = getLoadedDigitalDocument();
+        try {
+            // find physical page for file
+            DocStruct page = document.getPhysicalDocStruct()
+                    .getAllChildren()
+                    .stream()
+                    .filter(c -> fileMatchesDocStruct(c.getImageName(), fileName.toFile().getName()))
+                    .findFirst()
+                    .orElseThrow();
+
+            List<DocStruct> result = new LinkedList<>();
+            // add anchor if available
+            if (document.getLogicalDocStruct().getType().isAnchor()) {
+                result.add(document.getLogicalDocStruct());
+            }
+
+            // find all references to the page
+            result.addAll(page.getAllFromReferences()
+                    .stream()
+                    .map(Reference::getSource)
+                    .toList());
+
+            if (level != null) {
+                result.removeIf(ds -> !ds.getType().getName().equals(level));
+            }
+
+            return result;
+        } catch (NullPointerException | NoSuchElementException e) {
+            return Collections.emptyList();
+        }
+    }
+
+    private boolean fileMatchesDocStruct(String imageName, String fileName) {
+        return imageName.substring(0, imageName.lastIndexOf('.'))
+                .equals(fileName.substring(0, fileName.lastIndexOf('.')));
+    }
+
+    private GoobiProperty initializeProcessProperty(Process process) {
+        List<GoobiProperty> props = process.getProperties();
+        for (GoobiProperty p : props) {
+            if (RenameFilesPlugin.PROPERTY_TITLE.equals(p.getPropertyName())) {
+                return p;
+            }
+        }
+
+        property = new GoobiProperty(PropertyOwnerType.PROCESS);
+        property.setOwner(process);
+        property.setPropertyName(RenameFilesPlugin.PROPERTY_TITLE);
+
+        return property;
+    }
+
+    private OriginalFileNameHistory loadOriginalFileNameHistory() throws IOException, SwapException, DAOException {
+        historyLogEntries = -1;
+        FileNameHistoryLog.Pointer pointer = FileNameHistoryLog.Pointer.parse(gson, property.getPropertyValue());
+        if (pointer == null) {
+            return deserializeOriginalFileNameHistoryFromJson(property.getPropertyValue());
+        }
+
+        FileNameHistoryLog historyLog = new FileNameHistoryLog(Paths.get(process.getProcessDataDirectory(), pointer.getHistoryFile()));
+        if (!historyLog.exists()) {
+            throw new IOException("File name history log " + historyLog.getFile() + " referenced by the process property does not exist!");
+        }
+        String checksum = historyLog.checksum();
+        if (!checksum.equals(pointer.getChecksum())) {
+            // Replaying a modified or corrupt log would spread wrong original file names into the history
+            throw new IOException("Checksum of file name history log " + historyLog.getFile() + " does not match the process property, the "
+                    + "log was modified after the last renaming was completed!");
+        }
+        OriginalFileNameHistory history = new OriginalFileNameHistory();
+        historyLogEntries = historyLog.replay(new FileNameHistoryLog.Visitor() {
+            @Override
+            public void move(String folder, String from, String to) {
+                history.updateFileName(folder, from, to);
+            }
+
+            @Override
+            public void state(String folder, String current, String original) {
+                history.putOriginalFileName(folder, current, original);
+            }
+        });
+        return history;
+    }
+
+    private void updateProcessPropertyWithNewFileNameHistory(RenamingPlan renamingPlan) throws IOException, SwapException, DAOException {
+        prunedHistoryEntries = pruneOriginalFileNameHistory(originalFileNameHistory, renamingPlan);
+        if (!RenamingConfiguration.HISTORY_STORAGE_FILE.equals(configuration.getHistoryStorage())) {
+            property.setPropertyValue(serializeOriginalFileNameHistoryIntoJson(originalFileNameHistory));
+            return;
+        }
+
+        FileNameHistoryLog historyLog =
+                new FileNameHistoryLog(Paths.get(process.getProcessDataDirectory(), FileNameHistoryLog.DEFAULT_FILE_NAME));
+        long entries = historyLogEntries + renamingPlan.size();
+        // Pruned entries are not part of the log, so it needs to be rewritten
+        boolean compact = prunedHistoryEntries > 0
+                || entries > configuration.getHistoryCompactionThreshold() && entries > 2 * originalFileNameHistory.getEntryCount();
+        if (historyLogEntries < 0 || compact) {
+            // The log is (re)created from the current state, if the history was not read from it or contains too many outdated entries
+            FileNameHistoryLog.Batch state = new FileNameHistoryLog.Batch();
+            originalFileNameHistory.writeState(state);
+            historyLog.rewrite(state);
+            historyLogEntries = state.getSize();
+        } else {
+            FileNameHistoryLog.Batch moves = new FileNameHistoryLog.Batch();
+            for (int f = 0; f < renamingPlan.getFolderCount(); f++) {
+                String folderIdentifier = originalFileNameHistory.extractFolderIdentifierOfFolder(renamingPlan.getFolder(f));
+                for (int i = 0; i < renamingPlan.getRenamingCount(f); i++) {
+                    moves.move(folderIdentifier, renamingPlan.getSource(f, i), renamingPlan.getTarget(f, i));
+                }
+            }
+            historyLog.append(moves);
+            historyLogEntries = entries;
+        }
+
+        FileNameHistoryLog.Pointer pointer = new FileNameHistoryLog.Pointer();
+        pointer.setHistoryFile(FileNameHistoryLog.DEFAULT_FILE_NAME);
+        pointer.setChecksum(historyLog.checksum());
+        pointer.setEntries(historyLogEntries);
+        property.setPropertyValue(gson.toJson(pointer));
+    }
+
+    /**
+     * Removes the history entries of files and folders that do not exist anymore after the renaming. Only the folders listed during this
+     * run and the subfolders of the images directory are considered, entries of all other folders are kept.
+     *
+     * @param history the history after the renaming
+     * @return the number of removed entries
+     */
+    private int pruneOriginalFileNameHistory(OriginalFileNameHistory history, RenamingPlan renamingPlan) throws IOException, SwapException {
+        if (!configuration.isHistoryPruning()) {
+            return 0;
+        }
+        // The listings were taken before the renaming
+        Map<Path, Set<String>> fileNamesByFolder = new HashMap<>();
+        folderListings.forEach((folder, files) -> fileNamesByFolder.put(folder,
+                files.stream().map(file -> file.getFileName().toString()).collect(Collectors.toCollection(HashSet::new))));
+        for (int f = 0; f < renamingPlan.getFolderCount(); f++) {
+            Set<String> fileNames = fileNamesByFolder.get(renamingPlan.getFolder(f));
+            if (fileNames == null) {
+                continue;
+            }
+            for (int i = 0; i < renamingPlan.getRenamingCount(f); i++) {
+                fileNames.remove(renamingPlan.getSource(f, i));
+            }
+            for (int i = 0; i < renamingPlan.getRenamingCount(f); i++) {
+                fileNames.add(renamingPlan.getTarget(f, i));
+            }
+        }
+        // Different folders may share an identifier
+        Map<String, Set<String>> currentFileNames = new HashMap<>();
+        fileNamesByFolder.forEach((folder, fileNames) -> currentFileNames
+                .computeIfAbsent(history.extractFolderIdentifierOfFolder(folder), identifier -> new HashSet<>())
+                .addAll(fileNames));
+
+        Set<String> existingFolderIdentifiers = new HashSet<>(currentFileNames.keySet());
+        existingFolders.forEach(folder -> existingFolderIdentifiers.add(history.extractFolderIdentifierOfFolder(folder)));
+        Set<String> removedFolders = new HashSet<>();
+        missingFolders.forEach(folder -> removedFolders.add(history.extractFolderIdentifierOfFolder(folder)));
+        if (imagesSubfolderNames != null) {
+            String prefix = getImagesDirectory().getFileName() + "_";
+            for (String folderName : imagesSubfolderNames) {
+                existingFolderIdentifiers.add(prefix + folderName.substring(folderName.lastIndexOf('_') + 1));
+            }
+            history.getFolderIdentifiers()
+                    .stream()
+                    .filter(identifier -> identifier.startsWith(prefix))
+                    .forEach(removedFolders::add);
+        }
+        removedFolders.removeAll(existingFolderIdentifiers);
+
+        long entriesBefore = history.getEntryCount();
+        long reclaimedBytes = history.prune(currentFileNames, removedFolders);
+        int prunedEntries = (int) (entriesBefore - history.getEntryCount());
+        if (reclaimedBytes > 0) {
+            log.info("Pruned " + prunedEntries + " entries of missing files"
+                    + (removedFolders.isEmpty() ? "" : " and the folders " + removedFolders) + " from the file name history, reclaimed about "
+                    + reclaimedBytes + " bytes");
+        }
+        return prunedEntries;
+    }
+
+    private void saveProcessProperty() {
+        PropertyManager.saveProperty(property);
+    }
+
+    private OriginalFileNameHistory deserializeOriginalFileNameHistoryFromJson(String json) {
+        OriginalFileNameHistory originalFileNameHistory = gson.fromJson(json, OriginalFileNameHistory.class);
+        // Initialize empty, if deserialization was not successful
+        if (originalFileNameHistory == null) {
+            originalFileNameHistory = new OriginalFileNameHistory();
+        }
+        return originalFileNameHistory;
+    }
+
+    private String serializeOriginalFileNameHistoryIntoJson(OriginalFileNameHistory originalFileNameHistory) {
+        return gson.toJson(originalFileNameHistory);
+    }
+
+    /**
+     * @return false if another worker holds the lease of the process
+     */
+    private boolean acquireLease() throws IOException {
+        if (configuration.getLeaseProvider() != null) {
+            lease = configuration.getLeaseProvider().acquire(process);
+            if (lease == null) {
+                log.error("The files of process " + process.getTitel() + " are currently renamed by another worker. Aborting...");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void initializeOriginalFileNameHistory() throws IOException, SwapException, DAOException {
+        property = initializeProcessProperty(step.getProzess());
+        originalFileNameHistory = loadOriginalFileNameHistory();
+        replacer = new OverlayVariableReplacer(this::getVariableReplacer, originalFileNameHistory);
+    }
+
+    private PluginReturnValue handleRenamingError(Exception e) {
+        String message = "Error during file renaming";
+        Helper.setFehlerMeldung(message, e);
+        log.error(message, e);
+        JournalEntry le = new JournalEntry(step.getProzess().getId(), new Date(), "- automatic -", LogType.ERROR, message + ": " + e.getMessage(), JournalEntry.EntryType.PROCESS);
+        JournalManager.saveJournalEntry(le);
+        return PluginReturnValue.ERROR;
+    }
+
+    PluginReturnValue execute() {
+        try {
+            if (!acquireLease()) {
+                return PluginReturnValue.ERROR;
+            }
+            if (RenamingConfiguration.MODE_VERIFY.equals(configuration.getMode())) {
+                verifyConsistency(getLoadedDigitalDocument(), determineFoldersToRename());
+                return PluginReturnValue.FINISH;
+            }
+            initializeOriginalFileNameHistory();
+            List<Path> foldersToRename = determineFoldersToRename();
+            log.trace("Performing renaming in these folders: " + foldersToRename.stream().map(Path::toString).collect(Collectors.joining(", ")));
+            CollisionDetector collisionDetector = new CollisionDetector(configuration.getMaxCollisions());
+            if (isFolderPipeliningApplicable()) {
+                RenamingPlan executedPlan = performFolderPipelinedRenaming(foldersToRename, collisionDetector);
+                logConditionStatistics();
+                if (executedPlan == null) {
+                    reportCollisions(collisionDetector);
+                    return PluginReturnValue.ERROR;
+                }
+                if (executedPlan.isEmpty()) {
+                    log.info("Nothing to rename.");
+                    saveContentHashCache(null);
+                    return PluginReturnValue.FINISH;
+                }
+                updateMetsFileAndHistory(executedPlan);
+                finishRenaming(executedPlan);
+                return PluginReturnValue.FINISH;
+            }
+            RenamingPlan renamingPlan;
+            if (RenamingConfiguration.MODE_RESTORE.equals(configuration.getMode())) {
+                renamingPlan = determineRestoreForAllFolders(foldersToRename, collisionDetector);
+            } else {
+                renamingPlan = determineRenamingForAllFilesInAllFolders(foldersToRename, collisionDetector);
+                logConditionStatistics();
+            }
+            if (reportCollisions(collisionDetector)) {
+                return PluginReturnValue.ERROR;
+            }
+            if (renamingPlan.isEmpty()) {
+                log.info("Nothing to rename.");
+                saveContentHashCache(null);
+                return PluginReturnValue.FINISH;
+            }
+            // Find an order of renamings that is conflict free (i. e. does not rename a file to a name that is already present due to ordering issues)
+            if (!canRenamingWithoutConflicts(renamingPlan)) {
+                log.error("Cannot perform renaming without conflicts. Aborting...");
+                return PluginReturnValue.ERROR;
+            }
+            if (configuration.isAsynchronousExecution()) {
+                // The content digests of the planning are needed by the next planning, regardless of when the job is executed
+                saveContentHashCache(null);
+                enqueueRenaming(renamingPlan);
+                return PluginReturnValue.WAIT;
+            }
+            executeRenamingPlan(renamingPlan);
+        } catch (IOException | PluginException | SwapException | DAOException e) {
+            return handleRenamingError(e);
+        } finally {
+            releaseLease();
+        }
+
+        return PluginReturnValue.FINISH;
+    }
+
+    /**
+     * Executes a renaming planned by an earlier run of the step, after checking that the files were not changed in the meantime. The lease
+     * handed over by the planning run is used, unless the job was requeued after the planning worker ended.
+     *
+     * @param jobId the id of the queued job
+     */
+    PluginReturnValue executePlannedRenaming(RenamingPlan renamingPlan, String jobId) {
+        try {
+            lease = leasesOfQueuedJobs.remove(jobId);
+            if (lease == null && !acquireLease()) {
+                return PluginReturnValue.ERROR;
+            }
+            checkLease();
+            checkPlannedRenamingIsCurrent(renamingPlan);
+            initializeOriginalFileNameHistory();
+            executeRenamingPlan(renamingPlan);
+        } catch (IOException | PluginException | SwapException | DAOException e) {
+            return handleRenamingError(e);
+        } finally {
+            releaseLease();
+        }
+        return PluginReturnValue.FINISH;
+    }
+
+    private void executeRenamingPlan(RenamingPlan renamingPlan) throws IOException, PluginException, SwapException, DAOException {
+        if (configuration.isAdaptiveStrategy()) {
+            adaptStrategyToPlan(renamingPlan);
+        }
+        if (strategy.isPipelinedExecution()) {
+            performPipelinedRenaming(renamingPlan);
+        } else {
+            performRenaming(renamingPlan);
+            updateMetsFileAndHistory(renamingPlan);
+        }
+        finishRenaming(renamingPlan);
+    }
+
+    private void updateMetsFileAndHistory(RenamingPlan renamingPlan) throws IOException, SwapException, DAOException {
+        if (configuration.isUpdateMetsFile()) {
+            throttleMetsFileWrite();
+        }
+        if (configuration.isUpdateMetsFile() && strategy.isStreamingMetsUpdate()) {
+            metsFileUpdater.updateMetsFileStreaming(process, renamingPlan);
+        } else if (configuration.isUpdateMetsFile()) {
+            metsFileUpdater.updateMetsFile(process, renamingPlan);
+        }
+        updateProcessPropertyWithNewFileNameHistory(renamingPlan);
+        saveProcessProperty();
+        updateOcrFiles(renamingPlan);
+    }
+
+    /**
+     * Updates the image references inside the XML files of all renamed folders and of the ALTO and XML OCR folders. Files whose names
+     * did not change are updated as well, since they may reference renamed images.
+     */
+    private void updateOcrFiles(RenamingPlan renamingPlan) throws IOException, SwapException, DAOException {
+        if (configuration.getOcrFileUpdater() == null) {
+            return;
+        }
+        StorageProviderInterface storageProvider = StorageProvider.getInstance();
+        Set<Path> folders = new LinkedHashSet<>(determineFoldersToRename());
+        folders.add(Paths.get(process.getOcrAltoDirectory()));
+        folders.add(Paths.get(process.getOcrXmlDirectory()));
+        List<Path> files = new ArrayList<>();
+        for (Path folder : folders) {
+            if (!storageProvider.isDirectory(folder)) {
+                continue;
+            }
+            storageProvider.listFiles(folder.toString())
+                    .stream()
+                    .filter(file -> file.getFileName().toString().toLowerCase().endsWith(".xml"))
+                    .forEach(files::add);
+        }
+        int changedFiles = configuration.getOcrFileUpdater().updateImageReferences(files, renamingPlan);
+        log.info("Updated the image references of " + changedFiles + " of " + files.size() + " OCR files");
+    }
+
+    private void finishRenaming(RenamingPlan renamingPlan) throws IOException, PluginException, SwapException, DAOException {
+        saveContentHashCache(renamingPlan);
+        if (configuration.isVerifyAfterRenaming()) {
+            // The METS file was changed by the renaming, the document read before is outdated
+            verifyConsistency(getDigitalDocument(), determineFoldersToRename());
+        }
+    }
+
+    /**
+     * @return true if the generated names collide, the collisions are logged
+     */
+    private boolean reportCollisions(CollisionDetector collisionDetector) {
+        if (!collisionDetector.hasCollisions()) {
+            return false;
+        }
+        log.error("Cannot perform renaming without conflicts, found " + collisionDetector.getCollisions().size()
+                + (collisionDetector.isLimitReached() ? " or more" : "") + " naming collisions. Aborting...");
+        collisionDetector.getCollisions().forEach(c -> log.error("Naming collision in " + c));
+        return true;
+    }
+
+    private static RenameJobQueue getRenameJobQueue(RenamingConfiguration configuration, ConfigurationHelper configurationHelper)
+            throws IOException {
+        String directory = configuration.getAsyncQueueDirectory();
+        if (directory == null || directory.isBlank()) {
+            directory = Paths.get(configurationHelper.getTemporaryFolder(), RENAME_JOB_QUEUE_DIRECTORY).toString();
+        }
+        return new RenameJobQueue(Paths.get(directory));
+    }
+
+    /**
+     * Queues the planned renaming. The lease is handed over to the job, so no other worker renames the files of the process until the job
+     * is completed.
+     */
+    private void enqueueRenaming(RenamingPlan renamingPlan) throws IOException {
+        RenameJobQueue queue = getRenameJobQueue(configuration, configurationHelper);
+        RenameJobQueue.Job job = new RenameJobQueue.Job();
+        job.setId(UUID.randomUUID().toString());
+        job.setProcessId(process.getId());
+        job.setStepId(step.getId());
+        job.setPlan(renamingPlan.toRecords());
+        if (lease != null) {
+            leasesOfQueuedJobs.put(job.getId(), lease);
+        }
+        try {
+            queue.enqueue(job);
+        } catch (IOException e) {
+            leasesOfQueuedJobs.remove(job.getId());
+            throw e;
+        }
+        lease = null;
+        log.info("Queued the renaming of " + renamingPlan.size() + " files of process " + process.getTitel() + " as job " + job.getId());
+        RenameJobWorkerPool.start(queue, configuration.getAsyncWorkers(), RenameFilesPlugin::executeQueuedRenaming);
+    }
+
+    /**
+     * Starts the workers for the renamings that were queued or running before a restart, so their steps do not wait for the next queued
+     * renaming.
+     */
+    static void resumeQueuedRenamings(RenamingConfiguration configuration, ConfigurationHelper configurationHelper) throws IOException {
+        RenameJobWorkerPool.resume(getRenameJobQueue(configuration, configurationHelper), configuration.getAsyncWorkers(),
+                RenameFilesPlugin::executeQueuedRenaming);
+    }
+
+    /**
+     * Checks with one listing per folder that all sources of the plan still exist and that no target is occupied by a file that is not
+     * renamed itself.
+     *
+     * @throws PluginException if the files were changed after the renaming was planned
+     */
+    private void checkPlannedRenamingIsCurrent(RenamingPlan renamingPlan) throws PluginException {
+        StorageProviderInterface storageProvider = StorageProvider.getInstance();
+        for (int f = 0; f < renamingPlan.getFolderCount(); f++) {
+            Path folder = renamingPlan.getFolder(f);
+            Set<String> fileNames = storageProvider.listFiles(folder.toString())
+                    .stream()
+                    .map(file -> file.getFileName().toString())
+                    .collect(Collectors.toCollection(HashSet::new));
+            for (int i = 0; i < renamingPlan.getRenamingCount(f); i++) {
+                if (!fileNames.contains(renamingPlan.getSource(f, i))) {
+                    throw new PluginException("The planned renaming is outdated, the file " + folder.resolve(renamingPlan.getSource(f, i))
+                            + " does not exist anymore");
+                }
+            }
+            for (int i = 0; i < renamingPlan.getRenamingCount(f); i++) {
+                fileNames.remove(renamingPlan.getSource(f, i));
+            }
+            for (int i = 0; i < renamingPlan.getRenamingCount(f); i++) {
+                if (fileNames.contains(renamingPlan.getTarget(f, i))) {
+                    throw new PluginException("The planned renaming is outdated, the file " + folder.resolve(renamingPlan.getTarget(f, i))
+                            + " was created after the renaming was planned");
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks that all file references of the METS file point to existing files and that all files of referenced folders are referenced.
+     *
+     * @throws PluginException if the METS file and the folders are not consistent
+     */
+    private void verifyConsistency(DigitalDocument document, List<Path> folders) throws PluginException {
+        if (document == null) {
+            throw new PluginException("Cannot verify the file references without the METS file of process " + process.getTitel() + "!");
+        }
+        List<String> fileLocations = document.getFileSet() == null ? List.of()
+                : document.getFileSet().getAllFiles().stream().map(ContentFile::getLocation).collect(Collectors.toList());
+        ConsistencyVerifier.Result result = new ConsistencyVerifier(StorageProvider.getInstance()).verify(fileLocations, folders);
+        log.debug("Verified " + result.getCheckedReferences() + " file references against " + result.getCheckedFiles() + " files");
+        if (result.isConsistent()) {
+            return;
+        }
+        result.getDanglingReferences().forEach(location -> log.error("The METS file references the missing file " + location));
+        result.getUnreferencedFiles().forEach(file -> log.error("The file " + file + " is not referenced in the METS file"));
+        throw new PluginException("Found " + result.getDanglingReferences().size() + " references to missing files and "
+                + result.getUnreferencedFiles().size() + " unreferenced files");
+    }
+
+    private void releaseLease() {
+        if (lease == null) {
+            return;
+        }
+        try {
+            lease.close();
+        } catch (IOException e) {
+            log.warn("Unable to release the lease of process " + process.getTitel(), e);
+        }
+        lease = null;
+    }
+
+    /**
+     * Releases the lease handed over to a queued job, if the job did not take it over, e.g. because the job was discarded.
+     */
+    static void releaseLeaseOfQueuedJob(String jobId) {
+        ProcessLease queuedLease = leasesOfQueuedJobs.remove(jobId);
+        if (queuedLease == null) {
+            return;
+        }
+        try {
+            queuedLease.close();
+        } catch (IOException e) {
+            log.warn("Unable to release the lease of renaming job " + jobId, e);
+        }
+    }
+
+    private void checkLease() throws IOException {
+        if (lease != null && !lease.isValid()) {
+            throw new IOException("Lost the lease of process " + process.getTitel() + " while renaming, another worker might rename its files");
+        }
+    }
+
+    private void logConditionStatistics() {
+        long checks = metrics.get(RenameFilesPlugin.METRIC_CONDITION_CHECKS);
+        if (checks == 0) {
+            return;
+        }
+        long valueResolutions = metrics.get(RenameFilesPlugin.METRIC_CONDITION_VALUE_RESOLUTIONS);
+        long regexEvaluations = metrics.get(RenameFilesPlugin.METRIC_CONDITION_REGEX_EVALUATIONS);
+        log.debug("Checked " + checks + " name part conditions with " + valueResolutions + " value resolutions and " + regexEvaluations
+                + " regex evaluations, saved " + (checks - valueResolutions) + " value resolutions and " + (checks - regexEvaluations)
+                + " regex evaluations");
+    }
+
+    private List<Path> determineFoldersToRename() throws IOException, SwapException, DAOException {
+        if (foldersToRename == null) {
+            Set<Path> result = new LinkedHashSet<>();
+            for (String folderSpecification : configuration.getConfiguredFoldersToRename()) {
+                result.addAll(determineRealPathsForConfiguredFolder(folderSpecification));
+            }
+            foldersToRename = new ArrayList<>(result);
+        }
+        return foldersToRename;
+    }
+
+    private List<Path> determineRealPathsForConfiguredFolder(String configuredFolder) throws IOException, SwapException, DAOException {
+        if (FOLDER_ALL.equals(configuredFolder)) {
+            return determineDefaultFoldersToRename();
+        } else if (configuredFolder.startsWith(FOLDER_PATTERN_REGEX_PREFIX)) {
+            Pattern pattern = Pattern.compile(configuredFolder.substring(FOLDER_PATTERN_REGEX_PREFIX.length()));
+            return findImagesSubfolders(name -> pattern.matcher(name).matches());
+        } else if (isFolderGlobPattern(configuredFolder)) {
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + replaceVariables(configuredFolder));
+            return findImagesSubfolders(name -> matcher.matches(Paths.get(name)));
+        } else {
+            return transformConfiguredFolderSpecificationToRealPath(configuredFolder);
+        }
+    }
+
+    private boolean isFolderGlobPattern(String configuredFolder) {
+        return configuredFolder.contains("*") || configuredFolder.contains("?") || configuredFolder.contains("[");
+    }
+
+    private List<Path> determineDefaultFoldersToRename() throws IOException, SwapException, DAOException {
+        List<Path> result = new ArrayList<>();
+        for (Path folder : List.of(
+                Paths.get(process.getImagesOrigDirectory(false)),
+                Paths.get(process.getImagesTifDirectory(false)),
+                Paths.get(process.getOcrAltoDirectory()),
+                Paths.get(process.getOcrPdfDirectory()),
+                Paths.get(process.getOcrTxtDirectory()),
+                Paths.get(process.getOcrXmlDirectory()))) {
+            if (pathIsPresent(folder)) {
+                result.add(folder);
+            }
+        }
+        return result;
+    }
+
+    private List<Path> transformConfiguredFolderSpecificationToRealPath(String folderSpecification) throws IOException, SwapException {
+        String folder = configurationHelper.getAdditionalProcessFolderName(folderSpecification);
+        folder = replaceVariables(folder);
+        Path configuredFolder = getImagesDirectory().resolve(folder);
+        // Only marks the folder as existing, missing folders are skipped later on
+        pathIsPresent(configuredFolder);
+        return List.of(configuredFolder);
+    }
+
+    private List<Path> findImagesSubfolders(Predicate<String> nameFilter) throws IOException, SwapException {
+        Path directory = getImagesDirectory();
+        List<Path> result = listImagesSubfolderNames().stream()
+                .filter(nameFilter)
+                .sorted()
+                .map(directory::resolve)
+                .collect(Collectors.toList());
+        existingFolders.addAll(result);
+        return result;
+    }
+
+    /**
+     * Folders directly inside the images directory are looked up in its listing, all other folders are checked individually.
+     */
+    private boolean pathIsPresent(Path path) throws IOException, SwapException {
+        boolean present;
+        if (path.getParent() != null && path.getParent().equals(getImagesDirectory())) {
+            present = listImagesSubfolderNames().contains(path.getFileName().toString());
+        } else {
+            present = StorageProvider.getInstance().isDirectory(path);
+        }
+        if (present) {
+            existingFolders.add(path);
+        } else {
+            missingFolders.add(path);
+        }
+        return present;
+    }
+
+    private Path getImagesDirectory() throws IOException, SwapException {
+        if (imagesDirectory == null) {
+            imagesDirectory = Paths.get(process.getImagesDirectory());
+        }
+        return imagesDirectory;
+    }
+
+    private Set<String> listImagesSubfolderNames() throws IOException, SwapException {
+        if (imagesSubfolderNames == null) {
+            imagesSubfolderNames = new HashSet<>(StorageProvider.getInstance().listDirNames(getImagesDirectory().toString()));
+        }
+        return imagesSubfolderNames;
+    }
+
+    /**
+     * Checks that the folder exists and is a directory, unless this is already known from the folder resolution.
+     *
+     * @return false if the folder does not exist
+     */
+    private boolean checkFolderToRename(Path folder) throws PluginException {
+        if (existingFolders.contains(folder)) {
+            return true;
+        }
+        // This checks if the file == directory exists
+        if (!StorageProvider.getInstance().isFileExists(folder)) {
+            missingFolders.add(folder);
+            return false;
+        }
+        if (!StorageProvider.getInstance().isDirectory(folder)) {
+            throw new PluginException(
+                    "Cannot rename all files in directory. The given path \"" + folder.toString() + "\" is a file and not a directory!");
+        }
+        return true;
+    }
+
+    private RenamingPlan determineRenamingForAllFilesInAllFolders(List<Path> foldersToRename, CollisionDetector collisionDetector)
+            throws PluginException {
+        RenamingPlan result = new RenamingPlan();
+        for (Path folder : foldersToRename) {
+            determineRenamingForAllFilesInFolder(folder, result, collisionDetector);
+            if (collisionDetector.isLimitReached()) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    private void determineRenamingForAllFilesInFolder(Path folder, RenamingPlan plan, CollisionDetector collisionDetector)
+            throws PluginException {
+        if (!checkFolderToRename(folder)) {
+            return;
+        }
+
+        List<Path> filesToRename = StorageProvider.getInstance().listFiles(folder.toString());
+        folderListings.put(folder, filesToRename);
+        Collections.sort(filesToRename);
+        resetCounters();
+        configuration.getRenamingFormatter().prefetch(this, filesToRename);
+
+        collisionDetector.startFolder(folder, filesToRename.size());
+
+        List<String> generatedNames = null;
+        if (strategy.isParallelGeneration() && filesToRename.size() >= PARALLEL_GENERATION_MIN_FILES) {
+            generatedNames = configuration.getRenamingFormatter().generateNewNamesInParallel(this, filesToRename);
+        }
+
+        List<String> sources = new ArrayList<>(filesToRename.size());
+        List<String> targets = new ArrayList<>(filesToRename.size());
+        for (int index = 0; index < filesToRename.size(); index++) {
+            Path file = filesToRename.get(index);
+            String oldFullFileName = file.getFileName().toString();
+            int extensionIndex = oldFullFileName.lastIndexOf(".");
+            String fileExtension = oldFullFileName.substring(extensionIndex + 1);
+            String newName = generatedNames != null ? generatedNames.get(index) : configuration.getRenamingFormatter().generateNewName(this, file);
+            String newFullFileName = newName + "." + fileExtension;
+
+            // Stop generating names early if the configuration obviously produces conflicts
+            if (!collisionDetector.register(oldFullFileName, newFullFileName)) {
+                return;
+            }
+            if (!oldFullFileName.equals(newFullFileName)) {
+                sources.add(oldFullFileName);
+                targets.add(newFullFileName);
+            }
+        }
+
+        plan.addFolder(folder, sources, targets);
+    }
+
+    /**
+     * Creates a plan that renames every file back to its original name as recorded in the file name history. Neither the name parts nor the
+     * METS file are evaluated.
+     */
+    private RenamingPlan determineRestoreForAllFolders(List<Path> foldersToRename, CollisionDetector collisionDetector) throws PluginException {
+        RenamingPlan result = new RenamingPlan();
+        for (Path folder : foldersToRename) {
+            if (!checkFolderToRename(folder)) {
+                continue;
+            }
+            List<Path> filesToRestore = StorageProvider.getInstance().listFiles(folder.toString());
+            folderListings.put(folder, filesToRestore);
+            collisionDetector.startFolder(folder, filesToRestore.size());
+            List<String> sources = new ArrayList<>(filesToRestore.size());
+            List<String> targets = new ArrayList<>(filesToRestore.size());
+            for (Path file : filesToRestore) {
+                String currentFileName = file.getFileName().toString();
+                String originalFileName = originalFileNameHistory.getOriginalFileNameOf(file);
+                if (!collisionDetector.register(currentFileName, originalFileName)) {
+                    return result;
+                }
+                if (!currentFileName.equals(originalFileName)) {
+                    sources.add(currentFileName);
+                    targets.add(originalFileName);
+                }
+            }
+            result.addFolder(folder, sources, targets);
+        }
+        return result;
+    }
+
+    private boolean canRenamingWithoutConflicts(RenamingPlan renamingPlan) {
+        // Target collisions are already detected during the generation, all files must be renamed in a cycle free order
+        return renamingPlan.orderForExecution();
+    }
+
+    private void performRenaming(RenamingPlan renamingPlan) throws IOException, SwapException {
+        StorageProviderInterface storageProvider = StorageProvider.getInstance();
+        List<String> failedMoves = Collections.synchronizedList(new ArrayList<>());
+        boolean[][] executed = createExecutionMarks(renamingPlan);
+        try (RenamingReport report = openRenamingReport()) {
+            if (strategy.getMoveThreads() > 1) {
+                performConcurrentMoves(storageProvider, renamingPlan, report, failedMoves, executed);
+            } else {
+                performSequentialMoves(storageProvider, renamingPlan, report, failedMoves, executed);
+            }
+            log.debug("Renaming statistics: " + metrics);
+            if (!failedMoves.isEmpty()) {
+                failedMoves.forEach(m -> log.error("Failed to rename " + m));
+                String reason = circuitBreaker.isOpen() ? "too many storage operations failed" : failedMoves.size() + " files could not be renamed";
+                rollBack(storageProvider, renamingPlan.subset(executed), report, reason);
+                throw new IOException("Aborted renaming, " + reason + ". The renamed files were renamed back");
+            }
+            originalFileNameHistory.applyRenamingPlan(renamingPlan);
+            // Neither the METS file nor the history may be written, if another worker might have started renaming in the meantime
+            checkLease();
+        } catch (IOException e) {
+            log.error("Error during renaming: " + e.getMessage());
+            throw e;
+        }
+    }
+
+    /**
+     * Every renaming is marked by the task that executed it, the marks are only read after all tasks are completed.
+     */
+    private static boolean[][] createExecutionMarks(RenamingPlan renamingPlan) {
+        boolean[][] marks = new boolean[renamingPlan.getFolderCount()][];
+        for (int f = 0; f < renamingPlan.getFolderCount(); f++) {
+            marks[f] = new boolean[renamingPlan.getRenamingCount(f)];
+        }
+        return marks;
+    }
+
+    /**
+     * Executes the chains in order. After a failure no further chain is started, so that only few renamings need to be renamed back.
+     */
+    private void performSequentialMoves(StorageProviderInterface storageProvider, RenamingPlan renamingPlan, RenamingReport report,
+            List<String> failedMoves, boolean[][] executed) {
+        for (int f = 0; f < renamingPlan.getFolderCount(); f++) {
+            for (int c = 0; c < renamingPlan.getChainCount(f); c++) {
+                if (!failedMoves.isEmpty()) {
+                    return;
+                }
+                performChain(storageProvider, report, renamingPlan, f, c, failedMoves, executed);
+            }
+        }
+    }
+
+    /**
+     * Chooses the number of move threads, the variant of the METS update and the pipelining from the number of renamings and folders.
+     */
+    private void adaptStrategyToPlan(RenamingPlan renamingPlan) {
+        long metsFileSize = configuration.isUpdateMetsFile() ? determineMetsFileSize() : 0;
+        strategy.adaptToPlan(renamingPlan.size(), renamingPlan.getFolderCount(), metsFileSize, configuration.isUpdateMetsFile(),
+                configuration.isStructureNeeded(), configuration.getMoveThreads());
+        adaptMoveThreadsToStorage();
+        log.info("Renaming strategy: " + strategy);
+    }
+
+    /**
+     * @return the size of the METS file read through the storage provider, 0 if it cannot be determined
+     */
+    private long determineMetsFileSize() {
+        try {
+            String metadataFilePath = process.getMetadataFilePath();
+            return metadataFilePath == null ? 0 : StorageProvider.getInstance().getFileSize(Paths.get(metadataFilePath));
+        } catch (IOException | SwapException e) {
+            log.debug("Cannot determine the size of the METS file of process " + process.getTitel() + ": " + e.toString());
+            return 0;
+        }
+    }
+
+    /**
+     * Executes the renamings of one chain in order. If a file cannot be renamed, the rest of the chain is skipped, because its renamings
+     * depend on the failed one. The executed renamings are marked as soon as the file was moved, so that they can be renamed back even if
+     * they cannot be written to the report.
+     */
+    private void performChain(StorageProviderInterface storageProvider, RenamingReport report, RenamingPlan renamingPlan, int folderIndex,
+            int chainIndex, List<String> failedMoves, boolean[][] executed) {
+        Path folder = renamingPlan.getFolder(folderIndex);
+        int end = renamingPlan.getChainEnd(folderIndex, chainIndex);
+        for (int i = renamingPlan.getChainStart(folderIndex, chainIndex); i < end; i++) {
+            String from = renamingPlan.getSource(folderIndex, i);
+            String to = renamingPlan.getTarget(folderIndex, i);
+            long duration;
+            try {
+                duration = move(storageProvider, folder, from, to);
+            } catch (IOException e) {
+                failedMoves.add(folder.resolve(from) + " to \"" + to + "\": " + e.getMessage());
+                for (int j = i + 1; j < end; j++) {
+                    failedMoves.add(folder.resolve(renamingPlan.getSource(folderIndex, j)) + " to \""
+                            + renamingPlan.getTarget(folderIndex, j) + "\": skipped after previous error");
+                }
+                return;
+            }
+            executed[folderIndex][i] = true;
+            recordMove(report, folder, from, to, duration);
+        }
+    }
+
+    /**
+     * @return the duration of the move in nanoseconds
+     */
+    private long move(StorageProviderInterface storageProvider, Path folder, String from, String to) throws IOException {
+        throttle(configuration.getOperationRateLimiter(), 1);
+        long start = System.nanoTime();
+        moveWithRetry(storageProvider, folder.resolve(from), folder.resolve(to));
+        long duration = System.nanoTime() - start;
+        metrics.increment(RenameFilesPlugin.METRIC_MOVES);
+        metrics.add(RenameFilesPlugin.METRIC_MOVE_NANOS, duration);
+        return duration;
+    }
+
+    /**
+     * Writes an executed move to the report. The file is renamed already, so a failure to write the report does not fail the move.
+     */
+    private void recordMove(RenamingReport report, Path folder, String from, String to, long duration) {
+        if (report == null) {
+            return;
+        }
+        try {
+            report.record(folder, from, to, Instant.now(), duration);
+        } catch (IOException e) {
+            log.error("Cannot write the renaming of " + folder.resolve(from) + " to \"" + to + "\" to the report " + report.getFile() + ": "
+                    + e.getMessage());
+        }
+    }
+
+    private void moveWithRetry(StorageProviderInterface storageProvider, Path source, Path target) throws IOException {
+        for (int retry = 0;; retry++) {
+            // A rollback is attempted even if the breaker is open, otherwise the renamed files remain inconsistent
+            if (!rollingBack && circuitBreaker.isOpen()) {
+                throw new IOException("Circuit breaker is open, not renaming " + source);
+            }
+            try {
+                storageProvider.move(source, target);
+                circuitBreaker.recordSuccess();
+                return;
+            } catch (IOException e) {
+                metrics.increment(RenameFilesPlugin.METRIC_MOVE_FAILURES);
+                circuitBreaker.recordFailure();
+                if (retry >= configuration.getMoveRetryPolicy().getMaxRetries() || !rollingBack && circuitBreaker.isOpen()) {
+                    throw e;
+                }
+                // A move that timed out might have been executed nevertheless
+                if (!storageProvider.isFileExists(source) && storageProvider.isFileExists(target)) {
+                    return;
+                }
+                long delay = configuration.getMoveRetryPolicy().getDelayMillis(retry);
+                log.warn("Renaming " + source + " failed, retrying in " + delay + " ms: " + e.getMessage());
+                metrics.increment(RenameFilesPlugin.METRIC_MOVE_RETRIES);
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting to retry renaming " + source, ie);
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until the rate limit allows the permits, unless the current time is within the off-peak window.
+     */
+    private void throttle(RateLimiter rateLimiter, long permits) throws IOException {
+        OffPeakWindow offPeakWindow = configuration.getOffPeakWindow();
+        if (rateLimiter == null || permits <= 0 || offPeakWindow != null && offPeakWindow.contains(LocalTime.now())) {
+            return;
+        }
+        try {
+            metrics.add(RenameFilesPlugin.METRIC_THROTTLE_NANOS, rateLimiter.acquire(permits));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the rate limit", e);
+        }
+    }
+
+    /**
+     * Writing the METS file counts as one operation, its size is counted against the byte rate.
+     */
+    private void throttleMetsFileWrite() throws IOException {
+        throttle(configuration.getOperationRateLimiter(), 1);
+        throttle(configuration.getByteRateLimiter(), determineMetsFileSize());
+    }
+
+    /**
+     * Executes the independent renaming chains of the ordered plan with several threads. The renamings of a chain are always executed in
+     * order by the same task, short chains are combined into larger tasks. Small plans are split into smaller tasks, so every thread gets
+     * some of the renamings, which matters for slow moves like on an object storage.
+     */
+    private void performConcurrentMoves(StorageProviderInterface storageProvider, RenamingPlan renamingPlan, RenamingReport report,
+            List<String> failedMoves, boolean[][] executed) throws IOException {
+        List<List<int[]>> batches = new ArrayList<>();
+        List<int[]> batch = new ArrayList<>();
+        int maxBatchSize = Math.max(1, Math.min(CONCURRENT_MOVE_BATCH_SIZE, renamingPlan.size() / Math.max(1, strategy.getMoveThreads())));
+        int batchSize = 0;
+        for (int f = 0; f < renamingPlan.getFolderCount(); f++) {
+            for (int c = 0; c < renamingPlan.getChainCount(f); c++) {
+                int start = renamingPlan.getChainStart(f, c);
+                int end = renamingPlan.getChainEnd(f, c);
+                batch.add(new int[] { f, c });
+                batchSize += end - start;
+                if (batchSize >= maxBatchSize) {
+                    batches.add(batch);
+                    batch = new ArrayList<>();
+                    batchSize = 0;
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(strategy.getMoveThreads(), batches.size())));
+        try {
+            List<Future<Void>> tasks = new ArrayList<>(batches.size());
+            for (List<int[]> chains : batches) {
+                tasks.add(executor.submit(() -> {
+                    for (int[] chain : chains) {
+                        // No further chains are started after a failure
+                        if (!failedMoves.isEmpty()) {
+                            break;
+                        }
+                        performChain(storageProvider, report, renamingPlan, chain[0], chain[1], failedMoves, executed);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> task : tasks) {
+                awaitBackgroundTask(task);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * The folder pipeline needs the complete plan neither before the moves nor for the execution on an object storage or by a worker.
+     */
+    private boolean isFolderPipeliningApplicable() {
+        if (!configuration.isFolderPipelining()) {
+            return false;
+        }
+        String mode = configuration.getMode();
+        boolean asynchronousExecution = configuration.isAsynchronousExecution();
+        if (!RenamingConfiguration.MODE_RENAME.equals(mode) || asynchronousExecution) {
+            log.debug("Folder pipelining is not used in mode " + mode + (asynchronousExecution ? " with asynchronous execution" : ""));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Plans the renamings folder by folder in a background thread, while the files of the folders planned before are renamed. Both stages
+     * are connected by a bounded queue, so the planning runs at most configured pipeline depth folders ahead. The file name history is
+     * only updated after all folders were renamed. If the planning of a folder or a move fails after other files were renamed already, the
+     * renamed folders and the renamed files of the current folder are renamed back, so that no partial renaming remains.
+     *
+     * @return the executed renamings of all folders or null, if the generated names collide or cannot be renamed without conflicts
+     */
+    private RenamingPlan performFolderPipelinedRenaming(List<Path> folders, CollisionDetector collisionDetector)
+            throws IOException, PluginException, SwapException {
+        BlockingQueue<RenamingPlan> plannedFolders = new ArrayBlockingQueue<>(configuration.getFolderPipelineDepth());
+        // Marks the end of the planning, compared by identity
+        RenamingPlan endOfPlanning = new RenamingPlan();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Boolean> planning = executor.submit(() -> {
+            try {
+                for (Path folder : folders) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        // The planning was cancelled after a failed move, the remaining folders are not renamed anymore
+                        return false;
+                    }
+                    RenamingPlan folderPlan = new RenamingPlan();
+                    determineRenamingForAllFilesInFolder(folder, folderPlan, collisionDetector);
+                    if (collisionDetector.hasCollisions()) {
+                        return false;
+                    }
+                    if (!canRenamingWithoutConflicts(folderPlan)) {
+                        log.error("Cannot perform renaming of folder " + folder + " without conflicts. Aborting...");
+                        return false;
+                    }
+                    if (!folderPlan.isEmpty()) {
+                        plannedFolders.put(folderPlan);
+                    }
+                }
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw e;
+            } finally {
+                // A cancelled planning has no consumer waiting for the end anymore, putting it could block forever
+                if (!Thread.currentThread().isInterrupted()) {
+                    plannedFolders.put(endOfPlanning);
+                }
+            }
+        });
+
+        StorageProviderInterface storageProvider = StorageProvider.getInstance();
+        List<String> failedMoves = Collections.synchronizedList(new ArrayList<>());
+        List<RenamingPlan> executedPlans = new ArrayList<>();
+        boolean planned;
+        try (RenamingReport report = openRenamingReport()) {
+            for (RenamingPlan folderPlan = takePlannedFolder(plannedFolders); folderPlan != endOfPlanning;
+                    folderPlan = takePlannedFolder(plannedFolders)) {
+                if (configuration.isAdaptiveStrategy()) {
+                    // Only the plan of the current folder is known yet
+                    strategy.adaptMoveThreads(folderPlan.size(), configuration.getMoveThreads());
+                    adaptMoveThreadsToStorage();
+                }
+                boolean[][] executed = createExecutionMarks(folderPlan);
+                if (strategy.getMoveThreads() > 1) {
+                    performConcurrentMoves(storageProvider, folderPlan, report, failedMoves, executed);
+                } else {
+                    performSequentialMoves(storageProvider, folderPlan, report, failedMoves, executed);
+                }
+                if (!failedMoves.isEmpty()) {
+                    // Stop planning the remaining folders, only the renamings of the current folder executed before the failure need to be
+                    // renamed back
+                    planning.cancel(true);
+                    executedPlans.add(folderPlan.subset(executed));
+                    break;
+                }
+                executedPlans.add(folderPlan);
+            }
+            if (!failedMoves.isEmpty()) {
+                failedMoves.forEach(m -> log.error("Failed to rename " + m));
+                String reason = circuitBreaker.isOpen() ? "too many storage operations failed" : failedMoves.size() + " files could not be renamed";
+                rollBackFolders(storageProvider, executedPlans, report, reason);
+                throw new IOException("Aborted renaming, " + reason + ". The renamed files were renamed back");
+            }
+            try {
+                planned = awaitPlanning(planning);
+            } catch (PluginException | IOException e) {
+                rollBackFolders(storageProvider, executedPlans, report, "the planning of a later folder failed");
+                throw e;
+            }
+            if (!planned) {
+                rollBackFolders(storageProvider, executedPlans, report, "the planning of a later folder failed");
+            }
+        } catch (IOException e) {
+            log.error("Error during renaming: " + e.getMessage());
+            throw e;
+        } finally {
+            // Unblocks a planning waiting for free space in the queue
+            plannedFolders.clear();
+            executor.shutdownNow();
+        }
+        if (!planned) {
+            return null;
+        }
+        log.debug("Renaming statistics: " + metrics);
+        checkLease();
+        RenamingPlan executedPlan = RenamingPlan.concat(executedPlans);
+        if (configuration.isAdaptiveStrategy()) {
+            // The METS file is updated after all folders were renamed, so the update can be chosen from the whole plan
+            long metsFileSize = configuration.isUpdateMetsFile() ? determineMetsFileSize() : 0;
+            strategy.adaptMetsUpdate(executedPlan.size(), executedPlan.getFolderCount(), metsFileSize, configuration.isUpdateMetsFile(),
+                    configuration.isStructureNeeded());
+            log.info("Renaming strategy: " + strategy);
+        }
+        originalFileNameHistory.applyRenamingPlan(executedPlan);
+        return executedPlan;
+    }
+
+    private RenamingPlan takePlannedFolder(BlockingQueue<RenamingPlan> plannedFolders) throws IOException {
+        try {
+            return plannedFolders.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the planning of the next folder", e);
+        }
+    }
+
+    private boolean awaitPlanning(Future<Boolean> planning) throws IOException, PluginException {
+        try {
+            return planning.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the planning", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof PluginException pluginException) {
+                throw pluginException;
+            }
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException("Error during planning: " + e.getCause(), e.getCause());
+        }
+    }
+
+    /**
+     * Renames the files of the already renamed folders back to their former names.
+     */
+    private void rollBackFolders(StorageProviderInterface storageProvider, List<RenamingPlan> executedPlans, RenamingReport report,
+            String reason) throws IOException {
+        rollBack(storageProvider, RenamingPlan.concat(executedPlans), report, reason);
+        executedPlans.clear();
+    }
+
+    /**
+     * Renames the files of the executed renamings back to their former names, so that no partial renaming remains. All renamings are
+     * attempted, even if some of them fail.
+     *
+     * @param reason the reason of the rollback for logging
+     * @throws IOException if not all files could be renamed back
+     */
+    private void rollBack(StorageProviderInterface storageProvider, RenamingPlan executedPlan, RenamingReport report, String reason)
+            throws IOException {
+        if (executedPlan.isEmpty()) {
+            return;
+        }
+        RenamingPlan rollback = executedPlan.inverse();
+        log.warn("Renaming " + rollback.size() + " files of " + rollback.getFolderCount() + " folders back, " + reason);
+        List<String> failedMoves = Collections.synchronizedList(new ArrayList<>());
+        boolean[][] executed = createExecutionMarks(rollback);
+        rollingBack = true;
+        try {
+            for (int f = 0; f < rollback.getFolderCount(); f++) {
+                for (int c = 0; c < rollback.getChainCount(f); c++) {
+                    performChain(storageProvider, report, rollback, f, c, failedMoves, executed);
+                }
+            }
+        } finally {
+            rollingBack = false;
+        }
+        if (!failedMoves.isEmpty()) {
+            failedMoves.forEach(m -> log.error("Failed to rename back " + m));
+            throw new IOException(failedMoves.size() + " files could not be renamed back, the renamed files are inconsistent");
+        }
+    }
+
+    /**
+     * @return the report of this run in the process directory or null, if no report is configured
+     */
+    private RenamingReport openRenamingReport() throws IOException, SwapException {
+        String format = configuration.getRenamingReport();
+        if (RenamingConfiguration.RENAMING_REPORT_NONE.equals(format)) {
+            return null;
+        }
+        String fileName = "rename_files_report_" + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date()) + "." + format;
+        RenamingReport report = new RenamingReport(Paths.get(process.getProcessDataDirectory(), fileName), format,
+                configuration.getRenamingReportFlushInterval());
+        log.debug("Writing renaming report to " + report.getFile());
+        return report;
+    }
+
+    /**
+     * Renames the files while the METS update and the new file name history are prepared in the background. The prepared METS file and the
+     * history are only written after all files were renamed successfully.
+     */
+    private void performPipelinedRenaming(RenamingPlan renamingPlan) throws IOException, SwapException, DAOException {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        Future<MetsFileUpdater.PreparedMetsUpdate> metsUpdate = null;
+        if (configuration.isUpdateMetsFile()) {
+            metsUpdate = executor.submit(() -> metsFileUpdater.prepareMetsFileUpdate(process, renamingPlan, strategy.isStreamingMetsUpdate()));
+        }
+        Future<String> historyUpdate = null;
+        if (!RenamingConfiguration.HISTORY_STORAGE_FILE.equals(configuration.getHistoryStorage())) {
+            // The history is updated by the renaming itself, so the background stage works on a copy
+            OriginalFileNameHistory predictedHistory =
+                    deserializeOriginalFileNameHistoryFromJson(serializeOriginalFileNameHistoryIntoJson(originalFileNameHistory));
+            historyUpdate = executor.submit(() -> {
+                predictedHistory.applyRenamingPlan(renamingPlan);
+                pruneOriginalFileNameHistory(predictedHistory, renamingPlan);
+                return serializeOriginalFileNameHistoryIntoJson(predictedHistory);
+            });
+        }
+
+        boolean completed = false;
+        try {
+            performRenaming(renamingPlan);
+            if (metsUpdate != null) {
+                MetsFileUpdater.PreparedMetsUpdate preparedMetsUpdate = awaitBackgroundTask(metsUpdate);
+                throttleMetsFileWrite();
+                preparedMetsUpdate.commit();
+            }
+            if (historyUpdate != null) {
+                property.setPropertyValue(awaitBackgroundTask(historyUpdate));
+            } else {
+                // The history log only receives the entries of this run, there is nothing to prepare
+                updateProcessPropertyWithNewFileNameHistory(renamingPlan);
+            }
+            saveProcessProperty();
+            completed = true;
+            updateOcrFiles(renamingPlan);
+        } finally {
+            if (!completed && metsUpdate != null) {
+                discardPreparedMetsUpdate(metsUpdate);
+            }
+            executor.shutdownNow();
+        }
+    }
+
+    private <T> T awaitBackgroundTask(Future<T> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a background task", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException("Error in background task: " + e.getCause(), e.getCause());
+        }
+    }
+
+    private void discardPreparedMetsUpdate(Future<MetsFileUpdater.PreparedMetsUpdate> metsUpdate) {
+        try {
+            metsUpdate.get().discard();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // Preparation failed, nothing to discard
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package de.intranda.goobi.plugins;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import lombok.Getter;
+
+/**
+ * Exponential backoff with jitter for retrying failed storage operations. The delay doubles with every retry up to the maximum delay, a random
+ * part of up to half the delay spreads the retries of concurrent workers.
+ */
+public class RetryPolicy {
+    @Getter
+    private final int maxRetries;
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+
+    public RetryPolicy(int maxRetries, long initialDelayMillis, long maxDelayMillis) {
+        if (maxRetries < 0 || initialDelayMillis < 0 || maxDelayMillis < initialDelayMillis) {
+            throw new IllegalArgumentException("Invalid retry policy: maxRetries=" + maxRetries + ", initialDelay=" + initialDelayMillis
+                    + ", maxDelay=" + maxDelayMillis);
+        }
+        this.maxRetries = maxRetries;
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * @param retry the number of the retry, starting with 0
+     * @return the delay before the retry in milliseconds
+     */
+    public long getDelayMillis(int retry) {
+        long delay = initialDelayMillis << Math.min(retry, 30);
+        if (delay < 0 || delay > maxDelayMillis) {
+            delay = maxDelayMillis;
+        }
+        long half = delay / 2;
+        return half + ThreadLocalRandom.current().nextLong(delay - half + 1);
+    }
+}
@@ -0,0 +1,20 @@
+package de.intranda.goobi.plugins;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import lombok.NonNull;
+
+class StaticNamePart extends NamePart {
+    private String staticPart;
+
+    public StaticNamePart(@NonNull List<NamePartReplacement> replacements, @NonNull List<NamePartCondition> conditions, String staticPart) {
+        super(replacements, conditions);
+        this.staticPart = staticPart;
+    }
+
+    @Override
+    protected String generate(RenamingRun renamingRun, Path oldName) {
+        return this.staticPart;
+    }
+}
@@ -0,0 +1,30 @@
+package de.intranda.goobi.plugins;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+
+import lombok.Getter;
+import lombok.NonNull;
+
+class VariableNamePart extends NamePart {
+    @Getter
+    private String rawString;
+    private Optional<String> format;
+
+    public VariableNamePart(@NonNull List<NamePartReplacement> replacements, @NonNull List<NamePartCondition> conditions, String rawString,
+            String format) {
+        super(replacements, conditions);
+        this.rawString = rawString;
+        this.format = Optional.ofNullable(format);
+    }
+
+    @Override
+    protected String generate(RenamingRun renamingRun, Path oldName) throws PluginException {
+        var result = renamingRun.getReplacer().replace(oldName, rawString);
+        if (format.isPresent()) {
+            result = formatString(format.get(), result);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,42 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void failuresBelowThreshold_expectClosedBreaker() {
+        CircuitBreaker breaker = new CircuitBreaker(0.5, 4);
+        breaker.recordFailure();
+        breaker.recordSuccess();
+        breaker.recordSuccess();
+        breaker.recordSuccess();
+        breaker.recordFailure();
+        assertFalse(breaker.isOpen());
+    }
+
+    @Test
+    public void failuresReachingThreshold_expectOpenBreaker() {
+        CircuitBreaker breaker = new CircuitBreaker(0.5, 4);
+        breaker.recordSuccess();
+        breaker.recordFailure();
+        breaker.recordSuccess();
+        assertFalse(breaker.isOpen());
+        breaker.recordFailure();
+        assertTrue(breaker.isOpen());
+        breaker.recordSuccess();
+        assertTrue(breaker.isOpen());
+    }
+
+    @Test
+    public void failuresBeforeWindowIsFilled_expectClosedBreaker() {
+        CircuitBreaker breaker = new CircuitBreaker(0.5, 4);
+        breaker.recordFailure();
+        breaker.recordFailure();
+        breaker.recordFailure();
+        assertFalse(breaker.isOpen());
+    }
+}
@@ -0,0 +1,55 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.Test;
+
+import de.intranda.goobi.plugins.CollisionDetector.Collision;
+
+public class CollisionDetectorTest {
+    private static final Path DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY = Paths.get("/opt/digiverso/goobi/metadata/1/images/media");
+    private static final Path DEFAULT_PROCESS_TIF_DIRECTORY = Paths.get("/opt/digiverso/goobi/metadata/1/images/tif");
+
+    @Test
+    public void sameTargetInDifferentFolders_expectNoCollision() {
+        CollisionDetector detector = new CollisionDetector(10);
+        detector.startFolder(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, 1);
+        assertTrue(detector.register("a.jpg", "FILE.jpg"));
+        detector.startFolder(DEFAULT_PROCESS_TIF_DIRECTORY, 1);
+        assertTrue(detector.register("a.jpg", "FILE.jpg"));
+
+        assertFalse(detector.hasCollisions());
+    }
+
+    @Test
+    public void renamingOntoUnchangedFile_expectCollisionReported() {
+        CollisionDetector detector = new CollisionDetector(10);
+        detector.startFolder(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, 2);
+        detector.register("FILE.jpg", "FILE.jpg");
+        detector.register("a.jpg", "FILE.jpg");
+
+        assertEquals(1, detector.getCollisions().size());
+        Collision collision = detector.getCollisions().get(0);
+        assertEquals(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, collision.getFolder());
+        assertEquals("FILE.jpg", collision.getFirstSource());
+        assertEquals("a.jpg", collision.getSecondSource());
+        assertEquals("FILE.jpg", collision.getTarget());
+    }
+
+    @Test
+    public void collisionLimitReached_expectGenerationStopped() {
+        CollisionDetector detector = new CollisionDetector(2);
+        detector.startFolder(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, 4);
+        assertTrue(detector.register("a.jpg", "STATIC.jpg"));
+        assertTrue(detector.register("b.jpg", "STATIC.jpg"));
+        assertFalse(detector.register("c.jpg", "STATIC.jpg"));
+
+        assertTrue(detector.isLimitReached());
+        assertEquals(2, detector.getCollisions().size());
+    }
+}
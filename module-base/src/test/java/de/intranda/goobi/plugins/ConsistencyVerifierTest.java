@@ -0,0 +1,60 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.sub.goobi.helper.StorageProviderInterface;
+
+public class ConsistencyVerifierTest {
+    private static final Path DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY = Paths.get("/opt/digiverso/goobi/metadata/1/images/media");
+    private static final Path DEFAULT_PROCESS_OCR_XML_DIRECTORY = Paths.get("/opt/digiverso/goobi/metadata/1/images/xml");
+
+    private StorageProviderInterface storage;
+    private ConsistencyVerifier verifier;
+
+    @Before
+    public void setup() {
+        storage = mock(StorageProviderInterface.class);
+        when(storage.listFiles(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY.toString())).thenReturn(List.of(
+                DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY.resolve("00001.jpg"),
+                DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY.resolve("00002.jpg")));
+        when(storage.listFiles(DEFAULT_PROCESS_OCR_XML_DIRECTORY.toString())).thenReturn(List.of(
+                DEFAULT_PROCESS_OCR_XML_DIRECTORY.resolve("00001.xml")));
+        verifier = new ConsistencyVerifier(storage);
+    }
+
+    @Test
+    public void allFilesReferenced_expectConsistent() {
+        ConsistencyVerifier.Result result = verifier.verify(List.of(
+                "file:///opt/digiverso/goobi/metadata/1/images/media/00001.jpg",
+                "file:///opt/digiverso/goobi/metadata/1/images/media/00002.jpg"),
+                List.of(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, DEFAULT_PROCESS_OCR_XML_DIRECTORY));
+
+        assertTrue(result.isConsistent());
+        assertEquals(2, result.getCheckedReferences());
+        assertEquals(3, result.getCheckedFiles());
+    }
+
+    @Test
+    public void renamedFileNotUpdatedInMets_expectDanglingAndUnreferencedFile() {
+        ConsistencyVerifier.Result result = verifier.verify(List.of(
+                "file:///opt/digiverso/goobi/metadata/1/images/media/00001.jpg",
+                "file:///opt/digiverso/goobi/metadata/1/images/media/a_02.jpg",
+                "file:///opt/digiverso/goobi/metadata/1/images/master/00001.tif"),
+                List.of(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, DEFAULT_PROCESS_OCR_XML_DIRECTORY));
+
+        assertFalse(result.isConsistent());
+        assertEquals(List.of("file:///opt/digiverso/goobi/metadata/1/images/media/a_02.jpg"), result.getDanglingReferences());
+        assertEquals(List.of(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY.resolve("00002.jpg")), result.getUnreferencedFiles());
+    }
+}
@@ -0,0 +1,128 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.sub.goobi.helper.StorageProviderInterface;
+
+public class ContentHashCacheTest {
+    private static final String SHA_256_OF_ABC = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path cacheFile;
+    private Path file;
+    private StorageProviderInterface storageProvider;
+
+    @Before
+    public void setup() throws IOException {
+        storageProvider = createLocalStorageProvider();
+        cacheFile = temporaryFolder.getRoot().toPath().resolve(ContentHashCache.DEFAULT_FILE_NAME);
+        file = temporaryFolder.getRoot().toPath().resolve("a_01.tif");
+        Files.writeString(file, "abc", StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Storage provider backed by the local file system, like the one of Goobi workflow without S3.
+     */
+    private StorageProviderInterface createLocalStorageProvider() throws IOException {
+        StorageProviderInterface localStorageProvider = mock(StorageProviderInterface.class);
+        when(localStorageProvider.isFileExists(any(Path.class))).thenAnswer(i -> Files.exists(i.getArgument(0, Path.class)));
+        when(localStorageProvider.getFileSize(any(Path.class))).thenAnswer(i -> Files.size(i.getArgument(0, Path.class)));
+        when(localStorageProvider.getLastModifiedDate(any(Path.class)))
+                .thenAnswer(i -> Files.getLastModifiedTime(i.getArgument(0, Path.class)).toMillis());
+        when(localStorageProvider.newInputStream(any(Path.class))).thenAnswer(i -> Files.newInputStream(i.getArgument(0, Path.class)));
+        when(localStorageProvider.newOutputStream(any(Path.class))).thenAnswer(i -> Files.newOutputStream(i.getArgument(0, Path.class)));
+        doAnswer(i -> Files.move(i.getArgument(0, Path.class), i.getArgument(1, Path.class), StandardCopyOption.REPLACE_EXISTING))
+                .when(localStorageProvider)
+                .move(any(Path.class), any(Path.class));
+        return localStorageProvider;
+    }
+
+    /**
+     * Changes the content without changing size and modification time, so only a cached digest still matches the old content.
+     */
+    private void replaceContentUnnoticed(Path path) throws IOException {
+        FileTime lastModified = Files.getLastModifiedTime(path);
+        Files.writeString(path, "xyz", StandardCharsets.US_ASCII);
+        Files.setLastModifiedTime(path, lastModified);
+    }
+
+    @Test
+    public void unchangedFile_expectDigestFromSavedCache() throws IOException {
+        ContentHashCache cache = new ContentHashCache(cacheFile, storageProvider);
+        assertEquals(SHA_256_OF_ABC, cache.digest(file, "SHA-256"));
+        cache.save();
+
+        replaceContentUnnoticed(file);
+
+        assertEquals(SHA_256_OF_ABC, new ContentHashCache(cacheFile, storageProvider).digest(file, "SHA-256"));
+        assertNotEquals(SHA_256_OF_ABC, cache.computeDigest(file, "SHA-256"));
+    }
+
+    @Test
+    public void renamedFile_expectDigestFromCacheUnderNewName() throws IOException {
+        ContentHashCache cache = new ContentHashCache(cacheFile, storageProvider);
+        cache.digest(file, "SHA-256");
+        Path renamedFile = file.resolveSibling(SHA_256_OF_ABC.substring(0, 16) + ".tif");
+        Files.move(file, renamedFile);
+        cache.rename(file, renamedFile);
+        cache.save();
+
+        replaceContentUnnoticed(renamedFile);
+
+        assertEquals(SHA_256_OF_ABC, new ContentHashCache(cacheFile, storageProvider).digest(renamedFile, "SHA-256"));
+    }
+
+    @Test
+    public void differentAlgorithm_expectNewDigest() throws IOException {
+        ContentHashCache cache = new ContentHashCache(cacheFile, storageProvider);
+        cache.digest(file, "SHA-256");
+
+        assertEquals("a9993e364706816aba3e25717850c26c9cd0d89d", cache.digest(file, "SHA-1"));
+    }
+
+    @Test
+    public void differentAlgorithms_expectBothDigestsFromSavedCache() throws IOException {
+        ContentHashCache cache = new ContentHashCache(cacheFile, storageProvider);
+        cache.digest(file, "SHA-256");
+        String sha1 = cache.digest(file, "SHA-1");
+        cache.save();
+
+        replaceContentUnnoticed(file);
+
+        ContentHashCache loadedCache = new ContentHashCache(cacheFile, storageProvider);
+        assertEquals(SHA_256_OF_ABC, loadedCache.digest(file, "SHA-256"));
+        assertEquals(sha1, loadedCache.digest(file, "SHA-1"));
+    }
+
+    @Test
+    public void deletedFile_expectEntryDroppedOnSave() throws IOException {
+        ContentHashCache cache = new ContentHashCache(cacheFile, storageProvider);
+        cache.digest(file, "SHA-256");
+        cache.save();
+        Files.delete(file);
+
+        new ContentHashCache(cacheFile, storageProvider).save();
+
+        assertFalse(Files.readString(cacheFile, StandardCharsets.UTF_8).contains(file.toString()));
+    }
+}
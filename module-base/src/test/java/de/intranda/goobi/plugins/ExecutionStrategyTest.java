@@ -0,0 +1,98 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ExecutionStrategyTest {
+
+    private ExecutionStrategy createFixedStrategy() {
+        return new ExecutionStrategy(false, 4, true, true);
+    }
+
+    @Test
+    public void smallPlan_expectSequentialMovesAndRegularMetsUpdate() {
+        ExecutionStrategy strategy = createFixedStrategy();
+        strategy.adaptToPlan(ExecutionStrategy.ADAPTIVE_CONCURRENT_MIN_MOVES - 1, 1, 0, true, true, 4);
+        assertEquals(1, strategy.getMoveThreads());
+        assertFalse(strategy.isStreamingMetsUpdate());
+        assertFalse(strategy.isPipelinedExecution());
+    }
+
+    @Test
+    public void largePlan_expectConfiguredMoveThreadsAndPipelinedExecution() {
+        ExecutionStrategy strategy = createFixedStrategy();
+        strategy.adaptToPlan(ExecutionStrategy.ADAPTIVE_PIPELINE_MIN_FILES, 3, 0, true, true, 4);
+        assertEquals(4, strategy.getMoveThreads());
+        assertTrue(strategy.isPipelinedExecution());
+        assertFalse(strategy.isStreamingMetsUpdate());
+    }
+
+    @Test
+    public void largePlanWithoutConfiguredThreads_expectDefaultMoveThreads() {
+        ExecutionStrategy strategy = createFixedStrategy();
+        strategy.adaptToPlan(ExecutionStrategy.ADAPTIVE_CONCURRENT_MIN_MOVES, 1, 0, true, true, 1);
+        assertEquals(ExecutionStrategy.ADAPTIVE_MOVE_THREADS, strategy.getMoveThreads());
+    }
+
+    @Test
+    public void largePlanWithoutMetsUpdate_expectSequentialExecution() {
+        ExecutionStrategy strategy = createFixedStrategy();
+        strategy.adaptToPlan(ExecutionStrategy.ADAPTIVE_PIPELINE_MIN_FILES, 1, 0, false, true, 4);
+        assertFalse(strategy.isPipelinedExecution());
+    }
+
+    @Test
+    public void manyPagesPerFolder_expectStreamingMetsUpdate() {
+        ExecutionStrategy strategy = createFixedStrategy();
+        strategy.adaptToPlan(2 * ExecutionStrategy.ADAPTIVE_STREAMING_METS_MIN_PAGES, 2, 0, true, true, 4);
+        assertTrue(strategy.isStreamingMetsUpdate());
+
+        // The same number of files spread over more folders belongs to fewer pages
+        strategy.adaptToPlan(2 * ExecutionStrategy.ADAPTIVE_STREAMING_METS_MIN_PAGES, 3, 0, true, true, 4);
+        assertFalse(strategy.isStreamingMetsUpdate());
+    }
+
+    @Test
+    public void fewPagesOfLargeMetsFile_expectStreamingMetsUpdate() {
+        ExecutionStrategy strategy = createFixedStrategy();
+        strategy.adaptToPlan(10, 1, ExecutionStrategy.ADAPTIVE_STREAMING_METS_MIN_BYTES - 1, true, true, 4);
+        assertFalse(strategy.isStreamingMetsUpdate());
+
+        strategy.adaptToPlan(10, 1, ExecutionStrategy.ADAPTIVE_STREAMING_METS_MIN_BYTES, true, true, 4);
+        assertTrue(strategy.isStreamingMetsUpdate());
+    }
+
+    @Test
+    public void fewPagesWithoutStructureLookups_expectStreamingMetsUpdate() {
+        ExecutionStrategy strategy = createFixedStrategy();
+        strategy.adaptToPlan(10, 1, 0, true, false, 4);
+        assertTrue(strategy.isStreamingMetsUpdate());
+        assertTrue(strategy.toString().contains("without structure lookups"));
+    }
+
+    @Test
+    public void objectStorage_expectAtLeastObjectStorageMoveThreads() {
+        ExecutionStrategy strategy = createFixedStrategy();
+        strategy.adaptMoveThreads(10, 4);
+        strategy.adaptToObjectStorage(16);
+        assertEquals(16, strategy.getMoveThreads());
+        assertTrue(strategy.toString().contains("object storage"));
+
+        // More configured threads are kept
+        strategy.adaptMoveThreads(ExecutionStrategy.ADAPTIVE_CONCURRENT_MIN_MOVES, 32);
+        strategy.adaptToObjectStorage(16);
+        assertEquals(32, strategy.getMoveThreads());
+    }
+
+    @Test
+    public void repeatedAdaption_expectOnlyLatestReasonPerPhase() {
+        ExecutionStrategy strategy = createFixedStrategy();
+        strategy.adaptMoveThreads(10, 4);
+        strategy.adaptMoveThreads(ExecutionStrategy.ADAPTIVE_CONCURRENT_MIN_MOVES, 4);
+        assertEquals(1, strategy.getReasons().size());
+        assertTrue(strategy.toString().contains("4 move threads for " + ExecutionStrategy.ADAPTIVE_CONCURRENT_MIN_MOVES + " renamings"));
+    }
+}
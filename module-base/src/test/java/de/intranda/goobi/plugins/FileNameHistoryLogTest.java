@@ -0,0 +1,111 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.gson.Gson;
+
+public class FileNameHistoryLogTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private FileNameHistoryLog historyLog;
+
+    @Before
+    public void setup() {
+        historyLog = new FileNameHistoryLog(temporaryFolder.getRoot().toPath().resolve(FileNameHistoryLog.DEFAULT_FILE_NAME));
+    }
+
+    private List<String> replayEntries() throws IOException {
+        List<String> entries = new LinkedList<>();
+        historyLog.replay(new FileNameHistoryLog.Visitor() {
+            @Override
+            public void move(String folder, String from, String to) {
+                entries.add("move " + folder + " " + from + " " + to);
+            }
+
+            @Override
+            public void state(String folder, String current, String original) {
+                entries.add("state " + folder + " " + current + " " + original);
+            }
+        });
+        return entries;
+    }
+
+    @Test
+    public void multipleAppends_expectAllEntriesReplayedInOrder() throws IOException {
+        FileNameHistoryLog.Batch first = new FileNameHistoryLog.Batch();
+        first.move("images_media", "a_01.jpg", "00001.jpg");
+        first.move("images_media", "a_02.jpg", "00002.jpg");
+        historyLog.append(first);
+        FileNameHistoryLog.Batch second = new FileNameHistoryLog.Batch();
+        second.move("images_media", "00001.jpg", "FILE_0001.jpg");
+        historyLog.append(second);
+
+        assertEquals(List.of(
+                "move images_media a_01.jpg 00001.jpg",
+                "move images_media a_02.jpg 00002.jpg",
+                "move images_media 00001.jpg FILE_0001.jpg"), replayEntries());
+    }
+
+    @Test
+    public void rewrite_expectOnlyNewEntriesAndChangedChecksum() throws IOException {
+        FileNameHistoryLog.Batch moves = new FileNameHistoryLog.Batch();
+        moves.move("images_media", "a_01.jpg", "00001.jpg");
+        moves.move("images_media", "00001.jpg", "FILE_0001.jpg");
+        historyLog.append(moves);
+        String checksum = historyLog.checksum();
+
+        FileNameHistoryLog.Batch state = new FileNameHistoryLog.Batch();
+        state.state("images_media", "FILE_0001.jpg", "a_01.jpg");
+        historyLog.rewrite(state);
+
+        assertEquals(List.of("state images_media FILE_0001.jpg a_01.jpg"), replayEntries());
+        assertNotEquals(checksum, historyLog.checksum());
+    }
+
+    @Test
+    public void fileNameWithSeparator_expectEntryRestoredUnchanged() throws IOException {
+        FileNameHistoryLog.Batch moves = new FileNameHistoryLog.Batch();
+        moves.move("images_media", "a\t01\\.jpg", "00001.jpg");
+        historyLog.append(moves);
+
+        assertEquals(List.of("move images_media a\t01\\.jpg 00001.jpg"), replayEntries());
+    }
+
+    @Test
+    public void nonAsciiNamesAndIncompleteLastLine_expectCompleteEntriesReplayed() throws IOException {
+        FileNameHistoryLog.Batch moves = new FileNameHistoryLog.Batch();
+        moves.move("images_media", "Stra\u00dfe_01.jpg", "00001.jpg");
+        moves.move("images_media", "\u6587\u66f8_02.jpg", "00002.jpg");
+        historyLog.append(moves);
+        // An append that was interrupted before its line end
+        Files.write(historyLog.getFile(), "M\timages_media\ta_03".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        assertEquals(List.of(
+                "move images_media Stra\u00dfe_01.jpg 00001.jpg",
+                "move images_media \u6587\u66f8_02.jpg 00002.jpg"), replayEntries());
+    }
+
+    @Test
+    public void propertyWithFullHistory_expectNoPointer() {
+        Gson gson = new Gson();
+        assertNull(FileNameHistoryLog.Pointer.parse(gson, "{\"originalFileNameMapping\":{\"images_media\":{\"00001.jpg\":\"a_01.jpg\"}}}"));
+        assertNull(FileNameHistoryLog.Pointer.parse(gson, null));
+        assertFalse(historyLog.exists());
+    }
+}
@@ -0,0 +1,100 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ImageHeaderReaderTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private ImageHeaderReader reader = new ImageHeaderReader();
+
+    /**
+     * Creates a TIFF header with the tags DocumentName, PageNumber and an EXIF directory containing DateTimeOriginal, without image data.
+     */
+    private byte[] createTiffHeader(ByteOrder order) {
+        ByteBuffer buffer = ByteBuffer.allocate(96).order(order);
+        if (order == ByteOrder.LITTLE_ENDIAN) {
+            buffer.put((byte) 'I').put((byte) 'I');
+        } else {
+            buffer.put((byte) 'M').put((byte) 'M');
+        }
+        buffer.putShort((short) 42).putInt(8);
+        // First image file directory with three entries
+        buffer.putShort((short) 3);
+        buffer.putShort((short) 269).putShort((short) 2).putInt(7).putInt(50);
+        buffer.putShort((short) 297).putShort((short) 3).putInt(2).putShort((short) 5).putShort((short) 10);
+        buffer.putShort((short) 34665).putShort((short) 4).putInt(1).putInt(58);
+        buffer.putInt(0);
+        buffer.put("Band_1\0".getBytes(StandardCharsets.US_ASCII));
+        // EXIF directory
+        buffer.position(58);
+        buffer.putShort((short) 1);
+        buffer.putShort((short) 36867).putShort((short) 2).putInt(20).putInt(76);
+        buffer.putInt(0);
+        buffer.put("2024:05:01 12:00:00\0".getBytes(StandardCharsets.US_ASCII));
+        return buffer.array();
+    }
+
+    private Path writeFile(String name, byte[] content) throws IOException {
+        Path file = temporaryFolder.getRoot().toPath().resolve(name);
+        Files.write(file, content);
+        return file;
+    }
+
+    private void assertHeader(Map<Integer, String> header) {
+        assertEquals("Band_1", header.get(ImageHeaderReader.resolveTag("DocumentName")));
+        assertEquals("5", header.get(ImageHeaderReader.resolveTag("PageNumber")));
+        assertEquals("2024:05:01 12:00:00", header.get(ImageHeaderReader.resolveTag("DateTimeOriginal")));
+    }
+
+    @Test
+    public void littleEndianTiff_expectTagsOfBothDirectories() throws IOException {
+        assertHeader(reader.read(writeFile("00001.tif", createTiffHeader(ByteOrder.LITTLE_ENDIAN))));
+    }
+
+    @Test
+    public void bigEndianTiff_expectTagsOfBothDirectories() throws IOException {
+        assertHeader(reader.read(writeFile("00001.tif", createTiffHeader(ByteOrder.BIG_ENDIAN))));
+    }
+
+    @Test
+    public void jpegWithExifSegment_expectTagsOfExifSegment() throws IOException {
+        byte[] tiff = createTiffHeader(ByteOrder.BIG_ENDIAN);
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        jpeg.write(new byte[] { (byte) 0xFF, (byte) 0xD8 });
+        // JFIF segment before the EXIF segment
+        jpeg.write(new byte[] { (byte) 0xFF, (byte) 0xE0, 0, 16 });
+        jpeg.write(new byte[14]);
+        int length = 2 + 6 + tiff.length;
+        jpeg.write(new byte[] { (byte) 0xFF, (byte) 0xE1, (byte) (length >> 8), (byte) length });
+        jpeg.write("Exif\0\0".getBytes(StandardCharsets.US_ASCII));
+        jpeg.write(tiff);
+        jpeg.write(new byte[] { (byte) 0xFF, (byte) 0xDA, 0, 2 });
+
+        assertHeader(reader.read(writeFile("00001.jpg", jpeg.toByteArray())));
+    }
+
+    @Test
+    public void textFile_expectNoTags() throws IOException {
+        assertTrue(reader.read(writeFile("00001.txt", "no image at all".getBytes(StandardCharsets.US_ASCII))).isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownTagName_expectIllegalArgumentException() {
+        ImageHeaderReader.resolveTag("Unknown");
+    }
+}
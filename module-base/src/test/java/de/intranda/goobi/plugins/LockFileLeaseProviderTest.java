@@ -0,0 +1,83 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.gson.Gson;
+
+public class LockFileLeaseProviderTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private LockFileLeaseProvider leaseProvider;
+    private Path leaseFile;
+
+    @Before
+    public void setup() {
+        leaseProvider = new LockFileLeaseProvider(Duration.ofMinutes(5));
+        leaseFile = temporaryFolder.getRoot().toPath().resolve(LockFileLeaseProvider.DEFAULT_FILE_NAME);
+    }
+
+    @Test
+    public void leaseHeldByOtherWorker_expectNoLease() throws IOException {
+        try (ProcessLease lease = leaseProvider.acquire(leaseFile)) {
+            assertNotNull(lease);
+            assertTrue(lease.isValid());
+            assertNull(leaseProvider.acquire(leaseFile));
+        }
+    }
+
+    @Test
+    public void releasedLease_expectLeaseAcquiredAgain() throws IOException {
+        leaseProvider.acquire(leaseFile).close();
+        assertFalse(Files.exists(leaseFile));
+
+        try (ProcessLease lease = leaseProvider.acquire(leaseFile)) {
+            assertNotNull(lease);
+        }
+    }
+
+    @Test
+    public void leaseFileMovedAwayTemporarily_expectLeaseStillValidAndRenewed() throws IOException, InterruptedException {
+        LockFileLeaseProvider shortLeaseProvider = new LockFileLeaseProvider(Duration.ofMillis(1500));
+        try (ProcessLease lease = shortLeaseProvider.acquire(leaseFile)) {
+            // Like another worker checking whether the lease is stale, for two renewals
+            Path movedFile = leaseFile.resolveSibling(leaseFile.getFileName() + ".stale");
+            Files.move(leaseFile, movedFile, StandardCopyOption.ATOMIC_MOVE);
+            Thread.sleep(1100);
+            assertTrue(lease.isValid());
+
+            Files.move(movedFile, leaseFile, StandardCopyOption.ATOMIC_MOVE);
+            Thread.sleep(1000);
+            // Only valid after the initial expiry if it was renewed
+            assertTrue(lease.isValid());
+        }
+    }
+
+    @Test
+    public void staleLease_expectLeaseTakenOver() throws IOException {
+        LockFileLeaseProvider.LeaseRecord staleRecord = new LockFileLeaseProvider.LeaseRecord();
+        staleRecord.setOwner("crashed-worker");
+        staleRecord.setExpiresAt(System.currentTimeMillis() - 1000);
+        Files.writeString(leaseFile, new Gson().toJson(staleRecord));
+
+        try (ProcessLease lease = leaseProvider.acquire(leaseFile)) {
+            assertNotNull(lease);
+            assertTrue(lease.isValid());
+        }
+        assertFalse(Files.exists(leaseFile));
+    }
+}
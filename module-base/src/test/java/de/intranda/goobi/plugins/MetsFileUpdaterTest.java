@@ -1,8 +1,11 @@
 package de.intranda.goobi.plugins;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -10,8 +13,10 @@ import static org.mockito.Mockito.when;
 
 import java.io.IOException;
 import java.net.URL;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.HashMap;
@@ -23,8 +28,11 @@ import org.goobi.beans.Process;
 import org.goobi.beans.Ruleset;
 import org.hamcrest.core.Is;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import de.sub.goobi.helper.StorageProviderInterface;
 import de.sub.goobi.helper.exceptions.SwapException;
 import ugh.dl.ContentFile;
 import ugh.dl.Fileformat;
@@ -37,15 +45,21 @@ import ugh.fileformats.mets.MetsMods;
 public class MetsFileUpdaterTest {
     private static final String DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY = "/opt/digiverso/goobi/metadata/1/images/bergsphi_625017145_media";
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     private MetsFileUpdater metsFileUpdater;
 
+    private StorageProviderInterface storageProvider;
     private Process process;
     private Fileformat fileFormat;
     private Ruleset ruleset;
 
     @Before
     public void setup() throws ReadException, IOException, SwapException, PreferencesException {
-        metsFileUpdater = new MetsFileUpdater();
+        storageProvider = mock(StorageProviderInterface.class);
+        setupStorageProviderMocking(storageProvider);
+        metsFileUpdater = new MetsFileUpdater(() -> storageProvider, () -> 2);
         process = mock(Process.class);
         ruleset = mock(Ruleset.class);
         Prefs rulesetPrefs = new Prefs();
@@ -53,6 +67,17 @@ public class MetsFileUpdaterTest {
         when(ruleset.getPreferences()).thenReturn(rulesetPrefs);
     }
 
+    private void setupStorageProviderMocking(StorageProviderInterface storageProvider) throws IOException {
+        when(storageProvider.isFileExists(any())).thenAnswer(invocation -> Files.exists(invocation.getArgument(0, Path.class)));
+        doAnswer(invocation -> Files.move(invocation.getArgument(0), invocation.getArgument(1), StandardCopyOption.REPLACE_EXISTING))
+                .when(storageProvider)
+                .move(any(), any());
+        doAnswer(invocation -> Files.copy(invocation.getArgument(0, Path.class), invocation.getArgument(1, Path.class),
+                StandardCopyOption.REPLACE_EXISTING))
+                .when(storageProvider)
+                .copyFile(any(), any());
+    }
+
     private void mockMetaFileReading(Process process, String metaDataFileName)
             throws ReadException, PreferencesException, IOException, SwapException {
         URL resource = getClass().getResource("/" + metaDataFileName);
@@ -62,6 +87,27 @@ public class MetsFileUpdaterTest {
         when(process.readMetadataFile()).thenReturn(fileFormat);
     }
 
+    private Path copyMetaFileIntoProcessFolder(Process process, String metaDataFileName) throws IOException, SwapException {
+        Path metaFile = temporaryFolder.getRoot().toPath().resolve("meta.xml");
+        try (var in = getClass().getResourceAsStream("/" + metaDataFileName)) {
+            Files.copy(in, metaFile);
+        }
+        when(process.getMetadataFilePath()).thenReturn(metaFile.toString());
+        return metaFile;
+    }
+
+    private List<String> readFileLocations(Path metaFile) throws PreferencesException, ReadException {
+        Fileformat writtenFileFormat = new MetsMods();
+        writtenFileFormat.setPrefs(ruleset.getPreferences());
+        writtenFileFormat.read(metaFile.toString());
+        return writtenFileFormat.getDigitalDocument()
+                .getFileSet()
+                .getAllFiles()
+                .stream()
+                .map(ContentFile::getLocation)
+                .collect(Collectors.toList());
+    }
+
     private List<String> extractFileLocations() throws PreferencesException {
         return fileFormat.getDigitalDocument()
                 .getFileSet()
@@ -95,9 +141,7 @@ public class MetsFileUpdaterTest {
         return originalFileLocation;
     }
 
-    @Test
-    public void simpleRenamingDone_expectCorrectModificationsToMetsFile()
-            throws IOException, ReadException, PreferencesException, SwapException, WriteException {
+    private Map<Path, Path> createSimpleRenamingMap() {
         NumberFormat oldFormat = new DecimalFormat("00000000");
         NumberFormat newFormat = new DecimalFormat("0000");
 
@@ -108,6 +152,13 @@ public class MetsFileUpdaterTest {
                     Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, oldFormat.format(i) + ".jpg"),
                     Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "FILE_" + newFormat.format(i) + ".jpg"));
         }
+        return renamingMap;
+    }
+
+    @Test
+    public void simpleRenamingDone_expectCorrectModificationsToMetsFile()
+            throws IOException, ReadException, PreferencesException, SwapException, WriteException {
+        Map<Path, Path> renamingMap = createSimpleRenamingMap();
 
         mockMetaFileReading(process, "before-mets-update.xml");
         List<String> originalFileLocations = extractFileLocations();
@@ -116,4 +167,75 @@ public class MetsFileUpdaterTest {
 
         verifyMetadataFileLocationUpdateCorrect(originalFileLocations, updatedFileLocations, renamingMap);
     }
+
+    @Test
+    public void simpleRenamingDoneStreaming_expectCorrectModificationsToMetsFile()
+            throws IOException, ReadException, PreferencesException, SwapException, WriteException {
+        Map<Path, Path> renamingMap = createSimpleRenamingMap();
+
+        Path metaFile = copyMetaFileIntoProcessFolder(process, "before-mets-update.xml");
+        List<String> originalFileLocations = readFileLocations(metaFile);
+        metsFileUpdater.updateMetsFileStreaming(process, renamingMap);
+        List<String> updatedFileLocations = readFileLocations(metaFile);
+
+        verify(process, times(0)).writeMetadataFile(any());
+        assertEquals(originalFileLocations.size(), updatedFileLocations.size());
+        for (int i = 0; i < updatedFileLocations.size(); i++) {
+            assertThat(updatedFileLocations.get(i), Is.is(applyRenaming(originalFileLocations.get(i), renamingMap)));
+        }
+    }
+
+    @Test
+    public void streamingRenamingWithoutPlainMetsFile_expectFallbackToRegularUpdate()
+            throws IOException, ReadException, PreferencesException, SwapException, WriteException {
+        Map<Path, Path> renamingMap = createSimpleRenamingMap();
+
+        copyMetaFileIntoProcessFolder(process, "ruleset.xml");
+        mockMetaFileReading(process, "before-mets-update.xml");
+        List<String> originalFileLocations = extractFileLocations();
+        metsFileUpdater.updateMetsFileStreaming(process, renamingMap);
+        List<String> updatedFileLocations = extractFileLocations();
+
+        verifyMetadataFileLocationUpdateCorrect(originalFileLocations, updatedFileLocations, renamingMap);
+    }
+
+    @Test
+    public void streamingRenamingDone_expectPreviousMetsFileKeptAsRotatedBackup()
+            throws IOException, ReadException, PreferencesException, SwapException, WriteException {
+        Map<Path, Path> renamingMap = createSimpleRenamingMap();
+
+        Path metaFile = copyMetaFileIntoProcessFolder(process, "before-mets-update.xml");
+        String originalContent = Files.readString(metaFile);
+        metsFileUpdater.updateMetsFileStreaming(process, renamingMap);
+        String firstUpdateContent = Files.readString(metaFile);
+        metsFileUpdater.updateMetsFileStreaming(process, Map.of());
+
+        verify(storageProvider, times(2)).move(metaFile.resolveSibling("meta.xml.renaming"), metaFile);
+        assertEquals(firstUpdateContent, Files.readString(metaFile.resolveSibling("meta.xml.1")));
+        assertEquals(originalContent, Files.readString(metaFile.resolveSibling("meta.xml.2")));
+        assertFalse(Files.exists(metaFile.resolveSibling("meta.xml.renaming")));
+    }
+
+    @Test
+    public void sameFileNameInDifferentFolders_expectLocationsRenamedPerFolder() throws IOException, SwapException {
+        Path metaFile = temporaryFolder.getRoot().toPath().resolve("meta.xml");
+        Files.writeString(metaFile, "<mets:mets xmlns:mets=\"http://www.loc.gov/METS/\" xmlns:xlink=\"http://www.w3.org/1999/xlink\">"
+                + "<mets:fileSec>"
+                + "<mets:fileGrp USE=\"LOCAL\"><mets:file ID=\"FILE_0001\"><mets:FLocat LOCTYPE=\"URL\" "
+                + "xlink:href=\"file:///opt/digiverso/goobi/metadata/1/images/x_media/00001.jpg\"/></mets:file></mets:fileGrp>"
+                + "<mets:fileGrp USE=\"MASTER\"><mets:file ID=\"FILE_0001_MASTER\"><mets:FLocat LOCTYPE=\"URL\" "
+                + "xlink:href=\"file:///opt/digiverso/goobi/metadata/1/images/master_x_media/00001.jpg\"/></mets:file></mets:fileGrp>"
+                + "</mets:fileSec></mets:mets>");
+        when(process.getMetadataFilePath()).thenReturn(metaFile.toString());
+
+        metsFileUpdater.updateMetsFileStreaming(process, Map.of(
+                Paths.get("/opt/digiverso/goobi/metadata/1/images/x_media/00001.jpg"),
+                Paths.get("/opt/digiverso/goobi/metadata/1/images/x_media/a_0001.jpg"),
+                Paths.get("/opt/digiverso/goobi/metadata/1/images/master_x_media/00001.jpg"),
+                Paths.get("/opt/digiverso/goobi/metadata/1/images/master_x_media/b_0001.jpg")));
+
+        String updatedContent = Files.readString(metaFile);
+        assertThat(updatedContent.contains("images/x_media/a_0001.jpg"), Is.is(true));
+        assertThat(updatedContent.contains("images/master_x_media/b_0001.jpg"), Is.is(true));
+    }
 }
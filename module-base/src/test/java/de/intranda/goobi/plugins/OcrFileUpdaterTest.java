@@ -0,0 +1,86 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class OcrFileUpdaterTest {
+    private static final String ALTO = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<alto xmlns=\"http://www.loc.gov/standards/alto/ns-v4#\"><Description><MeasurementUnit>pixel</MeasurementUnit>"
+            + "<sourceImageInformation><fileName>%s</fileName></sourceImageInformation></Description>"
+            + "<Layout><Page ID=\"Page1\" PHYSICAL_IMG_NR=\"1\"/></Layout></alto>";
+    private static final String PAGE = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<PcGts xmlns=\"http://schema.primaresearch.org/PAGE/gts/pagecontent/2019-07-15\">"
+            + "<Page imageFilename=\"%s\" imageWidth=\"100\" imageHeight=\"200\"/></PcGts>";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private OcrFileUpdater updater = new OcrFileUpdater(2);
+
+    private RenamingPlan createPlan() {
+        return RenamingPlan.fromMapping(Map.of(
+                Paths.get("/process/images/a_media/a_01.tif"), Paths.get("/process/images/a_media/00000001.tif"),
+                Paths.get("/process/ocr/a_alto/a_01.xml"), Paths.get("/process/ocr/a_alto/00000001.xml"),
+                Paths.get("/process/images/a_media/a_02.tif"), Paths.get("/process/images/a_media/00000002.tif")));
+    }
+
+    private Path writeFile(String name, String content) throws IOException {
+        Path file = temporaryFolder.getRoot().toPath().resolve(name);
+        Files.writeString(file, content, StandardCharsets.UTF_8);
+        return file;
+    }
+
+    @Test
+    public void altoAndPageFiles_expectImageReferencesUpdated() throws IOException {
+        Path alto = writeFile("00000001.xml", String.format(ALTO, "C:\\scans\\a_01.tif"));
+        Path page = writeFile("00000002.xml", String.format(PAGE, "a_02.jpg"));
+
+        assertEquals(2, updater.updateImageReferences(List.of(alto, page), createPlan()));
+
+        String updatedAlto = Files.readString(alto, StandardCharsets.UTF_8);
+        assertTrue(updatedAlto, updatedAlto.contains("<fileName>C:\\scans\\00000001.tif</fileName>"));
+        assertTrue(updatedAlto, updatedAlto.contains("PHYSICAL_IMG_NR=\"1\""));
+        String updatedPage = Files.readString(page, StandardCharsets.UTF_8);
+        assertTrue(updatedPage, updatedPage.contains("imageFilename=\"00000002.jpg\""));
+        assertTrue(updatedPage, updatedPage.contains("imageWidth=\"100\""));
+    }
+
+    @Test
+    public void unrelatedXmlAndUnchangedReferences_expectFilesUntouched() throws IOException {
+        String other = "<?xml version=\"1.0\"?><other><fileName>a_01.tif</fileName></other>";
+        Path otherFile = writeFile("other.xml", other);
+        String alto = String.format(ALTO, "b_01.tif");
+        Path altoFile = writeFile("b_01.xml", alto);
+
+        assertEquals(0, updater.updateImageReferences(List.of(otherFile, altoFile), createPlan()));
+
+        assertEquals(other, Files.readString(otherFile, StandardCharsets.UTF_8));
+        assertEquals(alto, Files.readString(altoFile, StandardCharsets.UTF_8));
+        try (Stream<Path> files = Files.list(temporaryFolder.getRoot().toPath())) {
+            assertEquals(2, files.count());
+        }
+    }
+
+    @Test
+    public void fileNameRenamedDifferentlyInTwoFolders_expectNotUpdated() {
+        OcrFileUpdater.ImageReferenceIndex index = new OcrFileUpdater.ImageReferenceIndex(RenamingPlan.fromMapping(Map.of(
+                Paths.get("/process/images/a_media/a_01.tif"), Paths.get("/process/images/a_media/00000001.tif"),
+                Paths.get("/process/images/a_master/a_01.tif"), Paths.get("/process/images/a_master/00000002.tif"))));
+
+        assertNull(index.lookUp("a_01.tif"));
+    }
+}
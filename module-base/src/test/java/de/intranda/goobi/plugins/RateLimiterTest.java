@@ -0,0 +1,76 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.time.LocalTime;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RateLimiterTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void burstWithinOneSecond_expectNoWaiting() {
+        RateLimiter limiter = new RateLimiter(10, 0);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, limiter.reserve(1, 0));
+        }
+        assertEquals(SECOND / 10, limiter.reserve(1, 0));
+    }
+
+    @Test
+    public void largeRequest_expectFollowingRequestsWaitForDeficit() {
+        RateLimiter limiter = new RateLimiter(100, 0);
+        assertEquals(2 * SECOND, limiter.reserve(300, 0));
+        // Half a second later the deficit of 200 permits is reduced to 150
+        assertEquals(2 * SECOND, limiter.reserve(50, SECOND / 2));
+    }
+
+    @Test
+    public void idleLimiter_expectBucketLimitedToOneSecond() {
+        RateLimiter limiter = new RateLimiter(10, 0);
+        limiter.reserve(10, 0);
+        assertEquals(0, limiter.reserve(10, 60 * SECOND));
+        assertEquals(SECOND / 10, limiter.reserve(1, 60 * SECOND));
+    }
+
+    @Test
+    public void sharedLimiterOfSameNameAndRate_expectSameInstance() {
+        assertSame(RateLimiter.getShared("test.operations", 10), RateLimiter.getShared("test.operations", 10));
+    }
+
+    @Test
+    public void sharedLimiterOfSameNameWithDifferentRate_expectSeparateLimiterKeepingItsRate() {
+        RateLimiter limiter = RateLimiter.getShared("test.bytes", 10);
+        assertNotSame(limiter, RateLimiter.getShared("test.bytes", 20));
+        // The bucket of the first limiter still holds the permits of one second at its own rate
+        assertEquals(0, limiter.reserve(10, System.nanoTime()));
+        assertTrue(limiter.reserve(10, System.nanoTime()) > 0);
+    }
+
+    @Test
+    public void windowAcrossMidnight_expectNightIncluded() {
+        OffPeakWindow window = OffPeakWindow.parse("22:00-06:00");
+        assertTrue(window.contains(LocalTime.of(22, 0)));
+        assertTrue(window.contains(LocalTime.of(3, 30)));
+        assertFalse(window.contains(LocalTime.of(6, 0)));
+        assertFalse(window.contains(LocalTime.of(12, 0)));
+    }
+
+    @Test
+    public void windowWithinDay_expectOnlyWindowIncluded() {
+        OffPeakWindow window = OffPeakWindow.parse("12:00 - 13:30");
+        assertTrue(window.contains(LocalTime.of(13, 0)));
+        assertFalse(window.contains(LocalTime.of(11, 59)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidWindow_expectIllegalArgumentException() {
+        OffPeakWindow.parse("nights");
+    }
+}
@@ -2,8 +2,17 @@ package de.intranda.goobi.plugins;
 
 import static org.easymock.EasyMock.expect;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -16,10 +25,21 @@ import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.SubnodeConfiguration;
@@ -27,7 +47,7 @@ import org.apache.commons.configuration.XMLConfiguration;
 import org.apache.commons.configuration.tree.xpath.XPathExpressionEngine;
 import org.easymock.EasyMock;
 import org.goobi.beans.Process;
-import org.goobi.beans.Processproperty;
+import org.goobi.beans.GoobiProperty;
 import org.goobi.beans.Project;
 import org.goobi.beans.Ruleset;
 import org.goobi.beans.Step;
@@ -37,8 +57,11 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Ignore;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InOrder;
 import org.mockito.Mockito;
 import org.powermock.core.classloader.annotations.PowerMockIgnore;
@@ -50,18 +73,21 @@ import com.google.gson.Gson;
 import de.intranda.goobi.plugins.RenameFilesPlugin.OriginalFileNameHistory;
 import de.sub.goobi.config.ConfigPlugins;
 import de.sub.goobi.config.ConfigurationHelper;
+import de.sub.goobi.helper.CloseStepHelper;
 import de.sub.goobi.helper.StorageProvider;
 import de.sub.goobi.helper.StorageProviderInterface;
 import de.sub.goobi.helper.exceptions.DAOException;
 import de.sub.goobi.helper.exceptions.SwapException;
 import de.sub.goobi.persistence.managers.PropertyManager;
+import de.sub.goobi.persistence.managers.StepManager;
 import ugh.dl.Fileformat;
 import ugh.dl.Prefs;
 import ugh.exceptions.PreferencesException;
 import ugh.exceptions.ReadException;
 
 @RunWith(PowerMockRunner.class)
-@PrepareForTest({ MetsFileUpdater.class, ConfigurationHelper.class, ConfigPlugins.class, PropertyManager.class, StorageProvider.class })
+@PrepareForTest({ MetsFileUpdater.class, ConfigurationHelper.class, ConfigPlugins.class, PropertyManager.class, StorageProvider.class,
+        StepManager.class, CloseStepHelper.class })
 @PowerMockIgnore({ "javax.management.*" })
 public class RenameFilesPluginTest {
     private static final String DEFAULT_PROCESS_IMAGES_DIRECTORY = "/opt/digiverso/goobi/metadata/1/images";
@@ -77,8 +103,9 @@ public class RenameFilesPluginTest {
     private static final int DEFAULT_PROJECT_ID = 1;
     private static final String DEFAULT_PROCESS_TITLE = "TestProcess_123";
     private static final int DEFAULT_PROCESS_ID = 1;
+    private static final int DEFAULT_STEP_ID = 7;
 
-    private Processproperty processProperty;
+    private GoobiProperty processProperty;
     private SubnodeConfiguration pluginConfiguration;
     private StorageProviderInterface storage;
     private ConfigurationHelper configurationHelper;
@@ -93,6 +120,9 @@ public class RenameFilesPluginTest {
 
     private RenameFilesPlugin plugin;
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @BeforeClass
     public static void setUpClass() throws Exception {
         URL log4JResource = RenameFilesPlugin.class.getResource("/log4j2.xml");
@@ -126,9 +156,10 @@ public class RenameFilesPluginTest {
         step = mock(Step.class);
         when(step.getProzess()).thenReturn(process);
 
-        processProperty = mock(Processproperty.class);
+        processProperty = mock(GoobiProperty.class);
         setupProcessPropertyMocking(processProperty);
         when(processProperty.getPropertyName()).thenReturn(RenameFilesPlugin.PROPERTY_TITLE);
+        when(process.getProperties()).thenReturn(new ArrayList<>(List.of(processProperty)));
 
         storage = mock(StorageProviderInterface.class);
         setupStorageProviderMocking(storage);
@@ -152,12 +183,13 @@ public class RenameFilesPluginTest {
         replay(ConfigPlugins.class);
     }
 
-    private void setupProcessPropertyMocking(Processproperty property) {
+    private void setupProcessPropertyMocking(GoobiProperty property) {
         mockStatic(PropertyManager.class);
         expect(PropertyManager.getProcessPropertiesForProcess(DEFAULT_PROCESS_ID))
                 .andReturn(List.of(processProperty))
                 .anyTimes();
         PropertyManager.saveProperty(EasyMock.anyObject());
+        EasyMock.expectLastCall().anyTimes();
         replay(PropertyManager.class);
     }
 
@@ -222,10 +254,10 @@ public class RenameFilesPluginTest {
         }
     }
 
-    private void verifyOriginalFileNameHistoryUpdatedCorrectly(String jsonFile) throws IOException, URISyntaxException {
+    private void verifyOriginalFileNameHistoryUpdatedCorrectly(RenamingRun run, String jsonFile) throws IOException, URISyntaxException {
         String json = loadJsonResource(jsonFile);
         OriginalFileNameHistory expectedHistory = gson.fromJson(json, OriginalFileNameHistory.class);
-        assertThat(expectedHistory, Is.is(plugin.originalFileNameHistory));
+        assertThat(expectedHistory, Is.is(run.originalFileNameHistory));
         // TODO: Currently not tested, that saving the property is invoked!
     }
 
@@ -242,6 +274,12 @@ public class RenameFilesPluginTest {
         when(storage.isDirectory(Paths.get(DEFAULT_PROCESS_OCR_PDF_DIRECTORY))).thenReturn(doExist);
         when(storage.isDirectory(Paths.get(DEFAULT_PROCESS_OCR_TXT_DIRECTORY))).thenReturn(doExist);
         when(storage.isDirectory(Paths.get(DEFAULT_PROCESS_OCR_XML_DIRECTORY))).thenReturn(doExist);
+        List<String> folderNames = Stream.of(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, DEFAULT_PROCESS_TIF_DIRECTORY,
+                DEFAULT_PROCESS_OCR_ALTO_DIRECTORY, DEFAULT_PROCESS_OCR_PDF_DIRECTORY, DEFAULT_PROCESS_OCR_TXT_DIRECTORY,
+                DEFAULT_PROCESS_OCR_XML_DIRECTORY)
+                .map(f -> Paths.get(f).getFileName().toString())
+                .collect(Collectors.toList());
+        when(storage.listDirNames(Paths.get(DEFAULT_PROCESS_IMAGES_DIRECTORY).toString())).thenReturn(doExist ? folderNames : List.of());
     }
 
     private void mockStorageFileParentPathPresence(List<Path> files) {
@@ -252,6 +290,13 @@ public class RenameFilesPluginTest {
                     when(storage.isDirectory(p)).thenReturn(true);
                     when(storage.isFileExists(p)).thenReturn(true);
                 });
+        List<String> imagesSubfolderNames = files.stream()
+                .map(f -> f.getParent())
+                .filter(p -> p.getParent().equals(Paths.get(DEFAULT_PROCESS_IMAGES_DIRECTORY)))
+                .map(p -> p.getFileName().toString())
+                .distinct()
+                .collect(Collectors.toList());
+        when(storage.listDirNames(Paths.get(DEFAULT_PROCESS_IMAGES_DIRECTORY).toString())).thenReturn(imagesSubfolderNames);
     }
 
     private void mockStorageFilePresence(List<Path> files) {
@@ -300,6 +345,28 @@ public class RenameFilesPluginTest {
         verifyRenamingFromTo(oldFiles, newFiles);
     }
 
+    @Test
+    public void onlySingleStatic_folderPatterns_expectOnlyMatchingFoldersRenamed() throws ConfigurationException, IOException {
+        setupPluginConfiguration("static-only_renaming_folder_patterns");
+        initializate();
+
+        List<Path> oldFiles = List.of(
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "001.jpg"),
+                Paths.get(DEFAULT_PROCESS_TIF_DIRECTORY, "001.tif"),
+                Paths.get(DEFAULT_PROCESS_OCR_XML_DIRECTORY, "001.xml"));
+        List<Path> newFiles = List.of(
+                Paths.get(DEFAULT_PROCESS_TIF_DIRECTORY, "STATIC.tif"),
+                Paths.get(DEFAULT_PROCESS_OCR_XML_DIRECTORY, "STATIC.xml"));
+        mockStorageFileParentPathPresence(oldFiles);
+        mockStorageFilePresence(oldFiles);
+
+        assertEquals(PluginReturnValue.FINISH, plugin.run());
+
+        verifyRenamingFromTo(oldFiles.subList(1, 3), newFiles);
+        verify(storage, never()).move(eq(oldFiles.get(0)), any());
+        verify(storage, times(1)).listDirNames(Paths.get(DEFAULT_PROCESS_IMAGES_DIRECTORY).toString());
+    }
+
     @Test
     public void onlySingleCounter_renameOneFolderOnly_expectCorrectFileRenaming() throws ConfigurationException, IOException {
         setupPluginConfiguration("counter-only_renaming_star");
@@ -322,6 +389,324 @@ public class RenameFilesPluginTest {
         verifyRenamingFromTo(oldFiles, newFiles);
     }
 
+    @Test
+    public void attributeOrderAndSize_renameOneFolderOnly_expectNamesFromStorageAttributes() throws ConfigurationException, IOException {
+        setupPluginConfiguration("attribute-order-size_renaming_star");
+        initializate();
+
+        List<Path> oldFiles = List.of(
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "a_01.jpg"),
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "a_02.jpg"),
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "a_03.jpg"));
+        List<Path> newFiles = List.of(
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "003_100.jpg"),
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "001_200.jpg"),
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "002_300.jpg"));
+
+        mockStorageFileParentPathPresence(oldFiles);
+        mockStorageFilePresence(oldFiles);
+        long[] sizes = { 100, 200, 300 };
+        long[] modificationDates = { 3000, 1000, 2000 };
+        for (int i = 0; i < oldFiles.size(); i++) {
+            when(storage.getFileSize(oldFiles.get(i))).thenReturn(sizes[i]);
+            when(storage.getLastModifiedDate(oldFiles.get(i))).thenReturn(modificationDates[i]);
+        }
+
+        assertEquals(PluginReturnValue.FINISH, plugin.run());
+
+        verifyRenamingFromTo(oldFiles, newFiles);
+    }
+
+    @Test
+    public void onlySingleCounterOnObjectStorage_renameOneFolderOnly_expectConcurrentMoves() throws ConfigurationException, IOException {
+        setupPluginConfiguration("counter-only_renaming_star");
+        when(configurationHelper.useS3()).thenReturn(true);
+        initializate();
+
+        List<Path> oldFiles = new ArrayList<>();
+        List<Path> newFiles = new ArrayList<>();
+        for (int i = 1; i <= 40; i++) {
+            oldFiles.add(Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, String.format("a_%02d.jpg", i)));
+            newFiles.add(Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, String.format("%05d.jpg", i)));
+        }
+        mockStorageFileParentPathPresence(oldFiles);
+        mockStorageFilePresence(oldFiles);
+        Set<String> movingThreads = ConcurrentHashMap.newKeySet();
+        doAnswer(invocation -> {
+            movingThreads.add(Thread.currentThread().getName());
+            Thread.sleep(5);
+            return null;
+        }).when(storage).move(any(Path.class), any(Path.class));
+
+        assertEquals(PluginReturnValue.FINISH, plugin.run());
+
+        verifyRenamingFromTo(oldFiles, newFiles);
+        assertTrue(movingThreads.size() > 1);
+    }
+
+    @Test
+    public void onlySingleCounterWithoutMetsUpdate_renameOneFolderOnly_expectMetsFileNotRead()
+            throws ConfigurationException, IOException, SwapException, DAOException, PreferencesException, ReadException {
+        setupPluginConfiguration("counter-only_without_mets_update");
+        initializate();
+
+        List<Path> oldFiles = List.of(
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "a_01.jpg"),
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "a_02.jpg"));
+        List<Path> newFiles = List.of(
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "00001.jpg"),
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "00002.jpg"));
+
+        mockStorageFileParentPathPresence(oldFiles);
+        mockStorageFilePresence(oldFiles);
+
+        assertEquals(PluginReturnValue.FINISH, plugin.run());
+
+        verifyRenamingFromTo(oldFiles, newFiles);
+        verify(process, never()).readMetadataFile();
+    }
+
+    @Test
+    public void onlySingleCounter_transientMoveFailure_expectRetriedRenaming() throws ConfigurationException, IOException {
+        setupPluginConfiguration("counter-only_renaming_retry");
+        initializate();
+
+        List<Path> oldFiles = List.of(
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "a_01.jpg"),
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "a_02.jpg"),
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "a_03.jpg"));
+        List<Path> newFiles = List.of(
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "00001.jpg"),
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "00002.jpg"),
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "00003.jpg"));
+
+        mockStorageFileParentPathPresence(oldFiles);
+        mockStorageFilePresence(oldFiles);
+        doThrow(new IOException("Stale file handle")).doNothing().when(storage).move(oldFiles.get(1), newFiles.get(1));
+
+        RenamingRun run = plugin.createRenamingRun(step);
+        assertEquals(PluginReturnValue.FINISH, run.execute());
+
+        verify(storage, times(1)).move(oldFiles.get(0), newFiles.get(0));
+        verify(storage, times(2)).move(oldFiles.get(1), newFiles.get(1));
+        verify(storage, times(1)).move(oldFiles.get(2), newFiles.get(2));
+        assertEquals(3, run.metrics.get(RenameFilesPlugin.METRIC_MOVES));
+        assertEquals(1, run.metrics.get(RenameFilesPlugin.METRIC_MOVE_RETRIES));
+        assertEquals(1, run.metrics.get(RenameFilesPlugin.METRIC_MOVE_FAILURES));
+    }
+
+    @Test
+    public void asynchronousExecution_enqueueRenaming_expectRenamingByWorkerAndClosedStep() throws Exception {
+        setupPluginConfiguration("counter-only_asynchronous_execution");
+        when(configurationHelper.getTemporaryFolder()).thenReturn(temporaryFolder.getRoot().toString());
+        initializate();
+        when(step.getId()).thenReturn(DEFAULT_STEP_ID);
+
+        List<Path> oldFiles = List.of(
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "a_01.jpg"),
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "a_02.jpg"));
+        List<Path> newFiles = List.of(
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "00001.jpg"),
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "00002.jpg"));
+
+        mockStorageFileParentPathPresence(oldFiles);
+        mockStorageFilePresence(oldFiles);
+        CountDownLatch stepClosed = new CountDownLatch(1);
+        mockStatic(StepManager.class);
+        expect(StepManager.getStepById(DEFAULT_STEP_ID)).andReturn(step).anyTimes();
+        replay(StepManager.class);
+        mockStatic(CloseStepHelper.class);
+        expect(CloseStepHelper.closeStep(step, null)).andAnswer(() -> {
+            stepClosed.countDown();
+            return true;
+        });
+        replay(CloseStepHelper.class);
+
+        try {
+            // The step stays open until the worker executed the renaming
+            assertFalse(plugin.execute());
+            assertTrue(stepClosed.await(30, TimeUnit.SECONDS));
+        } finally {
+            RenameJobWorkerPool.shutdownAll(30000);
+        }
+
+        verifyRenamingFromTo(oldFiles, newFiles);
+        verify(metsFileUpdater, times(1)).updateMetsFile(eq(process), any(RenamingPlan.class));
+    }
+
+    @Test
+    public void asynchronousExecution_jobQueuedBeforeRestart_expectRenamingResumedOnInitialization() throws Exception {
+        setupPluginConfiguration("counter-only_asynchronous_execution");
+        when(configurationHelper.getTemporaryFolder()).thenReturn(temporaryFolder.getRoot().toString());
+
+        List<Path> oldFiles = List.of(
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "a_01.jpg"),
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "a_02.jpg"));
+        List<Path> newFiles = List.of(
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "00001.jpg"),
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "00002.jpg"));
+
+        mockStorageFileParentPathPresence(oldFiles);
+        mockStorageFilePresence(oldFiles);
+        RenamingPlan plan = RenamingPlan.fromMapping(Map.of(oldFiles.get(0), newFiles.get(0), oldFiles.get(1), newFiles.get(1)));
+        assertTrue(plan.orderForExecution());
+        RenameJobQueue.Job job = new RenameJobQueue.Job();
+        job.setProcessId(DEFAULT_PROCESS_ID);
+        job.setStepId(DEFAULT_STEP_ID);
+        job.setPlan(plan.toRecords());
+        new RenameJobQueue(temporaryFolder.getRoot().toPath().resolve("rename_files_queue")).enqueue(job);
+
+        CountDownLatch stepClosed = new CountDownLatch(1);
+        mockStatic(StepManager.class);
+        expect(StepManager.getStepById(DEFAULT_STEP_ID)).andReturn(step).anyTimes();
+        replay(StepManager.class);
+        mockStatic(CloseStepHelper.class);
+        expect(CloseStepHelper.closeStep(step, null)).andAnswer(() -> {
+            stepClosed.countDown();
+            return true;
+        });
+        replay(CloseStepHelper.class);
+
+        try {
+            // Initializing the plugin for any step starts the workers for the job left over by the previous run
+            initializate();
+            assertTrue(stepClosed.await(30, TimeUnit.SECONDS));
+        } finally {
+            RenameJobWorkerPool.shutdownAll(30000);
+        }
+
+        verifyRenamingFromTo(oldFiles, newFiles);
+    }
+
+    @Test(expected = PluginException.class)
+    public void unknownHistoryStorage_expectPluginException() throws ConfigurationException, PluginException {
+        setupPluginConfiguration("counter-only_renaming_star");
+        pluginConfiguration.setProperty("historyStorage", "database");
+        new RenamingConfiguration(pluginConfiguration);
+    }
+
+    @Test
+    public void historyLogWithChecksumMismatch_expectErrorAndNoRenaming() throws Exception {
+        setupPluginConfiguration("counter-only_renaming_star");
+        pluginConfiguration.setProperty("historyStorage", "file");
+        initializate();
+        when(process.getProcessDataDirectory()).thenReturn(temporaryFolder.getRoot().toString());
+
+        FileNameHistoryLog historyLog =
+                new FileNameHistoryLog(temporaryFolder.getRoot().toPath().resolve(FileNameHistoryLog.DEFAULT_FILE_NAME));
+        FileNameHistoryLog.Batch moves = new FileNameHistoryLog.Batch();
+        moves.move("images_media", "x_01.jpg", "a_01.jpg");
+        historyLog.append(moves);
+        FileNameHistoryLog.Pointer pointer = new FileNameHistoryLog.Pointer();
+        pointer.setHistoryFile(FileNameHistoryLog.DEFAULT_FILE_NAME);
+        pointer.setChecksum("0");
+        pointer.setEntries(1);
+        when(processProperty.getPropertyValue()).thenReturn(gson.toJson(pointer));
+
+        List<Path> oldFiles = List.of(Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "a_01.jpg"));
+        mockStorageFileParentPathPresence(oldFiles);
+        mockStorageFilePresence(oldFiles);
+
+        assertEquals(PluginReturnValue.ERROR, plugin.run());
+
+        verify(storage, never()).move(any(Path.class), any(Path.class));
+    }
+
+    @Test
+    public void historyWithMissingFilesAndFolders_expectPrunedEntries() {
+        OriginalFileNameHistory history = new OriginalFileNameHistory();
+        history.putOriginalFileName("images_media", "00001.jpg", "a_01.jpg");
+        history.putOriginalFileName("images_media", "00002.jpg", "a_02.jpg");
+        history.putOriginalFileName("images_greyscale", "00001.jpg", "a_01.jpg");
+        history.putOriginalFileName("ocr_alto", "00001.xml", "a_01.xml");
+
+        long reclaimedBytes = history.prune(Map.of("images_media", Set.of("00001.jpg")), Set.of("images_greyscale"));
+
+        assertTrue(reclaimedBytes > 0);
+        assertEquals(2, history.getEntryCount());
+        assertEquals(Set.of("images_media", "ocr_alto"), history.getFolderIdentifiers());
+        assertEquals("a_01.jpg", history.getOriginalFileNameOf(Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "00001.jpg")));
+    }
+
+    @Test
+    public void onlySingleCounter_concurrentRunsWithSamePlugin_expectIndependentCounters()
+            throws ConfigurationException, IOException, InterruptedException, ExecutionException {
+        setupPluginConfiguration("counter-only_renaming_star");
+        initializate();
+
+        List<Path> oldFiles = List.of(
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "a_01.jpg"),
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "a_02.jpg"),
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "a_03.jpg"));
+        List<Path> newFiles = List.of(
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "00001.jpg"),
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "00002.jpg"),
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "00003.jpg"));
+
+        mockStorageFileParentPathPresence(oldFiles);
+        mockStorageFilePresence(oldFiles);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<PluginReturnValue> first = executor.submit(() -> plugin.run(step));
+            Future<PluginReturnValue> second = executor.submit(() -> plugin.run(step));
+            assertEquals(PluginReturnValue.FINISH, first.get());
+            assertEquals(PluginReturnValue.FINISH, second.get());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Both runs start counting at the start value
+        for (int i = 0; i < oldFiles.size(); i++) {
+            verify(storage, times(2)).move(oldFiles.get(i), newFiles.get(i));
+        }
+    }
+
+    @Test
+    public void mixedVariableCounterWithCondition_parallelGenerationOfLargeFolders_expectSameNamesAsSequentialGeneration()
+            throws ConfigurationException, IOException {
+        setupPluginConfiguration("mixed-variable-counter-with-condition_parallel_generation");
+        initializate();
+
+        List<Path> oldFiles = new LinkedList<>();
+        for (int i = 1; i <= 300; i++) {
+            // A single barcode per folder, its name is static
+            String name = i == 7 ? String.format("a_barcode_%03d", i) : String.format("a_%03d", i);
+            oldFiles.add(Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, name + ".jpg"));
+            oldFiles.add(Paths.get(DEFAULT_PROCESS_TIF_DIRECTORY, name + ".tif"));
+        }
+
+        mockStorageFileParentPathPresence(oldFiles);
+        mockStorageFilePresence(oldFiles);
+
+        assertEquals(PluginReturnValue.FINISH, plugin.run());
+        Map<Path, Path> parallelRenaming = captureRenaming(oldFiles.size());
+
+        Mockito.clearInvocations(storage);
+        pluginConfiguration.setProperty("parallelGeneration", "false");
+        plugin = new RenameFilesPlugin();
+        plugin.initialize(step, DEFAULT_RETURN_PAGE);
+        assertEquals(PluginReturnValue.FINISH, plugin.run());
+        Map<Path, Path> sequentialRenaming = captureRenaming(oldFiles.size());
+
+        assertEquals(sequentialRenaming, parallelRenaming);
+        assertEquals(Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, DEFAULT_PROCESS_TITLE + "_00000.jpg"),
+                parallelRenaming.get(Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "a_barcode_007.jpg")));
+        assertEquals(Paths.get(DEFAULT_PROCESS_TIF_DIRECTORY, DEFAULT_PROCESS_TITLE + "_00299.tif"),
+                parallelRenaming.get(Paths.get(DEFAULT_PROCESS_TIF_DIRECTORY, "a_300.tif")));
+    }
+
+    private Map<Path, Path> captureRenaming(int expectedMoves) throws IOException {
+        ArgumentCaptor<Path> sources = ArgumentCaptor.forClass(Path.class);
+        ArgumentCaptor<Path> targets = ArgumentCaptor.forClass(Path.class);
+        verify(storage, times(expectedMoves)).move(sources.capture(), targets.capture());
+        Map<Path, Path> renaming = new HashMap<>();
+        for (int i = 0; i < expectedMoves; i++) {
+            renaming.put(sources.getAllValues().get(i), targets.getAllValues().get(i));
+        }
+        return renaming;
+    }
+
     @Test
     public void onlySingleCounter_renameMultipleFolders_expectCorrectFileRenaming()
             throws ConfigurationException, IOException {
@@ -357,6 +742,50 @@ public class RenameFilesPluginTest {
         verifyRenamingFromTo(oldFiles, newFiles);
     }
 
+    @Test
+    public void onlySingleCounter_failingMoveInSecondFolder_expectExecutedRenamingsRenamedBack()
+            throws ConfigurationException, IOException, SwapException {
+        setupPluginConfiguration("counter-only_renaming_star");
+        initializate();
+
+        List<Path> oldFiles = List.of(
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "a_01.jpg"),
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "a_02.jpg"),
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "a_03.jpg"),
+                Paths.get(DEFAULT_PROCESS_TIF_DIRECTORY, "b_TIF_01.tif"),
+                Paths.get(DEFAULT_PROCESS_TIF_DIRECTORY, "b_TIF_02.tif"),
+                Paths.get(DEFAULT_PROCESS_TIF_DIRECTORY, "b_TIF_03.tif"),
+                Paths.get(DEFAULT_PROCESS_OCR_XML_DIRECTORY, "c_01.xml"),
+                Paths.get(DEFAULT_PROCESS_OCR_XML_DIRECTORY, "c_02.xml"),
+                Paths.get(DEFAULT_PROCESS_OCR_XML_DIRECTORY, "c_03.xml"));
+        List<Path> newFiles = List.of(
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "00001.jpg"),
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "00002.jpg"),
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "00003.jpg"),
+                Paths.get(DEFAULT_PROCESS_TIF_DIRECTORY, "00001.tif"),
+                Paths.get(DEFAULT_PROCESS_TIF_DIRECTORY, "00002.tif"),
+                Paths.get(DEFAULT_PROCESS_TIF_DIRECTORY, "00003.tif"),
+                Paths.get(DEFAULT_PROCESS_OCR_XML_DIRECTORY, "00001.xml"),
+                Paths.get(DEFAULT_PROCESS_OCR_XML_DIRECTORY, "00002.xml"),
+                Paths.get(DEFAULT_PROCESS_OCR_XML_DIRECTORY, "00003.xml"));
+
+        mockStorageFileParentPathPresence(oldFiles);
+        mockStorageFilePresence(oldFiles);
+        doThrow(new IOException("Permission denied")).when(storage).move(oldFiles.get(4), newFiles.get(4));
+
+        assertEquals(PluginReturnValue.ERROR, plugin.run());
+
+        // The renamings before the failure are executed and renamed back, no further renaming is started
+        verifyRenamingFromTo(oldFiles.subList(0, 5), newFiles.subList(0, 5));
+        verifyRenamingFromTo(newFiles.subList(0, 4), oldFiles.subList(0, 4));
+        verify(storage, never()).move(eq(newFiles.get(4)), any());
+        for (int i = 5; i < oldFiles.size(); i++) {
+            verify(storage, never()).move(eq(oldFiles.get(i)), any());
+        }
+        verify(metsFileUpdater, never()).updateMetsFile(any(), any(RenamingPlan.class));
+        verify(processProperty, never()).setPropertyValue(any());
+    }
+
     @Test
     public void onlySingleCounterWithStartValue_renameMultipleFolders_expectCorrectFileRenaming()
             throws ConfigurationException, IOException {
@@ -620,9 +1049,15 @@ public class RenameFilesPluginTest {
         mockStorageFileParentPathPresence(oldFiles);
         mockStorageFilePresence(oldFiles);
 
-        assertEquals(PluginReturnValue.FINISH, plugin.run());
+        RenamingRun run = plugin.createRenamingRun(step);
+        assertEquals(PluginReturnValue.FINISH, run.execute());
 
         verifyRenamingFromTo(oldFiles, newFiles);
+
+        // Both name parts check {originalfilename}, it is only resolved once per file
+        assertEquals(18, run.metrics.get(RenameFilesPlugin.METRIC_CONDITION_CHECKS));
+        assertEquals(9, run.metrics.get(RenameFilesPlugin.METRIC_CONDITION_VALUE_RESOLUTIONS));
+        assertEquals(18, run.metrics.get(RenameFilesPlugin.METRIC_CONDITION_REGEX_EVALUATIONS));
     }
 
     @Test
@@ -661,7 +1096,57 @@ public class RenameFilesPluginTest {
 
         assertEquals(PluginReturnValue.FINISH, plugin.run());
 
-        verify(metsFileUpdater, times(1)).updateMetsFile(process, renamingMap);
+        verify(metsFileUpdater, times(1)).updateMetsFile(eq(process), argThat((RenamingPlan plan) -> renamingMap.equals(plan.toMapping())));
+    }
+
+    @Test
+    public void mixedStaticCounterWithPipelinedExecution_renameMultipleFolders_expectRenamingMetsFileAndHistoryUpdated()
+            throws ConfigurationException, IOException, URISyntaxException {
+        setupPluginConfiguration("mixed-static-counter-with-mets_pipelined_execution");
+        initializate();
+
+        List<Path> oldFiles = List.of(
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "a_01.jpg"),
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "a_02.jpg"),
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "a_03.jpg"),
+                Paths.get(DEFAULT_PROCESS_TIF_DIRECTORY, "b_TIF_01.tif"),
+                Paths.get(DEFAULT_PROCESS_TIF_DIRECTORY, "b_TIF_02.tif"),
+                Paths.get(DEFAULT_PROCESS_TIF_DIRECTORY, "b_TIF_03.tif"),
+                Paths.get(DEFAULT_PROCESS_OCR_XML_DIRECTORY, "c_01.xml"),
+                Paths.get(DEFAULT_PROCESS_OCR_XML_DIRECTORY, "c_02.xml"),
+                Paths.get(DEFAULT_PROCESS_OCR_XML_DIRECTORY, "c_03.xml"));
+        List<Path> newFiles = List.of(
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "FILE_0001.jpg"),
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "FILE_0002.jpg"),
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "FILE_0003.jpg"),
+                Paths.get(DEFAULT_PROCESS_TIF_DIRECTORY, "FILE_0001.tif"),
+                Paths.get(DEFAULT_PROCESS_TIF_DIRECTORY, "FILE_0002.tif"),
+                Paths.get(DEFAULT_PROCESS_TIF_DIRECTORY, "FILE_0003.tif"),
+                Paths.get(DEFAULT_PROCESS_OCR_XML_DIRECTORY, "FILE_0001.xml"),
+                Paths.get(DEFAULT_PROCESS_OCR_XML_DIRECTORY, "FILE_0002.xml"),
+                Paths.get(DEFAULT_PROCESS_OCR_XML_DIRECTORY, "FILE_0003.xml"));
+        Map<Path, Path> renamingMap = new HashMap<>();
+        for (int i = 0; i < oldFiles.size(); i++) {
+            renamingMap.put(oldFiles.get(i), newFiles.get(i));
+        }
+
+        mockStorageFileParentPathPresence(oldFiles);
+        mockStorageFilePresence(oldFiles);
+        MetsFileUpdater.PreparedMetsUpdate preparedMetsUpdate = mock(MetsFileUpdater.PreparedMetsUpdate.class);
+        when(metsFileUpdater.prepareMetsFileUpdate(eq(process), argThat((RenamingPlan plan) -> renamingMap.equals(plan.toMapping())), eq(false)))
+                .thenReturn(preparedMetsUpdate);
+
+        assertEquals(PluginReturnValue.FINISH, plugin.run());
+
+        verifyRenamingFromTo(oldFiles, newFiles);
+        verify(preparedMetsUpdate, times(1)).commit();
+        verify(preparedMetsUpdate, never()).discard();
+        verify(metsFileUpdater, never()).updateMetsFile(any(), any(RenamingPlan.class));
+        ArgumentCaptor<String> historyCaptor = ArgumentCaptor.forClass(String.class);
+        verify(processProperty, atLeastOnce()).setPropertyValue(historyCaptor.capture());
+        OriginalFileNameHistory expectedHistory =
+                gson.fromJson(loadJsonResource("mixed-static-counter-with-mets_pipelined_execution"), OriginalFileNameHistory.class);
+        assertThat(gson.fromJson(historyCaptor.getValue(), OriginalFileNameHistory.class), Is.is(expectedHistory));
     }
 
     @Test
@@ -678,9 +1163,10 @@ public class RenameFilesPluginTest {
         mockStorageFileParentPathPresence(oldFiles);
         mockStorageFilePresence(oldFiles);
 
-        assertEquals(PluginReturnValue.FINISH, plugin.run());
+        RenamingRun run = plugin.createRenamingRun(step);
+        assertEquals(PluginReturnValue.FINISH, run.execute());
 
-        verifyOriginalFileNameHistoryUpdatedCorrectly("counter-only_renaming_star");
+        verifyOriginalFileNameHistoryUpdatedCorrectly(run, "counter-only_renaming_star");
     }
 
     @Test
@@ -713,9 +1199,10 @@ public class RenameFilesPluginTest {
         mockStorageFileParentPathPresence(oldFiles);
         mockStorageFilePresence(oldFiles);
 
-        assertEquals(PluginReturnValue.FINISH, plugin.run());
+        RenamingRun run = plugin.createRenamingRun(step);
+        assertEquals(PluginReturnValue.FINISH, run.execute());
 
-        verifyOriginalFileNameHistoryUpdatedCorrectly("mixed-variable-static-counter-with-startValue_renaming_star");
+        verifyOriginalFileNameHistoryUpdatedCorrectly(run, "mixed-variable-static-counter-with-startValue_renaming_star");
     }
 
     @Test
@@ -789,9 +1276,10 @@ public class RenameFilesPluginTest {
 
         when(processProperty.getPropertyValue()).thenReturn(loadJsonResource("original-file-name-restore_renaming_star"));
 
-        assertEquals(PluginReturnValue.FINISH, plugin.run());
+        RenamingRun run = plugin.createRenamingRun(step);
+        assertEquals(PluginReturnValue.FINISH, run.execute());
 
-        verifyOriginalFileNameHistoryUpdatedCorrectly("original-file-name-restore_renaming_star_updated");
+        verifyOriginalFileNameHistoryUpdatedCorrectly(run, "original-file-name-restore_renaming_star_updated");
     }
 
     @Test
@@ -829,6 +1317,193 @@ public class RenameFilesPluginTest {
         verifyOrderedRenamingFromTo(oldFiles, newFiles);
     }
 
+    @Test
+    public void onlyCounterFileNameShiftedWithConcurrentMoves_renameMultipleFolders_expectCorrectFileRenamingOrder()
+            throws ConfigurationException, IOException, URISyntaxException {
+        setupPluginConfiguration("counter-only-shifted_concurrent_moves");
+        initializate();
+
+        List<Path> oldFiles = List.of(
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "00003.jpg"),
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "00002.jpg"),
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "00001.jpg"),
+                Paths.get(DEFAULT_PROCESS_TIF_DIRECTORY, "00003.tif"),
+                Paths.get(DEFAULT_PROCESS_TIF_DIRECTORY, "00002.tif"),
+                Paths.get(DEFAULT_PROCESS_TIF_DIRECTORY, "00001.tif"));
+        List<Path> newFiles = List.of(
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "00004.jpg"),
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "00003.jpg"),
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "00002.jpg"),
+                Paths.get(DEFAULT_PROCESS_TIF_DIRECTORY, "00004.tif"),
+                Paths.get(DEFAULT_PROCESS_TIF_DIRECTORY, "00003.tif"),
+                Paths.get(DEFAULT_PROCESS_TIF_DIRECTORY, "00002.tif"));
+
+        mockStorageFileParentPathPresence(oldFiles);
+        mockStorageFilePresence(oldFiles);
+
+        assertEquals(PluginReturnValue.FINISH, plugin.run());
+
+        // The renamings of one chain are executed in order, even if several threads are used
+        verifyOrderedRenamingFromTo(oldFiles.subList(0, 3), newFiles.subList(0, 3));
+        verifyOrderedRenamingFromTo(oldFiles.subList(3, 6), newFiles.subList(3, 6));
+    }
+
+    @Test
+    public void onlyCounterFileNameShiftedWithFolderPipelining_renameMultipleFolders_expectCorrectFileRenamingOrder()
+            throws ConfigurationException, IOException, URISyntaxException {
+        setupPluginConfiguration("counter-only-shifted_folder_pipelining");
+        initializate();
+
+        List<Path> oldFiles = List.of(
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "00002.jpg"),
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "00001.jpg"),
+                Paths.get(DEFAULT_PROCESS_TIF_DIRECTORY, "00002.tif"),
+                Paths.get(DEFAULT_PROCESS_TIF_DIRECTORY, "00001.tif"),
+                Paths.get(DEFAULT_PROCESS_OCR_XML_DIRECTORY, "00002.xml"),
+                Paths.get(DEFAULT_PROCESS_OCR_XML_DIRECTORY, "00001.xml"));
+        List<Path> newFiles = List.of(
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "00003.jpg"),
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "00002.jpg"),
+                Paths.get(DEFAULT_PROCESS_TIF_DIRECTORY, "00003.tif"),
+                Paths.get(DEFAULT_PROCESS_TIF_DIRECTORY, "00002.tif"),
+                Paths.get(DEFAULT_PROCESS_OCR_XML_DIRECTORY, "00003.xml"),
+                Paths.get(DEFAULT_PROCESS_OCR_XML_DIRECTORY, "00002.xml"));
+
+        mockStorageFileParentPathPresence(oldFiles);
+        mockStorageFilePresence(oldFiles);
+
+        RenamingRun run = plugin.createRenamingRun(step);
+        assertEquals(PluginReturnValue.FINISH, run.execute());
+
+        // The folders are renamed in the configured order, one after the other
+        verifyOrderedRenamingFromTo(oldFiles, newFiles);
+        assertEquals(6, run.originalFileNameHistory.getEntryCount());
+    }
+
+    @Test
+    public void onlyStaticFileNameWithFolderPipelining_collisionInLaterFolder_expectEarlierFolderRenamedBack()
+            throws ConfigurationException, IOException, URISyntaxException {
+        setupPluginConfiguration("static-only_folder_pipelining");
+        initializate();
+
+        List<Path> oldFiles = List.of(
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "a_01.jpg"),
+                Paths.get(DEFAULT_PROCESS_TIF_DIRECTORY, "b_TIF_01.tif"),
+                Paths.get(DEFAULT_PROCESS_TIF_DIRECTORY, "b_TIF_02.tif"));
+
+        mockStorageFileParentPathPresence(oldFiles);
+        mockStorageFilePresence(oldFiles);
+
+        assertEquals(PluginReturnValue.ERROR, plugin.run());
+
+        Path renamedFile = Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "STATIC.jpg");
+        verifyOrderedRenamingFromTo(List.of(oldFiles.get(0), renamedFile), List.of(renamedFile, oldFiles.get(0)));
+        verify(storage, never()).move(eq(oldFiles.get(1)), any());
+    }
+
+    @Test
+    public void onlyCounterWithFolderPipelining_failingMoveInSecondFolder_expectRenamedFilesRenamedBack()
+            throws ConfigurationException, IOException, SwapException {
+        setupPluginConfiguration("counter-only_folder_pipelining");
+        initializate();
+
+        List<Path> oldFiles = List.of(
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "a_01.jpg"),
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "a_02.jpg"),
+                Paths.get(DEFAULT_PROCESS_TIF_DIRECTORY, "b_TIF_01.tif"),
+                Paths.get(DEFAULT_PROCESS_TIF_DIRECTORY, "b_TIF_02.tif"),
+                Paths.get(DEFAULT_PROCESS_OCR_XML_DIRECTORY, "c_01.xml"),
+                Paths.get(DEFAULT_PROCESS_OCR_XML_DIRECTORY, "c_02.xml"));
+        List<Path> newFiles = List.of(
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "00001.jpg"),
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "00002.jpg"),
+                Paths.get(DEFAULT_PROCESS_TIF_DIRECTORY, "00001.tif"),
+                Paths.get(DEFAULT_PROCESS_TIF_DIRECTORY, "00002.tif"),
+                Paths.get(DEFAULT_PROCESS_OCR_XML_DIRECTORY, "00001.xml"),
+                Paths.get(DEFAULT_PROCESS_OCR_XML_DIRECTORY, "00002.xml"));
+
+        mockStorageFileParentPathPresence(oldFiles);
+        mockStorageFilePresence(oldFiles);
+        doThrow(new IOException("Permission denied")).when(storage).move(oldFiles.get(3), newFiles.get(3));
+
+        assertEquals(PluginReturnValue.ERROR, plugin.run());
+
+        // The first folder and the renamed file of the second folder are renamed back, the third folder is not renamed at all
+        verifyRenamingFromTo(oldFiles.subList(0, 4), newFiles.subList(0, 4));
+        verifyRenamingFromTo(newFiles.subList(0, 3), oldFiles.subList(0, 3));
+        verify(storage, never()).move(eq(newFiles.get(3)), any());
+        verify(storage, never()).move(eq(oldFiles.get(4)), any());
+        verify(storage, never()).move(eq(oldFiles.get(5)), any());
+        verify(metsFileUpdater, never()).updateMetsFile(any(), any(RenamingPlan.class));
+        verify(processProperty, never()).setPropertyValue(any());
+    }
+
+    @Test
+    public void restoreModeWithoutHistory_renameMultipleFolders_expectNoRenaming()
+            throws ConfigurationException, IOException, URISyntaxException {
+        setupPluginConfiguration("original-file-name-restore_mode_restore");
+        initializate();
+
+        List<Path> oldFiles = List.of(
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "TestProcess_123_00004.jpg"),
+                Paths.get(DEFAULT_PROCESS_TIF_DIRECTORY, "TestProcess_123_00004.tif"),
+                Paths.get(DEFAULT_PROCESS_OCR_XML_DIRECTORY, "TestProcess_123_00004.xml"));
+
+        mockStorageFileParentPathPresence(oldFiles);
+        mockStorageFilePresence(oldFiles);
+
+        assertEquals(PluginReturnValue.FINISH, plugin.run());
+
+        verify(storage, never()).move(any(), any());
+    }
+
+    @Test
+    public void restoreModeWithHistory_renameMultipleFolders_expectOriginalFileNamesRestoredAndMetsFileAndHistoryUpdated()
+            throws ConfigurationException, IOException, URISyntaxException {
+        setupPluginConfiguration("original-file-name-restore_mode_restore");
+        initializate();
+
+        List<Path> oldFiles = List.of(
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "TestProcess_123_00004.jpg"),
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "TestProcess_123_00005.jpg"),
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "TestProcess_123_00006.jpg"),
+                Paths.get(DEFAULT_PROCESS_TIF_DIRECTORY, "TestProcess_123_00004.tif"),
+                Paths.get(DEFAULT_PROCESS_TIF_DIRECTORY, "TestProcess_123_00005.tif"),
+                Paths.get(DEFAULT_PROCESS_TIF_DIRECTORY, "TestProcess_123_00006.tif"),
+                Paths.get(DEFAULT_PROCESS_OCR_XML_DIRECTORY, "TestProcess_123_00004.xml"),
+                Paths.get(DEFAULT_PROCESS_OCR_XML_DIRECTORY, "TestProcess_123_00005.xml"),
+                Paths.get(DEFAULT_PROCESS_OCR_XML_DIRECTORY, "TestProcess_123_00006.xml"));
+        List<Path> newFiles = List.of(
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "a_01.jpg"),
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "a_02.jpg"),
+                Paths.get(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, "a_03.jpg"),
+                Paths.get(DEFAULT_PROCESS_TIF_DIRECTORY, "b_TIF_01.tif"),
+                Paths.get(DEFAULT_PROCESS_TIF_DIRECTORY, "b_TIF_02.tif"),
+                Paths.get(DEFAULT_PROCESS_TIF_DIRECTORY, "b_TIF_03.tif"),
+                Paths.get(DEFAULT_PROCESS_OCR_XML_DIRECTORY, "c_01.xml"),
+                Paths.get(DEFAULT_PROCESS_OCR_XML_DIRECTORY, "c_02.xml"),
+                Paths.get(DEFAULT_PROCESS_OCR_XML_DIRECTORY, "c_03.xml"));
+        Map<Path, Path> renamingMap = new HashMap<>();
+        for (int i = 0; i < oldFiles.size(); i++) {
+            renamingMap.put(oldFiles.get(i), newFiles.get(i));
+        }
+
+        mockStorageFileParentPathPresence(oldFiles);
+        mockStorageFilePresence(oldFiles);
+
+        when(processProperty.getPropertyValue()).thenReturn(loadJsonResource("original-file-name-restore_renaming_star"));
+
+        assertEquals(PluginReturnValue.FINISH, plugin.run());
+
+        verifyRenamingFromTo(oldFiles, newFiles);
+        verify(metsFileUpdater, times(1)).updateMetsFile(eq(process), argThat((RenamingPlan plan) -> renamingMap.equals(plan.toMapping())));
+        ArgumentCaptor<String> historyCaptor = ArgumentCaptor.forClass(String.class);
+        verify(processProperty, atLeastOnce()).setPropertyValue(historyCaptor.capture());
+        OriginalFileNameHistory expectedHistory =
+                gson.fromJson(loadJsonResource("original-file-name-restore_renaming_star_updated"), OriginalFileNameHistory.class);
+        assertThat(gson.fromJson(historyCaptor.getValue(), OriginalFileNameHistory.class), Is.is(expectedHistory));
+    }
+
     @Test
     public void onlyStaticFileName_renameMultipleFoldersWithMultipleFiles_expectNamingCollisionDetectedAndErrorReturn()
             throws ConfigurationException, IOException, URISyntaxException {
@@ -0,0 +1,83 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RenameJobQueueTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private RenameJobQueue queue;
+
+    @Before
+    public void setup() throws IOException {
+        queue = new RenameJobQueue(temporaryFolder.getRoot().toPath());
+    }
+
+    private RenameJobQueue.Job createJob(int processId) {
+        RenamingPlan plan = RenamingPlan.fromMapping(Map.of(
+                Paths.get("/images/a_tif/00001.tif"), Paths.get("/images/a_tif/00002.tif"),
+                Paths.get("/images/a_tif/00002.tif"), Paths.get("/images/a_tif/00003.tif")));
+        plan.orderForExecution();
+        RenameJobQueue.Job job = new RenameJobQueue.Job();
+        job.setProcessId(processId);
+        job.setStepId(processId * 10);
+        job.setPlan(plan.toRecords());
+        return job;
+    }
+
+    @Test
+    public void enqueuedJobs_expectClaimedInOrderWithPlan() throws IOException, InterruptedException {
+        queue.enqueue(createJob(1));
+        Thread.sleep(2);
+        queue.enqueue(createJob(2));
+
+        RenameJobQueue.Job first = queue.claim();
+        assertEquals(1, first.getProcessId());
+        RenamingPlan plan = RenamingPlan.fromRecords(first.getPlan());
+        assertEquals(1, plan.getChainCount(0));
+        assertEquals("00002.tif", plan.getSource(0, 0));
+        assertEquals("00003.tif", plan.getTarget(0, 0));
+
+        assertEquals(2, queue.claim().getProcessId());
+        assertNull(queue.claim());
+    }
+
+    @Test
+    public void completedJob_expectRemovedFromQueue() throws IOException {
+        queue.enqueue(createJob(1));
+        queue.complete(queue.claim());
+
+        assertEquals(0, queue.getPendingJobCount());
+        try (Stream<Path> running = Files.list(temporaryFolder.getRoot().toPath().resolve("running"))) {
+            assertEquals(0, running.count());
+        }
+    }
+
+    @Test
+    public void jobOfEndedWorker_expectRequeued() throws IOException {
+        queue.enqueue(createJob(1));
+        RenameJobQueue.Job job = queue.claim();
+        // Pretend the job was claimed by a worker process that does not exist
+        String fileName = job.getRunningFile().getFileName().toString();
+        List<String> parts = List.of(fileName.split("#", 3));
+        Path orphanedFile = job.getRunningFile().resolveSibling(parts.get(0) + "#" + Long.MAX_VALUE + "#" + parts.get(2));
+        Files.move(job.getRunningFile(), orphanedFile);
+
+        assertEquals(1, queue.requeueOrphanedJobs());
+        assertEquals(1, queue.claim().getProcessId());
+    }
+}
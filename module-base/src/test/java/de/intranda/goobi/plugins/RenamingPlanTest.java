@@ -0,0 +1,70 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class RenamingPlanTest {
+    private static final Path DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY = Paths.get("/opt/digiverso/goobi/metadata/1/images/media");
+    private static final Path DEFAULT_PROCESS_TIF_DIRECTORY = Paths.get("/opt/digiverso/goobi/metadata/1/images/tif");
+
+    @Test
+    public void shiftedRenamings_expectChainOrderedBackToFront() {
+        RenamingPlan plan = new RenamingPlan();
+        plan.addFolder(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, List.of("00001.jpg", "00002.jpg", "00003.jpg"),
+                List.of("00002.jpg", "00003.jpg", "00004.jpg"));
+
+        assertTrue(plan.orderForExecution());
+
+        assertEquals("00003.jpg", plan.getSource(0, 0));
+        assertEquals("00004.jpg", plan.getTarget(0, 0));
+        assertEquals("00002.jpg", plan.getSource(0, 1));
+        assertEquals("00001.jpg", plan.getSource(0, 2));
+    }
+
+    @Test
+    public void independentRenamings_expectSeparateChains() {
+        RenamingPlan plan = new RenamingPlan();
+        plan.addFolder(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, List.of("a.jpg", "x.jpg", "b.jpg"), List.of("b.jpg", "y.jpg", "c.jpg"));
+
+        assertTrue(plan.orderForExecution());
+
+        assertEquals(2, plan.getChainCount(0));
+        assertEquals(0, plan.getChainStart(0, 0));
+        assertEquals(2, plan.getChainEnd(0, 0));
+        assertEquals("b.jpg", plan.getSource(0, 0));
+        assertEquals("a.jpg", plan.getSource(0, 1));
+        assertEquals(2, plan.getChainStart(0, 1));
+        assertEquals(3, plan.getChainEnd(0, 1));
+        assertEquals("x.jpg", plan.getSource(0, 2));
+    }
+
+    @Test
+    public void cyclicRenamings_expectOrderingFails() {
+        RenamingPlan plan = new RenamingPlan();
+        plan.addFolder(DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY, List.of("a.jpg", "b.jpg", "c.jpg"), List.of("b.jpg", "a.jpg", "d.jpg"));
+
+        assertFalse(plan.orderForExecution());
+        // Plan stays untouched
+        assertEquals("a.jpg", plan.getSource(0, 0));
+    }
+
+    @Test
+    public void mappingWithMultipleFolders_expectRenamingsGroupedByFolder() {
+        RenamingPlan plan = RenamingPlan.fromMapping(Map.of(
+                DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY.resolve("a.jpg"), DEFAULT_PROCESS_ORIG_IMAGES_DIRECTORY.resolve("FILE.jpg"),
+                DEFAULT_PROCESS_TIF_DIRECTORY.resolve("a.jpg"), DEFAULT_PROCESS_TIF_DIRECTORY.resolve("FILE.jpg")));
+
+        assertEquals(2, plan.getFolderCount());
+        assertEquals(2, plan.size());
+        assertEquals(1, plan.getRenamingCount(0));
+        assertEquals(1, plan.getRenamingCount(1));
+    }
+}
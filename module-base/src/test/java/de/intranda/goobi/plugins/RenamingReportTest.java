@@ -0,0 +1,62 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class RenamingReportTest {
+    private static final Path FOLDER = Paths.get("/opt/digiverso/goobi/metadata/1/images/master_media");
+    private static final Instant TIMESTAMP = Instant.parse("2024-05-01T10:15:30Z");
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void csvReport_expectHeaderAndEscapedLines() throws IOException {
+        Path file = temporaryFolder.getRoot().toPath().resolve("report.csv");
+        try (RenamingReport report = new RenamingReport(file, RenamingReport.FORMAT_CSV, 1)) {
+            report.record(FOLDER, "a_01.jpg", "FILE_0001.jpg", TIMESTAMP, 2_500_000);
+            report.record(FOLDER, "a,\"02\".jpg", "FILE_0002.jpg", TIMESTAMP, 1_000);
+        }
+
+        List<String> lines = Files.readAllLines(file);
+        assertEquals(3, lines.size());
+        assertEquals("timestamp,folder,source,target,durationMicros", lines.get(0));
+        assertEquals("2024-05-01T10:15:30Z," + FOLDER + ",a_01.jpg,FILE_0001.jpg,2500", lines.get(1));
+        assertEquals("2024-05-01T10:15:30Z," + FOLDER + ",\"a,\"\"02\"\".jpg\",FILE_0002.jpg,1", lines.get(2));
+    }
+
+    @Test
+    public void jsonLinesReport_expectOneObjectPerMove() throws IOException {
+        Path file = temporaryFolder.getRoot().toPath().resolve("report.jsonl");
+        try (RenamingReport report = new RenamingReport(file, RenamingReport.FORMAT_JSON_LINES, 1000)) {
+            report.record(FOLDER, "a_01.jpg", "FILE_0001.jpg", TIMESTAMP, 2_500_000);
+            report.record(FOLDER, "a_02.jpg", "FILE_0002.jpg", TIMESTAMP, 1_000);
+        }
+
+        List<String> lines = Files.readAllLines(file);
+        assertEquals(2, lines.size());
+        JsonObject entry = JsonParser.parseString(lines.get(1)).getAsJsonObject();
+        assertEquals(FOLDER.toString(), entry.get("folder").getAsString());
+        assertEquals("a_02.jpg", entry.get("source").getAsString());
+        assertEquals("FILE_0002.jpg", entry.get("target").getAsString());
+        assertEquals(1, entry.get("durationMicros").getAsLong());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownFormat_expectIllegalArgumentException() throws IOException {
+        new RenamingReport(temporaryFolder.getRoot().toPath().resolve("report.xml"), "xml", 1).close();
+    }
+}